@@ -0,0 +1,334 @@
+package portuguese;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import danbikel.parser.Constants;
+import danbikel.util.Time;
+
+/**
+ * Imports the original files of the Bosque (and of the rest of the Floresta
+ * Sint&aacute;(c)tica), in their ISO-8859-1 Penn Treebank export, as the UTF-8
+ * trees of <tt>corpus/pre-processed</tt>.  The output is the same, byte for
+ * byte, as that of <tt>scripts/bosque_cleanup.rb</tt>:
+ * <ul>
+ * <li>comments, from a <tt>#</tt> to the end of its line, are removed;
+ * <li>newlines become spaces, runs of spaces are squeezed to one space and
+ * hyphens are written as underscores;
+ * <li>every <tt>(FRASE ...</tt> line starts a new tree, labeled <tt>S</tt>;
+ * <li>a function and form tag such as <tt>SUBJ:np</tt> is replaced by the
+ * upper case form, <tt>NP</tt>, keeping its third field, such as the
+ * lemma of a word, as in <tt>N-mundo</tt>, where the tag is that of a part
+ * of speech; a tag without a colon is dropped;
+ * <li>a word written as <tt>(word)</tt> becomes <tt>(word word)</tt>, and a
+ * <tt>+</tt> or <tt>_</tt> just before a closing parenthesis is removed.
+ * </ul>
+ * Where the script matches its patterns against everything it has read since
+ * the last closing parenthesis once per character, which takes quadratic
+ * time in the length of a constituent, the importer keeps that text in a
+ * buffer and looks back only as far as the last run of whitespace or the
+ * last opening parenthesis, so that each character is looked at a bounded
+ * number of times.  Files given together are imported in parallel.
+ */
+public class BosqueImporter {
+  // constants
+  private final static String className = BosqueImporter.class.getName();
+
+  /** The encoding of the original files. */
+  public final static String originalEncoding = "ISO-8859-1";
+
+  private final static int bufSize = Constants.defaultFileBufsize;
+
+  // the label of the nodes that start a sentence
+  private final static String sentenceLabel = "FRASE";
+
+  // data members
+  private Writer out;
+  // the text read since the last constituent or tag was written out
+  private char[] buf = new char[256];
+  private int len;
+  private boolean inComment;
+  private StringBuilder tag = new StringBuilder();
+
+  /** Constructs an importer writing trees to the specified writer. */
+  public BosqueImporter(Writer out) {
+    this.out = out;
+  }
+
+  /**
+   * Reads the original treebank from the specified reader to its end and
+   * writes its trees, without closing either stream.
+   */
+  public void importTrees(Reader in) throws IOException {
+    char[] chunk = new char[bufSize];
+    int numRead;
+    while ((numRead = in.read(chunk)) != -1)
+      for (int i = 0; i < numRead; i++)
+        add(chunk[i]);
+    out.write(buf, 0, len);
+    len = 0;
+    inComment = false;
+  }
+
+  /** Imports the specified original file as the specified output file. */
+  public static void importFile(String originalFilename,
+                                String outputFilename) throws IOException {
+    Reader in = TextFiles.newReader(originalFilename, originalEncoding);
+    try {
+      Writer out = TextFiles.newWriter(outputFilename, TextFiles.utf8);
+      try {
+        new BosqueImporter(out).importTrees(in);
+      }
+      finally {
+        out.close();
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private void add(char c) throws IOException {
+    if (inComment) {
+      if (c == '\n') {
+        len = 0;
+        inComment = false;
+      }
+      return;
+    }
+    if (c == ' ' && len > 0 && buf[len - 1] == ' ')
+      return;
+    append(c == '\n' ? ' ' : (c == '-' ? '_' : c));
+
+    char last = buf[len - 1];
+    if (last == '#') {
+      out.write(buf, 0, len - 1);
+      len = 0;
+      inComment = true;
+    }
+    else if (last == '(' && startSentence()) {
+    }
+    else if (!isSpace(last) && writeTag()) {
+    }
+    else if (last == ')' && !writeWord())
+      writeConstituent();
+  }
+
+  private void append(char c) {
+    if (len == buf.length) {
+      char[] newBuf = new char[buf.length * 2];
+      System.arraycopy(buf, 0, newBuf, 0, len);
+      buf = newBuf;
+    }
+    buf[len++] = c;
+  }
+
+  // as the \s of the patterns of the script
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+  }
+
+  private boolean regionMatches(int start, String s) {
+    if (start + s.length() > len)
+      return false;
+    for (int i = 0; i < s.length(); i++)
+      if (buf[start + i] != s.charAt(i))
+        return false;
+    return true;
+  }
+
+  // on the parenthesis after "(FRASE ...", starts a new tree with what has
+  // been read since then as its label
+  private boolean startSentence() throws IOException {
+    int open = len - 2;
+    while (open >= 0 && buf[open] != '(')
+      open--;
+    if (open < 0 || len - 2 < open + 1 + sentenceLabel.length() ||
+        !regionMatches(open + 1, sentenceLabel))
+      return false;
+    out.write(buf, 0, open);
+    out.write("\n(S ");
+    buf[0] = '(';
+    len = 1;
+    return true;
+  }
+
+  // on the first character after the whitespace following "(tag", writes
+  // the tag as a label, keeping only that character in the buffer
+  private boolean writeTag() throws IOException {
+    int space = len - 1;
+    while (space > 0 && isSpace(buf[space - 1]))
+      space--;
+    if (space == len - 1)
+      return false;
+    for (int open = space - 2; open >= 0 && !isSpace(buf[open]); open--) {
+      if (buf[open] == '(' && !regionMatches(open + 1, sentenceLabel)) {
+        out.write(buf, 0, open + 1);
+        writeLabel(open + 1, space, buf[len - 1] != '(');
+        out.write(' ');
+        buf[0] = buf[len - 1];
+        len = 1;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // writes the label of the tag between the specified offsets of the buffer,
+  // as the script does with the fields of the tag split at its colons
+  private void writeLabel(int start, int end, boolean isPos)
+    throws IOException {
+    int first = indexOf(':', start, end);
+    if (first == -1)
+      return;
+    int second = indexOf(':', first + 1, end);
+    int categoryEnd = second == -1 ? end : second;
+
+    tag.setLength(0);
+    for (int i = first + 1; i < categoryEnd; i++) {
+      char c = buf[i];
+      if (c >= 'a' && c <= 'z')
+        tag.append((char)(c - 'a' + 'A'));
+      else if ((c >= 'A' && c <= 'Z') || c == '_')
+        tag.append(c);
+    }
+    if (tag.length() > 0 && tag.charAt(tag.length() - 1) == '_')
+      tag.setLength(tag.length() - 1);
+    if (categoryEnd == first + 1) {
+      // the script fails where the tag has nothing but colons after its
+      // function, since splitting it drops the empty fields at its end
+      boolean empty = true;
+      for (int i = first + 1; i < end && empty; i++)
+        empty = buf[i] == ':';
+      if (empty)
+        throw new IOException(className + ": tag without a form: " +
+                              new String(buf, start, end - start));
+    }
+    out.write(tag.toString());
+
+    if (second != -1 && isPos) {
+      int third = indexOf(':', second + 1, end);
+      int fieldEnd = third == -1 ? end : third;
+      if (fieldEnd > second + 1) {
+        out.write('-');
+        out.write(buf, second + 1, fieldEnd - second - 1);
+      }
+    }
+  }
+
+  private int indexOf(char c, int start, int end) {
+    for (int i = start; i < end; i++)
+      if (buf[i] == c)
+        return i;
+    return -1;
+  }
+
+  // on a closing parenthesis right after "(word", writes "(word word)"
+  private boolean writeWord() throws IOException {
+    if (len < 3 || isSpace(buf[len - 2]))
+      return false;
+    for (int open = len - 3; open >= 0 && !isSpace(buf[open]); open--) {
+      if (buf[open] == '(') {
+        out.write(buf, 0, len - 1);
+        out.write(' ');
+        out.write(buf, open + 1, len - open - 1);
+        len = 0;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // on any other closing parenthesis, writes what has been read, without a
+  // '+' or '_' just before the parenthesis
+  private void writeConstituent() throws IOException {
+    int end = len - 1;
+    if (end > 0 && (buf[end - 1] == '+' || buf[end - 1] == '_'))
+      end--;
+    out.write(buf, 0, end);
+    out.write(')');
+    len = 0;
+  }
+
+  private static void usage() {
+    System.err.println("usage: [-nt <num threads>] <original> <output> " +
+                       "[<original> <output> ...]");
+    System.exit(1);
+  }
+
+  /**
+   * Imports original treebank files, in parallel.
+   *
+   * @param args usage: <tt>[-nt &lt;num threads&gt;] &lt;original&gt;
+   * &lt;output&gt; [&lt;original&gt; &lt;output&gt; ...]</tt>, where the
+   * number of threads defaults to the number of processors
+   */
+  public static void main(String[] args) {
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    List filenames = new ArrayList();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-nt")) {
+        if (i + 1 == args.length)
+          usage();
+        try {
+          numThreads = Integer.parseInt(args[++i]);
+        }
+        catch (NumberFormatException nfe) {
+          usage();
+        }
+      }
+      else
+        filenames.add(args[i]);
+    }
+    if (filenames.isEmpty() || filenames.size() % 2 != 0 || numThreads < 1)
+      usage();
+
+    int numFiles = filenames.size() / 2;
+    ExecutorService pool =
+      Executors.newFixedThreadPool(Math.min(numThreads, numFiles),
+                                   new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Bosque Importer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    Time time = new Time();
+    Future[] futures = new Future[numFiles];
+    for (int i = 0; i < numFiles; i++) {
+      final String original = (String)filenames.get(2 * i);
+      final String output = (String)filenames.get(2 * i + 1);
+      futures[i] = pool.submit(new Callable() {
+        public Object call() throws IOException {
+          Time fileTime = new Time();
+          importFile(original, output);
+          return fileTime.toString();
+        }
+      });
+    }
+    boolean failed = false;
+    for (int i = 0; i < numFiles; i++) {
+      String original = (String)filenames.get(2 * i);
+      try {
+        System.err.println(className + ": imported " + original + " as " +
+                           filenames.get(2 * i + 1) + " in " +
+                           futures[i].get() + ".");
+      }
+      catch (InterruptedException ie) {
+        System.err.println(className + ": interrupted while importing " +
+                           original);
+        failed = true;
+      }
+      catch (ExecutionException ee) {
+        System.err.println(className + ": couldn't import " + original +
+                           ": " + ee.getCause());
+        failed = true;
+      }
+    }
+    pool.shutdownNow();
+    if (failed)
+      System.exit(1);
+    System.err.println(className + ": imported " + numFiles + " file(s) in " +
+                       time + ".");
+  }
+}
@@ -0,0 +1,577 @@
+package portuguese;
+
+import java.rmi.RemoteException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import danbikel.lisp.*;
+import danbikel.parser.CKYItem;
+import danbikel.parser.DecoderServerRemote;
+import danbikel.parser.Language;
+import danbikel.parser.Settings;
+import danbikel.util.Time;
+
+/**
+ * A decoder for the Portuguese language package that adds per-sentence
+ * resource budgets to {@link danbikel.parser.Decoder}.  Each sentence may be
+ * given a maximum parse time (in milliseconds) and a maximum number of chart
+ * items; when either budget runs out, chart filling stops and
+ * {@link #budgetExhausted()} returns <code>true</code>, so that the caller can
+ * produce a cheaper analysis instead.
+ * <p>
+ * This decoder also offers an <i>anytime</i> mode (see
+ * {@link #parseAnytime(SexpList,int)}), in which decoding starts with a
+ * narrow beam that is widened step by step, up to the maximum prune factor,
+ * only while a latency target allows, keeping the best complete parse found
+ * so far.
+ * <p>
+ * When a {@link TagDictionary} is given in the settings, the tags considered
+ * for each word are further restricted to those whose relative frequency
+ * with the word (or, for words absent from the dictionary, with its
+ * word-feature vector) reaches a threshold, which keeps implausible
+ * low-frequency tags out of the chart.
+ * <p>
+ * A sentence may be given {@link SpanConstraints}, in which case the chart
+ * cells of spans crossing a required span are not filled, and items that
+ * could only lead to a parse violating a constraint are not built.
+ * <p>
+ * After {@link #keepDerivations()} has been called, the chart keeps the
+ * derivation of every item, and the <i>k</i> best parses of the last
+ * sentence can be read from it by {@link #kBestParses(int)}.
+ * <p>
+ * This class may be used by the standard parser by setting the property
+ * <tt>parser.parser.decoderClass</tt> to <tt>portuguese.Decoder</tt>.
+ *
+ * @see ParseScheduler
+ */
+public class Decoder extends danbikel.parser.Decoder {
+  // constants
+  private final static String className = Decoder.class.getName();
+
+  /**
+   * The property to specify the maximum number of chart items a sentence may
+   * create before it is considered to have exhausted its memory budget.  A
+   * value of zero or less means there is no limit.
+   */
+  public final static String maxChartItemsProperty =
+    "parser.decoder.maxChartItems";
+  /**
+   * The property to specify whether sentences should be decoded in anytime
+   * mode by drivers that support it, such as {@link ParseScheduler}.
+   */
+  public final static String anytimeProperty = "parser.decoder.anytime";
+  /**
+   * The property to specify the latency target, in milliseconds, for
+   * sentences decoded in anytime mode.  A value of zero or less means
+   * the beam is always widened up to the maximum prune factor.
+   */
+  public final static String latencyTargetProperty =
+    "parser.decoder.latencyTarget";
+  /**
+   * The property to specify the initial prune factor for anytime mode, in the
+   * same units as <tt>parser.decoder.pruneFactor</tt>.
+   */
+  public final static String anytimeStartPruneFactorProperty =
+    "parser.decoder.anytime.startPruneFactor";
+  /**
+   * The property to specify by how much the prune factor is widened between
+   * anytime attempts.
+   */
+  public final static String anytimePruneFactorIncrementProperty =
+    "parser.decoder.anytime.pruneFactorIncrement";
+  /**
+   * The property to specify the tag dictionary file used to restrict the
+   * tags of each word.  If it is not set, tags are not restricted.
+   */
+  public final static String tagDictionaryProperty =
+    "parser.decoder.tagDictionary";
+  /**
+   * The property to specify the minimum relative frequency a tag must have
+   * with a word in the tag dictionary to be considered for that word.  The
+   * most frequent tag of a word is always considered.
+   */
+  public final static String tagDictionaryThresholdProperty =
+    "parser.decoder.tagDictionaryThreshold";
+
+  // the most derivations read from the chart per distinct tree returned
+  // by kBestParses
+  private final static int maxDerivationsPerTree = 10;
+
+  // tag dictionaries are memory-mapped once and shared by all decoders
+  private static Map tagDictionaries = new HashMap();
+
+  // data members
+  /** The maximum number of chart items for the current sentence. */
+  protected int maxChartItems;
+  /** The number of chart items created so far for the current sentence. */
+  protected int numChartItems;
+  /** Whether the current sentence ran out of its time or item budget. */
+  protected boolean budgetExhausted;
+  /** Whether anytime mode was requested in the settings. */
+  protected boolean anytime;
+  /** The latency target for anytime mode, in milliseconds. */
+  protected int latencyTarget;
+  /** The initial prune factor for anytime mode, in base-10 units. */
+  protected double anytimeStartPruneFactor;
+  /** The prune factor increment for anytime mode, in base-10 units. */
+  protected double anytimePruneFactorIncrement;
+  /** The log-probability of the top item found for the last sentence. */
+  protected double topLogProb;
+  /** The prune factor that produced the last anytime parse. */
+  protected double anytimePruneFactor;
+  /** The tag dictionary, or <code>null</code> if tags are not restricted. */
+  protected TagDictionary tagDictionary;
+  /** The minimum relative frequency of a tag in the tag dictionary. */
+  protected double tagDictionaryThreshold;
+  /** The number of tags removed by the tag dictionary for the last sentence. */
+  protected int numPrunedTags;
+  /** The span constraints of the next sentence, or <code>null</code>. */
+  protected SpanConstraints spanConstraints;
+  /**
+   * The span constraints of the sentence being parsed, in terms of the words
+   * remaining after preprocessing, or <code>null</code>.
+   */
+  protected SpanConstraints activeSpanConstraints;
+  /** The number of spans skipped because of span constraints. */
+  protected int numSkippedSpans;
+  /** The number of items not built because of span constraints. */
+  protected int numVetoedItems;
+
+  // the original index of each word remaining during preprocessing
+  private int[] remainingWordIndices = new int[0];
+  private int numRemainingWords;
+
+  /**
+   * Constructs a new decoder that will use the specified server to get
+   * all information and probabilities required for decoding.
+   *
+   * @param id the id of this decoder
+   * @param server the server from which to get information and probabilities
+   */
+  public Decoder(int id, DecoderServerRemote server) {
+    super(id, server);
+    maxChartItems = Settings.getIntProperty(maxChartItemsProperty, 0);
+    anytime = Settings.getBooleanProperty(anytimeProperty, false);
+    latencyTarget = Settings.getIntProperty(latencyTargetProperty, 0);
+    anytimeStartPruneFactor =
+      getDoubleProperty(anytimeStartPruneFactorProperty, 1.0);
+    anytimePruneFactorIncrement =
+      getDoubleProperty(anytimePruneFactorIncrementProperty, 1.0);
+    String tagDictionaryFilename = Settings.get(tagDictionaryProperty);
+    if (tagDictionaryFilename != null)
+      tagDictionary = getTagDictionary(tagDictionaryFilename);
+    tagDictionaryThreshold =
+      getDoubleProperty(tagDictionaryThresholdProperty, 0.01);
+  }
+
+  private static synchronized TagDictionary
+    getTagDictionary(String filename) {
+    TagDictionary dictionary = (TagDictionary)tagDictionaries.get(filename);
+    if (dictionary == null) {
+      try {
+        dictionary = new TagDictionary(filename);
+        tagDictionaries.put(filename, dictionary);
+      }
+      catch (IOException ioe) {
+        System.err.println(className + ": warning: couldn't open tag " +
+                           "dictionary " + filename + " (" + ioe + "); " +
+                           "tags will not be restricted");
+      }
+    }
+    return dictionary;
+  }
+
+  private static double getDoubleProperty(String property,
+                                          double defaultValue) {
+    String value = Settings.get(property);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  /**
+   * Sets the time budget, in milliseconds, for subsequent sentences.
+   * A value of zero means there is no limit.
+   */
+  public void setMaxParseTime(int maxParseTime) {
+    this.maxParseTime = maxParseTime;
+  }
+
+  /**
+   * Sets the chart item budget for subsequent sentences.  A value of zero
+   * means there is no limit.
+   */
+  public void setMaxChartItems(int maxChartItems) {
+    this.maxChartItems = maxChartItems;
+  }
+
+  /**
+   * Sets the initial and maximum beam widths for subsequent sentences, using
+   * the same base-10 units as the <tt>parser.decoder.pruneFactor</tt> and
+   * <tt>parser.decoder.maxPruneFactor</tt> settings.
+   */
+  public void setPruneFactors(double pruneFactor, double maxPruneFactor) {
+    pruneFact = Math.log(10) * pruneFactor;
+    maxPruneFact = Math.log(10) * maxPruneFactor;
+  }
+
+  /** Returns the initial beam width, in base-10 units. */
+  public double getPruneFactor() { return pruneFact / Math.log(10); }
+
+  /** Returns the maximum beam width, in base-10 units. */
+  public double getMaxPruneFactor() { return maxPruneFact / Math.log(10); }
+
+  /**
+   * Makes this decoder keep the derivation of every chart item, including
+   * the items discarded in favor of equivalent ones, so that
+   * {@link #kBestParses(int)} may be called after each sentence.
+   *
+   * @see KBestChart
+   */
+  public void keepDerivations() {
+    if (chart instanceof KBestChart)
+      return;
+    chart = new KBestChart(cellLimit, pruneFact);
+    if (!Settings.getBoolean(Settings.decoderUsePruneFactor))
+      chart.dontDoPruning();
+  }
+
+  /**
+   * Returns the <i>k</i> best distinct parses of the sentence most recently
+   * parsed by {@link #parseSentence(SexpList)}, best first, read lazily from
+   * its chart.  Each element of the returned list is a list of two elements:
+   * the log-probability of the parse and the parse itself.  The list is
+   * empty if the sentence had no parse or if {@link #keepDerivations()} was
+   * not called before the sentence was parsed.  This method must be called
+   * before the next sentence is parsed.
+   *
+   * @param k the maximum number of parses to return
+   */
+  public SexpList kBestParses(int k) {
+    SexpList parses = new SexpList(k);
+    if (!(chart instanceof KBestChart) || sentLen == 0)
+      return parses;
+    List topItems = new ArrayList();
+    for (Iterator it = chart.get(0, sentLen - 1); it.hasNext(); ) {
+      CKYItem item = (CKYItem)it.next();
+      if (item.label() == topSym)
+        topItems.add(item);
+    }
+    KBestExtractor extractor = new KBestExtractor(topItems.iterator());
+    // derivations that differ only in ways erased by post-processing yield
+    // the same tree
+    Set seen = new HashSet();
+    for (int i = 0; i < k * maxDerivationsPerTree && parses.length() < k;
+         i++) {
+      KBestExtractor.Derivation derivation = extractor.next();
+      if (derivation == null)
+        break;
+      Sexp tree = derivation.toSexp();
+      postProcess(tree);
+      if (seen.add(tree.toString()))
+        parses.add(new SexpList(2).add(
+          Symbol.add(String.valueOf(derivation.logProb()))).add(tree));
+    }
+    return parses;
+  }
+
+  /**
+   * Sets the span constraints of the sentences parsed from now on, or
+   * removes them if <code>spanConstraints</code> is <code>null</code>.  The
+   * spans refer to the words passed to {@link #parseSentence(SexpList)}.
+   */
+  public void setSpanConstraints(SpanConstraints spanConstraints) {
+    this.spanConstraints = spanConstraints;
+  }
+
+  /**
+   * Returns the number of spans of the last sentence whose chart cells were
+   * not filled because of span constraints.
+   */
+  public int numSkippedSpans() { return numSkippedSpans; }
+
+  /**
+   * Returns the number of items of the last sentence that were not built
+   * because of span constraints.
+   */
+  public int numVetoedItems() { return numVetoedItems; }
+
+  /**
+   * Returns whether the most recently parsed sentence ran out of its time or
+   * chart item budget.
+   */
+  public boolean budgetExhausted() { return budgetExhausted; }
+
+  /** Returns the number of chart items created for the last sentence. */
+  public int numChartItems() { return numChartItems; }
+
+  /**
+   * Returns the number of tags removed by the tag dictionary for the last
+   * sentence.
+   */
+  public int numPrunedTags() { return numPrunedTags; }
+
+  /** Returns whether anytime mode was requested in the settings. */
+  public boolean anytime() { return anytime; }
+
+  /** Returns the latency target for anytime mode, in milliseconds. */
+  public int latencyTarget() { return latencyTarget; }
+
+  /**
+   * Returns the log-probability of the tree most recently returned by
+   * {@link #parseSentence(SexpList)} or {@link #parseAnytime(SexpList,int)}.
+   */
+  public double topLogProb() { return topLogProb; }
+
+  /**
+   * Returns the prune factor, in base-10 units, of the attempt that produced
+   * the tree most recently returned by {@link #parseAnytime(SexpList,int)}.
+   */
+  public double anytimePruneFactor() { return anytimePruneFactor; }
+
+  /**
+   * Parses the specified sentence of words within the current budgets.
+   * The specified list is not modified.
+   *
+   * @param sentence a list of words
+   * @return the highest-scoring parse, or <code>null</code> if no parse
+   * could be found
+   */
+  public Sexp parseSentence(SexpList sentence) throws RemoteException {
+    numChartItems = 0;
+    numPrunedTags = 0;
+    numSkippedSpans = 0;
+    numVetoedItems = 0;
+    budgetExhausted = false;
+    topLogProb = Double.NEGATIVE_INFINITY;
+    Sexp tree = parse((SexpList)sentence.deepCopy());
+    if (maxParseTime > 0 && time.elapsedMillis() > maxParseTime)
+      budgetExhausted = true;
+    return tree;
+  }
+
+  /**
+   * Parses the specified sentence in anytime mode.  The sentence is first
+   * decoded with the initial anytime prune factor; the beam is then widened
+   * by the anytime increment, up to the maximum prune factor, as long as the
+   * next attempt is expected to finish within the latency target, judging by
+   * how the time of the previous attempts grew.  The best complete parse
+   * found by any attempt is returned.  The specified list is not modified.
+   *
+   * @param sentence a list of words
+   * @param latencyTarget the time, in milliseconds, within which a parse
+   * should be returned, or zero to try every beam width
+   * @return the highest-scoring parse found, or <code>null</code> if no
+   * attempt found a parse
+   */
+  public Sexp parseAnytime(SexpList sentence, int latencyTarget)
+    throws RemoteException {
+    double savedPruneFactor = getPruneFactor();
+    double savedMaxPruneFactor = getMaxPruneFactor();
+    int savedMaxParseTime = maxParseTime;
+    double lastPruneFactor = savedMaxPruneFactor +
+                             anytimePruneFactorIncrement / 2;
+
+    Time totalTime = new Time();
+    Sexp best = null;
+    double bestLogProb = Double.NEGATIVE_INFINITY;
+    double bestPruneFactor = 0.0;
+    int totalChartItems = 0;
+    long prevAttemptTime = 0, lastAttemptTime = 0;
+    boolean outOfTime = false;
+    try {
+      for (double pruneFactor = anytimeStartPruneFactor;
+           pruneFactor <= lastPruneFactor;
+           pruneFactor += anytimePruneFactorIncrement) {
+        long remaining = latencyTarget - totalTime.elapsedMillis();
+        if (latencyTarget > 0) {
+          if (remaining <= 0) {
+            outOfTime = true;
+            break;
+          }
+          if (best != null) {
+            // wider beams cost more; assume the growth of the last step
+            // repeats itself
+            long estimate = prevAttemptTime > 0 ?
+              lastAttemptTime * lastAttemptTime / prevAttemptTime :
+              2 * lastAttemptTime;
+            if (estimate > remaining)
+              break;
+          }
+        }
+        setPruneFactors(pruneFactor, pruneFactor);
+        maxParseTime = latencyTarget > 0 ? (int)remaining : savedMaxParseTime;
+        Time attemptTime = new Time();
+        Sexp tree = parseSentence(sentence);
+        prevAttemptTime = Math.max(lastAttemptTime, 1);
+        lastAttemptTime = Math.max(attemptTime.elapsedMillis(), 1);
+        totalChartItems += numChartItems;
+        if (tree != null && topLogProb > bestLogProb) {
+          best = tree;
+          bestLogProb = topLogProb;
+          bestPruneFactor = pruneFactor;
+        }
+        if (budgetExhausted) {
+          outOfTime = true;
+          break;
+        }
+      }
+    }
+    finally {
+      setPruneFactors(savedPruneFactor, savedMaxPruneFactor);
+      maxParseTime = savedMaxParseTime;
+    }
+    numChartItems = totalChartItems;
+    topLogProb = bestLogProb;
+    anytimePruneFactor = bestPruneFactor;
+    budgetExhausted = best == null && outOfTime;
+    return best;
+  }
+
+  /**
+   * Builds a flat tree for the specified sentence, in which every word is
+   * attached directly to a sentence node.  Each word receives the first tag
+   * seen with it (or with its word-feature vector) during training, or
+   * <code>defaultTag</code> if there is none.
+   */
+  public Sexp flatParse(SexpList sentence, Symbol defaultTag) {
+    SexpList tree = new SexpList(sentence.length() + 1);
+    tree.add(Language.treebank().sentenceLabel());
+    for (int i = 0; i < sentence.length(); i++) {
+      Symbol word = sentence.symbolAt(i);
+      Symbol tag = firstTag(posMap, word);
+      if (tag == null)
+        tag = firstTag(posMap, Language.wordFeatures().features(word, i == 0));
+      tree.add(new SexpList(2).add(tag == null ? defaultTag : tag).add(word));
+    }
+    return tree;
+  }
+
+  private static Symbol firstTag(Map posMap, Symbol word) {
+    Object tags = posMap.get(word);
+    if (tags instanceof SexpList && ((SexpList)tags).length() > 0)
+      return ((SexpList)tags).symbolAt(0);
+    return null;
+  }
+
+  /**
+   * Gets the tag set of the specified word as usual and, if there is a tag
+   * dictionary, keeps only the tags it allows for the word.  Tags supplied
+   * with the input are never restricted, and if the dictionary allows none
+   * of the usual tags, they are all kept.
+   */
+  protected SexpList getTagSet(SexpList tags, int wordIdx, Symbol word,
+                               boolean wordIsUnknown, Symbol origWord,
+                               HashSet tmpSet) {
+    SexpList tagSet = super.getTagSet(tags, wordIdx, word, wordIsUnknown,
+                                      origWord, tmpSet);
+    if (tagDictionary == null || tags != null || tagSet.length() <= 1)
+      return tagSet;
+    SexpList allowed =
+      tagDictionary.wordTags(origWord, tagDictionaryThreshold);
+    if (allowed == null) {
+      Symbol features = Language.wordFeatures().features(origWord,
+                                                         wordIdx == 0);
+      allowed = tagDictionary.featureTags(features, tagDictionaryThreshold);
+    }
+    if (allowed == null)
+      return tagSet;
+    SexpList restricted = new SexpList(allowed.length());
+    for (int i = 0; i < tagSet.length(); i++)
+      if (allowed.contains(tagSet.get(i)))
+        restricted.add(tagSet.get(i));
+    if (restricted.length() == 0)
+      return tagSet;
+    numPrunedTags += tagSet.length() - restricted.length();
+    return restricted;
+  }
+
+  /**
+   * Preprocesses the sentence as usual and then maps the span constraints,
+   * if any, to the words that remain.
+   */
+  protected void preProcess(SexpList sentence, SexpList tags)
+    throws RemoteException {
+    if (remainingWordIndices.length < sentence.length())
+      remainingWordIndices = new int[sentence.length()];
+    for (int i = 0; i < sentence.length(); i++)
+      remainingWordIndices[i] = i;
+    numRemainingWords = sentence.length();
+    super.preProcess(sentence, tags);
+    activeSpanConstraints = spanConstraints == null ? null :
+      spanConstraints.forRemainingWords(remainingWordIndices,
+                                        numRemainingWords);
+  }
+
+  /** Removes a word as usual, keeping track of the remaining words. */
+  protected void removeWord(SexpList sentence, SexpList tags, int idx) {
+    super.removeWord(sentence, tags, idx);
+    System.arraycopy(remainingWordIndices, idx + 1, remainingWordIndices, idx,
+                     numRemainingWords - idx - 1);
+    numRemainingWords--;
+  }
+
+  /**
+   * Joins the specified items as usual, unless the span constraints rule out
+   * the resulting item.
+   */
+  protected void joinItems(CKYItem modificand, CKYItem modifier,
+                           boolean side) throws RemoteException {
+    if (activeSpanConstraints != null &&
+        activeSpanConstraints.violatedByJoin(modificand, modifier)) {
+      numVetoedItems++;
+      return;
+    }
+    super.joinItems(modificand, modifier, side);
+  }
+
+  /**
+   * Adds the stop probabilities of the specified item as usual, unless a
+   * forbidden span rules out the resulting constituent.
+   */
+  protected List addStopProbs(CKYItem item, List itemsAdded)
+    throws RemoteException {
+    if (activeSpanConstraints != null && activeSpanConstraints.forbids(item)) {
+      numVetoedItems++;
+      return itemsAdded;
+    }
+    return super.addStopProbs(item, itemsAdded);
+  }
+
+  /**
+   * Checks the chart item budget before completing the specified span, and
+   * stops filling the chart once the budget has been used up.
+   */
+  protected void complete(int start, int end)
+    throws RemoteException, TimeoutException {
+    if (budgetExhausted)
+      return;
+    if (maxChartItems > 0 && numChartItems > maxChartItems) {
+      System.err.println(className + ": ran out of chart items (>" +
+                         maxChartItems + ") on sentence " + sentenceIdx);
+      budgetExhausted = true;
+      return;
+    }
+    if (activeSpanConstraints != null &&
+        activeSpanConstraints.crossesRequired(start, end)) {
+      numSkippedSpans++;
+      return;
+    }
+    super.complete(start, end);
+    numChartItems += chart.numItems(start, end);
+  }
+
+  /**
+   * Adds the top unaries as usual and then records the log-probability of
+   * the best item spanning the sentence, if any.
+   */
+  protected void addTopUnaries(int end) throws RemoteException {
+    super.addTopUnaries(end);
+    CKYItem topItem = (CKYItem)chart.getTopItem(0, end);
+    if (topItem != null && topItem.label() == topSym)
+      topLogProb = Math.max(topLogProb, topItem.logProb());
+  }
+}
@@ -0,0 +1,244 @@
+package portuguese;
+
+import java.io.*;
+import java.rmi.RemoteException;
+import danbikel.lisp.Sexp;
+import danbikel.lisp.SexpList;
+import danbikel.lisp.Symbol;
+import danbikel.parser.Constants;
+import danbikel.parser.Language;
+import danbikel.parser.Model;
+import danbikel.parser.ModelCollection;
+import danbikel.parser.Settings;
+import danbikel.parser.TrainerEvent;
+import danbikel.util.Time;
+
+/**
+ * A decoder server for the Portuguese language package that loads its
+ * derived data file through {@link GZIPStreams}, so that a gzipped file is
+ * decompressed on a background thread while the model is being
+ * deserialized.
+ * <p>
+ * When used in the same process as its decoders, as by
+ * {@link ParseScheduler}, this server also keeps the probabilities requested
+ * by the decoders in a single {@link SharedProbabilityCache}, so that a
+ * probability is computed once per process instead of once per decoder.
+ * The cache is used only when <tt>parser.sharedCache.size</tt> is greater
+ * than zero; the per-decoder cache turned on by
+ * <tt>parser.decoder.useLocalProbabilityCache</tt> should then be left off.
+ * <p>
+ * When <tt>parser.decoder.vocabulary</tt> names a {@link Vocabulary} file
+ * written for the model, the words of a sentence are told from unknown words
+ * by their counts in the vocabulary, and the table of word counts of the
+ * model, which is not used otherwise, is emptied to free the heap it
+ * takes.
+ * <p>
+ * This class may be used by the standard parser by setting the property
+ * <tt>parser.parser.decoderServerClass</tt> to
+ * <tt>portuguese.DecoderServer</tt>.
+ */
+public class DecoderServer extends danbikel.parser.DecoderServer {
+  // constants
+  private final static String className = DecoderServer.class.getName();
+
+  /**
+   * The property specifying the maximum number of entries of the shared
+   * probability cache (0 to turn the cache off).
+   */
+  public final static String sharedCacheSizeProperty =
+    "parser.sharedCache.size";
+  /** The property specifying the number of stripes of the shared cache. */
+  public final static String sharedCacheStripesProperty =
+    "parser.sharedCache.numStripes";
+  /** The property specifying the vocabulary file of the model. */
+  public final static String vocabularyProperty = "parser.decoder.vocabulary";
+
+  // the models cached in the shared cache, indexed as in modelNames()
+  private final static int PRIOR = 0;
+  private final static int HEAD = 1;
+  private final static int LEFT_SUBCAT = 2;
+  private final static int RIGHT_SUBCAT = 3;
+  private final static int TOP = 4;
+  private final static int MOD = 5;
+
+  // data members
+  private SharedProbabilityCache cache;
+  private Vocabulary vocabulary;
+
+  /**
+   * Constructs a new server with the model in the specified derived data
+   * file.
+   *
+   * @param derivedDataFilename the file of derived counts written by the
+   * trainer (<tt>objects.gz</tt>)
+   */
+  public DecoderServer(String derivedDataFilename)
+    throws ClassNotFoundException, IOException, OptionalDataException {
+    super(derivedDataFilename);
+    int cacheSize = Settings.getIntProperty(sharedCacheSizeProperty, 0);
+    if (cacheSize > 0)
+      cache = new SharedProbabilityCache(
+        cacheSize, Settings.getIntProperty(sharedCacheStripesProperty, 64),
+        modelNames());
+    String vocabularyFilename = Settings.get(vocabularyProperty);
+    if (vocabularyFilename != null)
+      useVocabulary(vocabularyFilename);
+  }
+
+  /**
+   * Opens the specified vocabulary file and, if it has as many words as the
+   * table of word counts of the model, uses it in place of the table.
+   */
+  private void useVocabulary(String filename) throws IOException {
+    Vocabulary vocab = new Vocabulary(filename);
+    int numWords = modelCollection.vocabCounter().size();
+    if (vocab.size() != numWords) {
+      System.err.println(className + ": warning: ignoring " + filename +
+                         ", which has " + vocab.size() + " words where the " +
+                         "model has " + numWords);
+      return;
+    }
+    vocabulary = vocab;
+    modelCollection.vocabCounter().clear();
+    System.err.println(className + ": using the vocabulary of " + numWords +
+                       " words in " + filename);
+  }
+
+  /**
+   * Returns the names of the model structures behind each cached
+   * probability, joined by <tt>+</tt> where a probability is the product of
+   * two models.
+   */
+  private String[] modelNames() {
+    ModelCollection mc = modelCollection;
+    return new String[] {
+      name(mc.lexPriorModel()) + "+" + name(mc.nonterminalPriorModel()),
+      name(mc.headModel()),
+      name(mc.leftSubcatModel()),
+      name(mc.rightSubcatModel()),
+      name(mc.topNonterminalModel()) + "+" + name(mc.topLexModel()),
+      name(mc.modNonterminalModel()) + "+" + name(mc.modWordModel()),
+    };
+  }
+
+  private static String name(Model model) {
+    String name = model.getProbStructure().getClass().getName();
+    return name.substring(name.lastIndexOf('.') + 1);
+  }
+
+  /**
+   * Returns the statistics of the shared probability cache, or
+   * <code>null</code> if there is none.
+   */
+  public String getCacheStats() {
+    return cache == null ? null : cache.getStats();
+  }
+
+  /**
+   * Converts the specified word as the superclass does, but looks up its
+   * count, and the feature vector of a known word, in the vocabulary, if
+   * there is one.
+   */
+  public Sexp convertUnknownWord(Symbol word, int index)
+    throws RemoteException {
+    if (vocabulary == null)
+      return super.convertUnknownWord(word, index);
+    String key = word.toString();
+    if (downcaseWords)
+      key = key.toLowerCase();
+    int id = vocabulary.id(key);
+    int count = id == -1 ? 0 : vocabulary.count(id);
+    if (count >= unknownWordThreshold)
+      return word;
+    // the features of a downcased word may differ from those of the word
+    Symbol features = id != -1 && key.equals(word.toString()) ?
+      vocabulary.features(id, index == 0) :
+      Language.wordFeatures().features(word, index == 0);
+    return new SexpList(3).add(word).add(features).add(
+      count == 0 ? Constants.trueSym : Constants.falseSym);
+  }
+
+  public double logPrior(int id, TrainerEvent event) {
+    if (cache == null)
+      return super.logPrior(id, event);
+    double prob = cache.get(PRIOR, event);
+    if (Double.isNaN(prob)) {
+      prob = super.logPrior(id, event);
+      cache.put(PRIOR, event.copy(), prob);
+    }
+    return prob;
+  }
+
+  public double logProbHead(int id, TrainerEvent event) {
+    if (cache == null)
+      return super.logProbHead(id, event);
+    double prob = cache.get(HEAD, event);
+    if (Double.isNaN(prob)) {
+      prob = super.logProbHead(id, event);
+      cache.put(HEAD, event.copy(), prob);
+    }
+    return prob;
+  }
+
+  public double logProbLeftSubcat(int id, TrainerEvent event) {
+    if (cache == null)
+      return super.logProbLeftSubcat(id, event);
+    double prob = cache.get(LEFT_SUBCAT, event);
+    if (Double.isNaN(prob)) {
+      prob = super.logProbLeftSubcat(id, event);
+      cache.put(LEFT_SUBCAT, event.copy(), prob);
+    }
+    return prob;
+  }
+
+  public double logProbRightSubcat(int id, TrainerEvent event) {
+    if (cache == null)
+      return super.logProbRightSubcat(id, event);
+    double prob = cache.get(RIGHT_SUBCAT, event);
+    if (Double.isNaN(prob)) {
+      prob = super.logProbRightSubcat(id, event);
+      cache.put(RIGHT_SUBCAT, event.copy(), prob);
+    }
+    return prob;
+  }
+
+  public double logProbTop(int id, TrainerEvent event) {
+    if (cache == null)
+      return super.logProbTop(id, event);
+    double prob = cache.get(TOP, event);
+    if (Double.isNaN(prob)) {
+      prob = super.logProbTop(id, event);
+      cache.put(TOP, event.copy(), prob);
+    }
+    return prob;
+  }
+
+  public double logProbMod(int id, TrainerEvent event) {
+    if (cache == null)
+      return super.logProbMod(id, event);
+    double prob = cache.get(MOD, event);
+    if (Double.isNaN(prob)) {
+      prob = super.logProbMod(id, event);
+      cache.put(MOD, event.copy(), prob);
+    }
+    return prob;
+  }
+
+  /** Loads the model collection from the specified derived data file. */
+  protected void setModelCollection(String derivedDataFilename)
+    throws ClassNotFoundException, IOException, OptionalDataException {
+    System.err.println("\nLoading derived counts from object file \"" +
+                       derivedDataFilename + "\":");
+    Time time = new Time();
+    ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+      GZIPStreams.newInputStream(derivedDataFilename),
+      Constants.defaultFileBufsize));
+    try {
+      modelCollection = danbikel.parser.Trainer.loadModelCollection(in);
+    }
+    finally {
+      in.close();
+    }
+    System.err.println("Finished loading derived counts in " + time + ".");
+  }
+}
@@ -0,0 +1,150 @@
+package portuguese;
+
+import java.io.*;
+import java.util.*;
+import danbikel.lisp.*;
+import danbikel.parser.Language;
+import danbikel.parser.Treebank;
+
+/**
+ * Makes parser output scorable against gold trees, as
+ * {@link danbikel.parser.util.AddFakePos} does, but in the process that
+ * reads the trees, so that scoring needs no JVM of its own and no
+ * transcoding of its output.  A sentence the parser did not parse, which is
+ * output as the symbol <tt>null</tt> or as a list of words, is given the
+ * words of its gold tree, each with the part of speech {@link #fakePos},
+ * except for words whose gold part of speech is one that the scorer
+ * ignores (by default, the punctuation tags <tt>, : `` '' .</tt>), which
+ * keep their gold part of speech.  Trees are passed through unchanged.
+ * <p>
+ * Files are read and written with {@link TextFiles}.
+ */
+public class FakePos {
+  // constants
+  private final static String className = FakePos.class.getName();
+  private final static Symbol nullSym = Symbol.add("null");
+
+  /** The part of speech given to the words of sentences not parsed. */
+  public final static Symbol fakePos = Symbol.add("foo");
+
+  private final static String[] defaultPosPrunes = {",", ":", "``", "''", "."};
+
+  // data members
+  private Set posPrunes = new HashSet();
+  private SexpList goldPreterms = new SexpList();
+  private SexpList goldWords = new SexpList();
+
+  /**
+   * Constructs an aligner that keeps the gold parts of speech of the
+   * punctuation ignored by the scorer.
+   */
+  public FakePos() {
+    this(defaultPosPrunes);
+  }
+
+  /**
+   * Constructs an aligner that keeps the specified gold parts of speech.
+   */
+  public FakePos(String[] posPrunes) {
+    for (int i = 0; i < posPrunes.length; i++)
+      this.posPrunes.add(Symbol.add(posPrunes[i]));
+  }
+
+  /**
+   * Returns the specified parser output made scorable against the
+   * specified gold tree, which is modified by having its null elements
+   * removed.
+   */
+  public Sexp align(Sexp gold, Sexp parsed) {
+    gold = Language.training().removeNullElements(gold);
+    goldPreterms.clear();
+    goldWords.clear();
+    collectPreterms(Language.treebank(), gold, goldPreterms, goldWords);
+    if (parsed == nullSym)
+      parsed = new SexpList(goldWords);
+    if (parsed.isList() && parsed.list().isAllSymbols()) {
+      SexpList words = parsed.list();
+      // a word list that does not match the gold words one to one cannot
+      // take their parts of speech, so all of its words get the fake one
+      boolean aligned = words.length() == goldPreterms.length();
+      if (!aligned)
+        System.err.println(className + ": warning: " + words.length() +
+                           " words parsed but " + goldPreterms.length() +
+                           " in gold tree " + gold);
+      for (int i = 0; i < words.length(); i++) {
+        Sexp goldPos = aligned ? goldPreterms.listAt(i).get(0) : fakePos;
+        Sexp pos = posPrunes.contains(goldPos) ? goldPos : fakePos;
+        words.set(i, new SexpList(2).add(pos).add(words.get(i)));
+      }
+    }
+    return parsed;
+  }
+
+  private static void collectPreterms(Treebank treebank, Sexp tree,
+                                      SexpList preterms, SexpList words) {
+    if (treebank.isPreterminal(tree)) {
+      preterms.add(tree);
+      words.add(treebank.makeWord(tree).word());
+    }
+    else if (tree.isList()) {
+      SexpList treeList = tree.list();
+      for (int i = 1; i < treeList.length(); i++)
+        collectPreterms(treebank, treeList.get(i), preterms, words);
+    }
+  }
+
+  /**
+   * Writes the trees of a file of parser output, made scorable against the
+   * trees of a gold file, to another file.
+   *
+   * @return the number of trees written
+   */
+  public int writeScorable(String goldFilename, String parsedFilename,
+                           String outputFilename) throws IOException {
+    SexpTokenizer goldTok = TextFiles.newTokenizer(goldFilename);
+    SexpTokenizer parsedTok = TextFiles.newTokenizer(parsedFilename);
+    Writer out = TextFiles.newWriter(outputFilename);
+    int numTrees = 0;
+    Sexp parsed;
+    while ((parsed = Sexp.read(parsedTok)) != null) {
+      Sexp gold = Sexp.read(goldTok);
+      if (gold == null) {
+        System.err.println(className + ": error: ran out of sentences in " +
+                           "gold file after " + numTrees + " sentences");
+        break;
+      }
+      out.write(String.valueOf(align(gold, parsed)));
+      out.write("\n");
+      numTrees++;
+    }
+    out.close();
+    return numTrees;
+  }
+
+  private static void usage() {
+    System.err.println("usage: <gold file> <parsed file> <output file> " +
+                       "[parts of speech to keep]+");
+    System.exit(1);
+  }
+
+  /**
+   * Writes a file of parser output made scorable against a gold file.
+   *
+   * @param args usage: <tt>&lt;gold file&gt; &lt;parsed file&gt;
+   * &lt;output file&gt; [parts of speech to keep]+</tt>
+   */
+  public static void main(String[] args) {
+    if (args.length < 3)
+      usage();
+    FakePos fakePos = args.length == 3 ? new FakePos() :
+      new FakePos(Arrays.asList(args).subList(3, args.length).
+                  toArray(new String[args.length - 3]));
+    try {
+      fakePos.writeScorable(args[0], args[1], args[2]);
+    }
+    catch (IOException ioe) {
+      System.err.println(className + ": " + ioe);
+      System.exit(1);
+    }
+  }
+}
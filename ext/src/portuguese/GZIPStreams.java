@@ -0,0 +1,75 @@
+package portuguese;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import danbikel.parser.Settings;
+
+/**
+ * Static methods to open the trainer's and parser's data files, such as
+ * <tt>observed.gz</tt> and <tt>objects.gz</tt>.  Files whose names end in
+ * <tt>.gz</tt> are written with a {@link ParallelGZIPOutputStream} and read
+ * with a {@link GZIPInputStream} that is read ahead by a
+ * {@link ReadAheadInputStream}; other files are read and written as they
+ * are.
+ * <p>
+ * The following settings control these streams:
+ * <table>
+ * <tr><td><tt>parser.gzip.numThreads</tt></td>
+ *     <td>number of compressing threads (default: number of processors)</td></tr>
+ * <tr><td><tt>parser.gzip.blockSize</tt></td>
+ *     <td>uncompressed bytes per gzip member (default 1048576)</td></tr>
+ * <tr><td><tt>parser.gzip.readAhead</tt></td>
+ *     <td>whether to decompress on a background thread (default true)</td></tr>
+ * </table>
+ */
+public class GZIPStreams {
+  /** The property specifying the number of compressing threads. */
+  public final static String numThreadsProperty = "parser.gzip.numThreads";
+  /** The property specifying the number of uncompressed bytes per member. */
+  public final static String blockSizeProperty = "parser.gzip.blockSize";
+  /** The property specifying whether to decompress on a background thread. */
+  public final static String readAheadProperty = "parser.gzip.readAhead";
+
+  /** The suffix of gzipped files. */
+  public final static String gzipSuffix = ".gz";
+
+  private final static int defaultBlockSize = 1 << 20;
+  private final static int chunkSize = 1 << 16;
+  private final static int maxChunks = 64;
+
+  private GZIPStreams() {}
+
+  /**
+   * Opens the specified file for writing, compressing it in parallel if its
+   * name ends in <tt>.gz</tt>.
+   */
+  public static OutputStream newOutputStream(String filename)
+    throws IOException {
+    OutputStream out = new FileOutputStream(filename);
+    if (!filename.endsWith(gzipSuffix))
+      return out;
+    int numThreads =
+      Settings.getIntProperty(numThreadsProperty,
+                              Runtime.getRuntime().availableProcessors());
+    int blockSize = Settings.getIntProperty(blockSizeProperty,
+                                            defaultBlockSize);
+    return new ParallelGZIPOutputStream(out, blockSize, numThreads);
+  }
+
+  /**
+   * Opens the specified file for reading, decompressing it ahead of the
+   * caller if its name ends in <tt>.gz</tt>.  Any gzip file can be read,
+   * including those written by <tt>gzip</tt> or
+   * {@link java.util.zip.GZIPOutputStream}.
+   */
+  public static InputStream newInputStream(String filename)
+    throws IOException {
+    InputStream in = new FileInputStream(filename);
+    if (!filename.endsWith(gzipSuffix))
+      return in;
+    in = new GZIPInputStream(in, chunkSize);
+    if (!Settings.getBooleanProperty(readAheadProperty, true))
+      return in;
+    return new ReadAheadInputStream(in, chunkSize, maxChunks);
+  }
+}
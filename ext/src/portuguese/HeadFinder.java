@@ -37,9 +37,19 @@ import danbikel.parser.Constants;
  * a syntax tree).  Because a default head-finding rule is always supplied
  * even if one is not specified, it is guaranteed that every tree in which
  * head-finding is performed will have a unique head-lexicalization.
+ * <p>
+ * When constructed by {@link Language}, this class reads its head table only
+ * when it is first asked to find a head, so that tools that load the
+ * language package without finding heads do not pay for reading it.
  */
 public class HeadFinder extends danbikel.parser.lang.AbstractHeadFinder {
-  Treebank treebank = Language.treebank();
+  // constants
+  private final static String className = HeadFinder.class.getName();
+  // stands for the head table while it has not been read
+  private final static SexpList unreadHeadTable = new SexpList(0);
+
+  // data members
+  private volatile boolean headTableUnread;
 
   /**
    * Constructs an English head-finding object, getting the name of the head
@@ -49,12 +59,14 @@ public class HeadFinder extends danbikel.parser.lang.AbstractHeadFinder {
    * by the method {@link Settings#getFileOrResourceAsStream(Class,String)}.
    * <p>
    * This constructor will be invoked upon the initialization of the
-   * <code>Language</code> class.
+   * <code>Language</code> class.  The head table is read the first time a
+   * head is found.
    *
    * @see Settings#getFileOrResourceAsStream(Class, String)
    */
   public HeadFinder() throws IOException, FileNotFoundException {
-    super();
+    super(unreadHeadTable);
+    headTableUnread = true;
   }
 
   /**
@@ -64,6 +76,56 @@ public class HeadFinder extends danbikel.parser.lang.AbstractHeadFinder {
     super(headTableSexp);
   }
 
+  /** Does nothing for the stand-in of a head table that has not been read. */
+  protected void readHeadTable(Sexp headTableSexp) {
+    if (headTableSexp != unreadHeadTable)
+      super.readHeadTable(headTableSexp);
+  }
+
+  /**
+   * Reads the head table named by the settings, exactly as the default
+   * constructor of the superclass would have, if it has not been read yet.
+   */
+  private synchronized void readHeadTableIfUnread() {
+    if (!headTableUnread)
+      return;
+    String headTableResource =
+      Settings.get(Settings.headTablePrefix + Language.getLanguage());
+    if (headTableResource == null) {
+      System.err.println(className + ": warning: the property \"" +
+                         Settings.headTablePrefix + Language.getLanguage() +
+                         "\" was not set;\n\tusing fallback default \"" +
+                         fallbackDefaultHeadTableResource + "\"");
+      headTableResource = fallbackDefaultHeadTableResource;
+    }
+    try {
+      InputStream is = Settings.getFileOrResourceAsStream(getClass(),
+                                                          headTableResource);
+      int bufSize = Constants.defaultFileBufsize;
+      SexpTokenizer headTableTok =
+        new SexpTokenizer(is, Language.encoding(), bufSize);
+      super.readHeadTable(Sexp.read(headTableTok));
+      is.close();
+    }
+    catch (IOException ioe) {
+      throw new RuntimeException(className + ": couldn't read head table \"" +
+                                 headTableResource + "\": " + ioe);
+    }
+    headTableUnread = false;
+  }
+
+  /**
+   * Forgets the head table read so far and reads the one named by the
+   * settings now.  This object is kept by the classes that find heads for as
+   * long as the process runs, so {@link MultiTrainer} calls this method to
+   * switch from the head table of one configuration to that of the next.
+   */
+  synchronized void rereadHeadTable() {
+    headFindInstructions.clear();
+    headTableUnread = true;
+    readHeadTableIfUnread();
+  }
+
   /**
    * Finds the head for the grammar production <code>lhs -> rhs</code>.  This
    * method destructively modifies <code>rhs</code> to contain only
@@ -86,6 +148,22 @@ public class HeadFinder extends danbikel.parser.lang.AbstractHeadFinder {
    * @see Treebank#isConjunction(Symbol)
    */
   public int findHead(Sexp tree, Symbol lhs, SexpList rhs) {
+    if (!TrainingProfiler.enabled)
+      return findHeadOfCanonicals(tree, lhs, rhs);
+    TrainingProfiler.enter(TrainingProfiler.HEAD_FINDING);
+    try {
+      return findHeadOfCanonicals(tree, lhs, rhs);
+    }
+    finally {
+      TrainingProfiler.exit(TrainingProfiler.HEAD_FINDING);
+    }
+  }
+
+  private int findHeadOfCanonicals(Sexp tree, Symbol lhs, SexpList rhs) {
+    if (headTableUnread)
+      readHeadTableIfUnread();
+    Treebank treebank = Language.treebank();
+
     // destructively modify rhs, resetting all elements to be their canonicals
     int rhsSize = rhs.size();
     for (int i = 0; i < rhsSize; i++)
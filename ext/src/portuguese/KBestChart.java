@@ -0,0 +1,95 @@
+package portuguese;
+
+import java.util.Collection;
+import danbikel.parser.CKYChart;
+import danbikel.parser.CKYItem;
+import danbikel.parser.Item;
+import danbikel.parser.Settings;
+import danbikel.util.ObjectBank;
+import danbikel.util.ObjectPool;
+
+/**
+ * A chart whose items are {@link KBestItem} objects and whose discarded
+ * items are never returned to the item pool, so that the derivation of every
+ * item, including the items the chart discarded, stays intact until the next
+ * sentence is parsed.  The items of a finished chart are read by a
+ * {@link KBestExtractor}.
+ * <p>
+ * When <tt>parser.chart.recycleItems</tt> is <tt>true</tt>, items are
+ * handed out by an {@link ObjectBank} instead of an item pool: every item
+ * handed out for a sentence is taken back at once when the chart is cleared
+ * for the next sentence, so that the items of one sentence are reused for
+ * the next instead of being left for the garbage collector.  This lowers the
+ * bytes allocated per sentence, but the recycled items live long enough to
+ * be promoted to the old generation, where each one that is filled in again
+ * points to new objects that every young collection must then trace, so
+ * collections take longer; the setting is <tt>false</tt> by default.
+ * <p>
+ * The <tt>parser.chart.itemClass</tt> setting is ignored by this chart.
+ */
+public class KBestChart extends CKYChart {
+  // constants
+  private final static int initialPoolSize = 50000;
+
+  /**
+   * The property to specify whether the items of a sentence are reused for
+   * the next sentence.
+   */
+  public final static String recycleItemsProperty =
+    "parser.chart.recycleItems";
+
+  // data members
+  private ObjectBank itemBank;
+
+  /**
+   * Constructs a chart with the specified cell limit and prune factor.
+   *
+   * @param cellLimit the maximum number of items per cell
+   * @param pruneFact the natural log of the beam width
+   */
+  public KBestChart(int cellLimit, double pruneFact) {
+    super(cellLimit, pruneFact);
+  }
+
+  protected void setUpItemPool() {
+    if (Settings.getBooleanProperty(recycleItemsProperty, false))
+      itemBank = new ObjectBank(KBestItem.class, initialPoolSize);
+    else
+      itemPool = new ObjectPool(KBestItem.class, initialPoolSize);
+  }
+
+  /**
+   * Returns a new item or, when items are recycled, an item of the bank,
+   * cleared of what it held when it was last handed out.
+   */
+  public CKYItem getNewItem() {
+    if (itemBank == null)
+      return super.getNewItem();
+    return (CKYItem)((Item)itemBank.get()).clear();
+  }
+
+  /**
+   * Clears the chart, first taking back every item handed out since it was
+   * last cleared when items are recycled.
+   */
+  public void clear() {
+    if (itemBank != null)
+      itemBank.reclaimAll();
+    super.clear();
+  }
+
+  /**
+   * Does nothing: the item may be the antecedent or the alternative of an
+   * item in the chart.
+   */
+  protected void reclaimItem(Item item) {
+  }
+
+  /**
+   * Does nothing: the items in the chart are needed after parsing, and they
+   * are left for the garbage collector, or taken back when items are
+   * recycled, once the chart is cleared.
+   */
+  protected void reclaimItemCollection(Collection c) {
+  }
+}
@@ -0,0 +1,271 @@
+package portuguese;
+
+import java.util.*;
+import danbikel.lisp.Sexp;
+import danbikel.parser.CKYItem;
+import danbikel.util.SLNode;
+
+/**
+ * Reads the derivations of a sentence from a finished {@link KBestChart} in
+ * order of decreasing probability, one at a time, without decoding again and
+ * without expanding every derivation in the chart.
+ * <p>
+ * The chart is seen as a hypergraph: every equivalence class of items is a
+ * node, and every item of the class, whether kept by the chart or discarded
+ * in favor of an equivalent item, is an incoming hyperedge whose tails are
+ * the classes of the items from which it was built.  The derivations of each
+ * node are enumerated lazily, as in Algorithm 3 of Huang and Chiang
+ * (2005), <i>Better k-best parsing</i>: a node keeps the derivations found so
+ * far and a heap of candidates, and the next derivation of a node is found by
+ * replacing, one tail at a time, the sub-derivation of the last derivation
+ * taken from that node by the next-best one, which is itself computed only
+ * when it is first needed.  The score of a derivation is the score of its
+ * hyperedge's item with the scores of the sub-derivations of that item
+ * replaced by those of the chosen sub-derivations.
+ */
+public class KBestExtractor {
+  // data members
+  private Map nodes = new IdentityHashMap();
+  private Node root;
+
+  /**
+   * Creates an extractor of the derivations of the specified items, which
+   * should be the complete parses of a sentence in the cell spanning it.
+   *
+   * @param topItems an iterator over {@link KBestItem} objects
+   */
+  public KBestExtractor(Iterator topItems) {
+    List roots = new ArrayList();
+    while (topItems.hasNext())
+      roots.add(topItems.next());
+    root = new Node(roots);
+  }
+
+  /**
+   * Returns the next-best derivation, or <code>null</code> if there are no
+   * more derivations.
+   */
+  public Derivation next() {
+    return root.derivation(root.derivations.size());
+  }
+
+  private Node node(KBestItem item) {
+    KBestItem representative = item.representative();
+    Node node = (Node)nodes.get(representative);
+    if (node == null) {
+      node = new Node(representative);
+      nodes.put(representative, node);
+    }
+    return node;
+  }
+
+  private final static Comparator byScore = new Comparator() {
+    public int compare(Object o1, Object o2) {
+      return Double.compare(((Derivation)o2).score, ((Derivation)o1).score);
+    }
+  };
+
+  /** An equivalence class of items and its derivations found so far. */
+  private class Node {
+    // the items of this class, one per hyperedge; for the root, the top
+    // items, each of which is the head of a unary hyperedge
+    private KBestItem[] edges;
+    private boolean isRoot;
+    private List derivations = new ArrayList();
+    private PriorityQueue candidates = new PriorityQueue(11, byScore);
+    private Set seen = new HashSet();
+    private boolean initialized;
+    private boolean busy;
+
+    Node(KBestItem representative) {
+      List alternatives = representative.alternatives();
+      int numEdges = 1 + (alternatives == null ? 0 : alternatives.size());
+      edges = new KBestItem[numEdges];
+      edges[0] = representative;
+      for (int i = 1; i < numEdges; i++)
+        edges[i] = (KBestItem)alternatives.get(i - 1);
+    }
+
+    Node(List topItems) {
+      edges = (KBestItem[])topItems.toArray(new KBestItem[topItems.size()]);
+      isRoot = true;
+    }
+
+    int numTails(KBestItem edge) {
+      return isRoot ? 1 : edge.numAntecedents();
+    }
+
+    Node tail(KBestItem edge, int i) {
+      return node(isRoot ? edge : (KBestItem)edge.antecedent(i));
+    }
+
+    /**
+     * Returns the specified derivation of this node (0 being the best), or
+     * <code>null</code> if there is no such derivation.
+     */
+    Derivation derivation(int k) {
+      if (k < derivations.size())
+        return (Derivation)derivations.get(k);
+      // a derivation that contains its own node, through a chain of unary
+      // items, is not enumerated
+      if (busy)
+        return null;
+      busy = true;
+      try {
+        if (!initialized) {
+          initialized = true;
+          for (int e = 0; e < edges.length; e++)
+            push(e, new int[numTails(edges[e])]);
+        }
+        while (derivations.size() <= k) {
+          if (derivations.size() > 0) {
+            Derivation last =
+              (Derivation)derivations.get(derivations.size() - 1);
+            for (int i = 0; i < last.ranks.length; i++) {
+              int[] ranks = last.ranks.clone();
+              ranks[i]++;
+              push(last.edge, ranks);
+            }
+          }
+          if (candidates.isEmpty())
+            return null;
+          derivations.add(candidates.poll());
+        }
+        return (Derivation)derivations.get(k);
+      }
+      finally {
+        busy = false;
+      }
+    }
+
+    /** Adds a candidate derivation, unless it was already added. */
+    private void push(int e, int[] ranks) {
+      KBestItem edge = edges[e];
+      Derivation[] tails = new Derivation[ranks.length];
+      double score;
+      if (isRoot)
+        score = edge.logPrior();
+      else {
+        score = edge.logTreeProb();
+        for (int i = 0; i < ranks.length; i++)
+          score -= edge.antecedent(i).logTreeProb();
+      }
+      for (int i = 0; i < ranks.length; i++) {
+        tails[i] = tail(edge, i).derivation(ranks[i]);
+        if (tails[i] == null)
+          return;
+        score += tails[i].score;
+      }
+      Derivation candidate = new Derivation(e, ranks, edge, tails, score);
+      if (seen.add(candidate))
+        candidates.add(candidate);
+    }
+  }
+
+  /**
+   * A derivation of an equivalence class of items: one of its items and a
+   * derivation of each of the items from which that item was built.
+   */
+  public static class Derivation {
+    private int edge;
+    private int[] ranks;
+    private KBestItem item;
+    private Derivation[] tails;
+    private double score;
+
+    Derivation(int edge, int[] ranks, KBestItem item, Derivation[] tails,
+               double score) {
+      this.edge = edge;
+      this.ranks = ranks;
+      this.item = item;
+      this.tails = tails;
+      this.score = score;
+    }
+
+    /** Returns the log-probability of this derivation. */
+    public double logProb() { return score; }
+
+    /** Returns the tree of this derivation, without its top node. */
+    public Sexp toSexp() {
+      // a root derivation has the top item's derivation as its only tail
+      return tails[0].toItem().headChild().toSexp();
+    }
+
+    /**
+     * Returns an item with the children of this derivation, which is the
+     * item of its hyperedge when every sub-derivation is that item's own.
+     */
+    CKYItem toItem() {
+      if (tails.length == 0)
+        return item;
+      CKYItem[] children = new CKYItem[tails.length];
+      boolean same = true;
+      for (int i = 0; i < tails.length; i++) {
+        children[i] = tails[i].toItem();
+        same &= children[i] == item.antecedent(i);
+      }
+      if (same)
+        return item;
+
+      CKYItem headChild;
+      SLNode leftChildren, rightChildren;
+      if (tails.length == 1 && item.headChild() == item.antecedent(0)) {
+        // a unary item
+        headChild = children[0];
+        leftChildren = item.leftChildren();
+        rightChildren = item.rightChildren();
+      }
+      else if (tails.length == 1) {
+        // an item with its stop probabilities
+        headChild = children[0].headChild();
+        leftChildren = children[0].leftChildren();
+        rightChildren = children[0].rightChildren();
+      }
+      else {
+        // an item joined with a modifier, which is the newest child on its
+        // side
+        int mod = modifierIndex();
+        CKYItem modificand = children[1 - mod];
+        headChild = modificand.headChild();
+        leftChildren = modificand.leftChildren();
+        rightChildren = modificand.rightChildren();
+        if (item.leftChildren() != null &&
+            item.leftChildren().data() == item.antecedent(mod))
+          leftChildren = new SLNode(children[mod], leftChildren);
+        else
+          rightChildren = new SLNode(children[mod], rightChildren);
+      }
+      KBestItem copy = new KBestItem();
+      copy.set((danbikel.lisp.Symbol)item.label(), item.headWord(),
+               item.leftSubcat(), item.rightSubcat(), headChild,
+               leftChildren, rightChildren, item.leftPrevMods(),
+               item.rightPrevMods(), item.start(), item.end(),
+               item.leftVerb(), item.rightVerb(), item.stop(),
+               score, item.logPrior(), score + item.logPrior());
+      return copy;
+    }
+
+    private int modifierIndex() {
+      for (int i = 0; i < 2; i++) {
+        Object mod = item.antecedent(i);
+        if ((item.leftChildren() != null &&
+             item.leftChildren().data() == mod) ||
+            (item.rightChildren() != null &&
+             item.rightChildren().data() == mod))
+          return i;
+      }
+      return 1;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Derivation))
+        return false;
+      Derivation other = (Derivation)o;
+      return edge == other.edge && Arrays.equals(ranks, other.ranks);
+    }
+
+    public int hashCode() {
+      return edge * 31 + Arrays.hashCode(ranks);
+    }
+  }
+}
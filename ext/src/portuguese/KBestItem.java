@@ -0,0 +1,89 @@
+package portuguese;
+
+import java.util.ArrayList;
+import java.util.List;
+import danbikel.parser.CKYItem;
+import danbikel.parser.Item;
+
+/**
+ * A chart item that remembers how it was derived, so that the k best
+ * derivations of a sentence can be read from a finished chart by a
+ * {@link KBestExtractor}.  Each item records the items from which the
+ * decoder built it (its antecedents) and the equivalent items that the chart
+ * discarded in its favor (its alternatives), which the usual chart forgets.
+ * <p>
+ * This class has the same equivalence relation as
+ * {@link CKYItem.MappedPrevModBaseNPAware}, the item class used by the
+ * settings of this language package.
+ *
+ * @see KBestChart
+ */
+public class KBestItem extends CKYItem.MappedPrevModBaseNPAware {
+  // data members
+  private CKYItem[] antecedents = new CKYItem[2];
+  private int numAntecedents;
+  private List alternatives;
+  private KBestItem representative;
+
+  /** Constructs a new item, to be filled in by the decoder. */
+  public KBestItem() {
+    super();
+  }
+
+  /** Records an item from which this item was built. */
+  public void hasAntecedent(Item antecedent) {
+    super.hasAntecedent(antecedent);
+    if (numAntecedents < antecedents.length)
+      antecedents[numAntecedents++] = (CKYItem)antecedent;
+  }
+
+  /**
+   * Records an item equivalent to this one that the chart discarded or
+   * replaced in favor of this item, together with that item's own
+   * alternatives.
+   */
+  public void hasEquivalentItem(Item item) {
+    super.hasEquivalentItem(item);
+    KBestItem other = (KBestItem)item;
+    if (alternatives == null)
+      alternatives = new ArrayList();
+    alternatives.add(other);
+    if (other.alternatives != null) {
+      alternatives.addAll(other.alternatives);
+      other.alternatives = null;
+    }
+    other.representative = this;
+  }
+
+  /** Forgets how this item was derived. */
+  public Item clear() {
+    antecedents[0] = antecedents[1] = null;
+    numAntecedents = 0;
+    alternatives = null;
+    representative = null;
+    return super.clear();
+  }
+
+  /** Returns the number of items from which this item was built. */
+  public int numAntecedents() { return numAntecedents; }
+
+  /** Returns the specified item from which this item was built. */
+  public CKYItem antecedent(int i) { return antecedents[i]; }
+
+  /**
+   * Returns the equivalent items discarded in favor of this item, or
+   * <code>null</code> if there are none.
+   */
+  public List alternatives() { return alternatives; }
+
+  /**
+   * Returns the item kept by the chart for the equivalence class of this
+   * item, which is this item unless it was discarded.
+   */
+  public KBestItem representative() {
+    KBestItem item = this;
+    while (item.representative != null)
+      item = item.representative;
+    return item;
+  }
+}
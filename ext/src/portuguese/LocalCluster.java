@@ -0,0 +1,373 @@
+package portuguese;
+
+import java.io.*;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+import danbikel.parser.Language;
+import danbikel.parser.Parser;
+import danbikel.parser.SexpNumberedObjectReaderFactory;
+import danbikel.parser.SexpObjectReaderFactory;
+import danbikel.parser.Settings;
+import danbikel.switchboard.Switchboard;
+import danbikel.switchboard.TextObjectWriterFactory;
+import danbikel.util.Time;
+
+/**
+ * Parses a file on a cluster of parser processes on the local host, using
+ * the switchboard of the parsing engine to hand out sentences and to gather
+ * the parses in input order.  This is useful when a single process, as used
+ * by {@link ParseScheduler}, spends too much time collecting garbage in one
+ * big heap: each worker here is a separate JVM with its own heap and its own
+ * copy of the model.
+ * <p>
+ * This class starts an RMI registry and a {@link Switchboard} in its own
+ * process, and then starts the workers, each of which is a
+ * {@link danbikel.parser.Parser} with an internal {@link DecoderServer} and a
+ * {@link Decoder}.  A worker that dies before the file is done is started
+ * again, up to a maximum number of times per worker; the sentence it was
+ * parsing is handed out again by the switchboard once the switchboard's
+ * keep-alive check notices that the worker is gone.  When every sentence is
+ * done, the switchboard tells the workers to exit, and any worker still
+ * running shortly afterwards is killed.  If every worker gives up before
+ * the file is done, the cluster stops and reports the failure.
+ * <p>
+ * Workers are started with the same Java executable and class path as this
+ * process, and with every system property whose name starts with
+ * <tt>parser.</tt> or <tt>danbikel.</tt>.  The following settings control
+ * the cluster:
+ * <table>
+ * <tr><td><tt>parser.cluster.numWorkers</tt></td>
+ *     <td>number of worker processes (default 2)</td></tr>
+ * <tr><td><tt>parser.cluster.port</tt></td>
+ *     <td>port of the RMI registry (default 1099)</td></tr>
+ * <tr><td><tt>parser.cluster.workerHeapSize</tt></td>
+ *     <td>maximum heap of each worker, in megabytes (default 1000)</td></tr>
+ * <tr><td><tt>parser.cluster.maxRestarts</tt></td>
+ *     <td>number of times each worker may be restarted (default 3)</td></tr>
+ * <tr><td><tt>parser.cluster.workerJvmArgs</tt></td>
+ *     <td>extra JVM arguments for the workers, separated by spaces</td></tr>
+ * <tr><td><tt>parser.cluster.keepAliveInterval</tt></td>
+ *     <td>milliseconds between the switchboard's checks that workers are
+ *     alive (default 5000)</td></tr>
+ * </table>
+ */
+public class LocalCluster {
+  // constants
+  private final static String className = LocalCluster.class.getName();
+
+  /** The property specifying the number of worker processes. */
+  public final static String numWorkersProperty = "parser.cluster.numWorkers";
+  /** The property specifying the port of the RMI registry. */
+  public final static String portProperty = "parser.cluster.port";
+  /** The property specifying the maximum heap of each worker. */
+  public final static String workerHeapSizeProperty =
+    "parser.cluster.workerHeapSize";
+  /** The property specifying the number of restarts of each worker. */
+  public final static String maxRestartsProperty =
+    "parser.cluster.maxRestarts";
+  /** The property specifying extra JVM arguments for the workers. */
+  public final static String workerJvmArgsProperty =
+    "parser.cluster.workerJvmArgs";
+  /** The property specifying the switchboard's keep-alive interval. */
+  public final static String keepAliveIntervalProperty =
+    "parser.cluster.keepAliveInterval";
+
+  /** The suffix of the log file of each worker, after its number. */
+  public final static String workerLogSuffix = ".log";
+
+  // the time workers are given to exit after the switchboard is done
+  private final static long exitGracePeriod = 10000;
+
+  // data members
+  private String derivedDataFilename;
+  private int numWorkers;
+  private int port;
+  private int workerHeapSize;
+  private int maxRestarts;
+  private String workerJvmArgs;
+  private int keepAliveInterval;
+
+  private volatile boolean done;
+  private Process[] processes;
+  private int numRestarts;
+  // the monitors still running and whether the switchboard is done, either
+  // of which ends the wait of processInputFile
+  private int numLiveMonitors;
+  private boolean filesDone;
+
+  /**
+   * Constructs a cluster whose workers parse with the model in the
+   * specified derived data file.
+   *
+   * @param derivedDataFilename the file of derived counts written by the
+   * trainer (<tt>objects.gz</tt>)
+   */
+  public LocalCluster(String derivedDataFilename) {
+    this.derivedDataFilename = new File(derivedDataFilename).getAbsolutePath();
+    numWorkers = Settings.getIntProperty(numWorkersProperty, 2);
+    port = Settings.getIntProperty(portProperty, 1099);
+    workerHeapSize = Settings.getIntProperty(workerHeapSizeProperty, 1000);
+    maxRestarts = Settings.getIntProperty(maxRestartsProperty, 3);
+    workerJvmArgs = Settings.get(workerJvmArgsProperty);
+    keepAliveInterval = Settings.getIntProperty(keepAliveIntervalProperty, 5000);
+  }
+
+  /** Sets the number of worker processes. */
+  public void setNumWorkers(int numWorkers) { this.numWorkers = numWorkers; }
+
+  /** Returns the number of times a worker was restarted. */
+  public synchronized int numRestarts() { return numRestarts; }
+
+  /**
+   * Parses every sentence in the input file on the cluster, writing one
+   * tree per line to the output file in input order.  The log of worker
+   * <i>i</i> is written to the output file name followed by
+   * <tt>.worker</tt><i>i</i>{@link #workerLogSuffix}.
+   *
+   * @throws IOException if every worker gave up before all sentences were
+   * parsed
+   */
+  public void processInputFile(String inputFilename, String outputFilename)
+    throws IOException {
+    Time totalTime = new Time();
+    Registry registry = LocateRegistry.createRegistry(port);
+    String bindingName = "//localhost:" + port +
+                         Switchboard.defaultBindingName;
+    Switchboard switchboard =
+      new Switchboard(outputFilename + ".messages", Switchboard.defaultPort,
+                      true,
+                      new SexpObjectReaderFactory(),
+                      new SexpNumberedObjectReaderFactory(),
+                      new TextObjectWriterFactory(),
+                      new TextObjectWriterFactory(), bindingName);
+    Properties settings = (Properties)Settings.getSettings().clone();
+    settings.setProperty("switchboard.keepAliveInterval",
+                         String.valueOf(keepAliveInterval));
+    settings.setProperty("switchboard.keepAliveMaxRetries", "1");
+    settings.setProperty("switchboard.sortOutput", "true");
+    switchboard.bind(settings, Language.encoding());
+
+    done = false;
+    filesDone = false;
+    numLiveMonitors = numWorkers;
+    processes = new Process[numWorkers];
+    Thread[] monitors = new Thread[numWorkers];
+    for (int i = 0; i < numWorkers; i++) {
+      monitors[i] = new Thread(new Monitor(i, bindingName, outputFilename),
+                               "Cluster Worker Monitor " + i);
+      monitors[i].setDaemon(true);
+      monitors[i].start();
+    }
+
+    // the switchboard blocks both while it hands out the file and until its
+    // output is written, so it is driven from a thread of its own
+    final Switchboard waitedOn = switchboard;
+    final String input = new File(inputFilename).getAbsolutePath();
+    final String output = new File(outputFilename).getAbsolutePath();
+    Thread waiter = new Thread(new Runnable() {
+      public void run() {
+        waitedOn.processFile(input, output);
+        // returns when every sentence has been parsed
+        waitedOn.waitUntilAllFilesAreDone();
+        synchronized (LocalCluster.this) {
+          filesDone = true;
+          LocalCluster.this.notifyAll();
+        }
+      }
+    }, "Cluster File Waiter");
+    waiter.setDaemon(true);
+    waiter.start();
+
+    // waits until every sentence is done or every worker has given up
+    boolean failed;
+    synchronized (this) {
+      try {
+        while (!filesDone && numLiveMonitors > 0)
+          wait();
+      }
+      catch (InterruptedException ie) {
+        System.err.println(className + ": interrupted while parsing");
+      }
+      done = true;
+      failed = !filesDone;
+    }
+    if (failed)
+      System.err.println(className + ": stopping before all sentences " +
+                         "were parsed");
+    else
+      System.err.println(className + ": all sentences done; stopping workers");
+    switchboard.cleanup();
+    long deadline = System.currentTimeMillis() + exitGracePeriod;
+    for (int i = 0; i < numWorkers; i++) {
+      try {
+        monitors[i].join(Math.max(1, deadline - System.currentTimeMillis()));
+      }
+      catch (InterruptedException ie) {
+      }
+      synchronized (this) {
+        if (processes[i] != null)
+          processes[i].destroy();
+      }
+    }
+    UnicastRemoteObject.unexportObject(registry, true);
+
+    System.err.println("worker restarts: " + numRestarts());
+    if (failed)
+      throw new IOException("every worker gave up before all sentences " +
+                            "of " + inputFilename + " were parsed");
+    System.err.println("total elapsed time: " + totalTime);
+  }
+
+  /** Returns the command line of a worker process. */
+  private List workerCommand(String bindingName) {
+    List command = new ArrayList();
+    command.add(System.getProperty("java.home") + File.separator + "bin" +
+                File.separator + "java");
+    command.add("-Xmx" + workerHeapSize + "m");
+    // newer JVMs refuse to install the parser's RMI security manager unless
+    // told to allow it
+    String specVersion = System.getProperty("java.specification.version");
+    if (!specVersion.startsWith("1.") && Integer.parseInt(specVersion) >= 12)
+      command.add("-Djava.security.manager=allow");
+    if (workerJvmArgs != null)
+      command.addAll(Arrays.asList(workerJvmArgs.trim().split("\\s+")));
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    Properties props = System.getProperties();
+    for (Iterator it = props.keySet().iterator(); it.hasNext(); ) {
+      String name = (String)it.next();
+      if (name.startsWith("parser.") || name.startsWith("danbikel."))
+        command.add("-D" + name + "=" + props.getProperty(name));
+    }
+    command.add("-Dparser.parser.decoderClass=" + Decoder.class.getName());
+    command.add("-Dparser.parser.decoderServerClass=" +
+                DecoderServer.class.getName());
+    command.add(Parser.class.getName());
+    command.add("-is");
+    command.add(derivedDataFilename);
+    command.add(bindingName);
+    return command;
+  }
+
+  /** Starts a worker and starts it again whenever it dies too early. */
+  private class Monitor implements Runnable {
+    private int id;
+    private String bindingName;
+    private File log;
+
+    Monitor(int id, String bindingName, String outputFilename) {
+      this.id = id;
+      this.bindingName = bindingName;
+      log = new File(outputFilename + ".worker" + id + workerLogSuffix);
+    }
+
+    public void run() {
+      try {
+        monitor();
+      }
+      finally {
+        synchronized (LocalCluster.this) {
+          numLiveMonitors--;
+          LocalCluster.this.notifyAll();
+        }
+      }
+    }
+
+    private void monitor() {
+      int restarts = 0;
+      while (!done) {
+        Process process;
+        try {
+          ProcessBuilder builder = new ProcessBuilder(workerCommand(bindingName));
+          builder.redirectErrorStream(true);
+          builder.redirectOutput(ProcessBuilder.Redirect.appendTo(log));
+          process = builder.start();
+        }
+        catch (IOException ioe) {
+          System.err.println(className + ": couldn't start worker " + id +
+                             ": " + ioe);
+          return;
+        }
+        synchronized (LocalCluster.this) {
+          processes[id] = process;
+        }
+        int exitValue;
+        try {
+          exitValue = process.waitFor();
+        }
+        catch (InterruptedException ie) {
+          return;
+        }
+        synchronized (LocalCluster.this) {
+          processes[id] = null;
+        }
+        if (done)
+          break;
+        if (restarts == maxRestarts) {
+          System.err.println(className + ": worker " + id + " died with " +
+                             "exit value " + exitValue + "; giving up after " +
+                             restarts + " restarts");
+          break;
+        }
+        restarts++;
+        synchronized (LocalCluster.this) {
+          numRestarts++;
+        }
+        System.err.println(className + ": worker " + id + " died with " +
+                           "exit value " + exitValue + "; restarting it (" +
+                           restarts + " of " + maxRestarts + ")");
+      }
+    }
+  }
+
+  private static void usage() {
+    System.err.println("usage: -is <derived data file> -sa <input file> " +
+                       "[-out <output file>] [-nw <num workers>]");
+    System.exit(1);
+  }
+
+  /**
+   * Parses a file on a local cluster with the model in a derived data file.
+   *
+   * @param args usage: <tt>-is &lt;derived data file&gt;
+   * -sa &lt;input file&gt; [-out &lt;output file&gt;]
+   * [-nw &lt;num workers&gt;]</tt>
+   */
+  public static void main(String[] args) {
+    String derivedDataFilename = null, inputFilename = null;
+    String outputFilename = null;
+    int numWorkers = -1;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length)
+        usage();
+      if (args[i].equals("-is"))
+        derivedDataFilename = args[++i];
+      else if (args[i].equals("-sa"))
+        inputFilename = args[++i];
+      else if (args[i].equals("-out"))
+        outputFilename = args[++i];
+      else if (args[i].equals("-nw"))
+        numWorkers = Integer.parseInt(args[++i]);
+      else
+        usage();
+    }
+    if (derivedDataFilename == null || inputFilename == null)
+      usage();
+    if (outputFilename == null)
+      outputFilename = inputFilename + Parser.outputFilenameSuffix;
+
+    try {
+      LocalCluster cluster = new LocalCluster(derivedDataFilename);
+      if (numWorkers > 0)
+        cluster.setNumWorkers(numWorkers);
+      cluster.processInputFile(inputFilename, outputFilename);
+    }
+    catch (IOException ioe) {
+      System.err.println(className + ": " + ioe);
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+}
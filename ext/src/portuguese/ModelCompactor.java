@@ -0,0 +1,339 @@
+package portuguese;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.util.*;
+import danbikel.parser.Constants;
+import danbikel.parser.Model;
+import danbikel.parser.ModelCollection;
+import danbikel.parser.Transition;
+import danbikel.util.HashMapDouble;
+import danbikel.util.MapToPrimitive;
+
+/**
+ * Makes a derived data file (<tt>objects.gz</tt>) smaller after training by
+ * pruning and quantizing the precomputed probabilities of every model in its
+ * {@link ModelCollection}.  The result is an ordinary derived data file that
+ * the parser loads as usual.
+ * <p>
+ * A precomputed probability of a back-off level above the last one may be
+ * dropped, because the parser then backs off to the next level, weighted by
+ * the smoothing weight of the history; probabilities of the last level are
+ * always kept.  A probability is dropped when it is lower than a minimum
+ * probability, or when its history (its context) was seen with fewer than a
+ * minimum number of futures, in which case every probability of that
+ * context at that level is dropped.  The smoothing weight of a history
+ * none of whose probabilities are left at a level is dropped as well, so
+ * that the parser treats the history as unseen there and backs off without
+ * the penalty of a seen history.
+ * <p>
+ * The remaining log-probabilities, and the logs of the smoothing weights, are
+ * then quantized to at most <code>2<sup>bits</sup></code> distinct values
+ * (<tt>-bits 8</tt> or <tt>16</tt>): every table, of probabilities or of
+ * smoothing weights and at every back-off level, gets its own codebook built
+ * from equally populated ranges of its own values, and every value is
+ * replaced by the mean of its range.  A table shared by several models is
+ * quantized once.  The tables are the parser's own and still hold a
+ * <code>double</code> for every value, so quantization saves no memory once
+ * the model is loaded; it only makes the gzipped file smaller, because the
+ * few distinct values left compress much better.
+ * <p>
+ * A line of statistics is printed for every model.  Dev-set accuracy, load
+ * time and parse speed before and after compaction are measured by
+ * <tt>Porser::Experiment#compaction_report!</tt>.
+ */
+public class ModelCompactor {
+  // constants
+  private final static String className = ModelCompactor.class.getName();
+
+  // data members
+  private double logMinProb;
+  private int minContextSize;
+  private int bits;
+  private Field precomputedProbsField;
+  private Field precomputedLambdasField;
+  private Set visited = Collections.newSetFromMap(new IdentityHashMap());
+  private Set quantized = Collections.newSetFromMap(new IdentityHashMap());
+
+  /**
+   * Creates a compactor.
+   *
+   * @param minProb the probability below which a precomputed probability is
+   * dropped (0 to keep all)
+   * @param minContextSize the number of distinct futures below which all the
+   * precomputed probabilities of a context are dropped (0 to keep all)
+   * @param bits the number of bits to which log-probabilities are quantized
+   * (0 for no quantization)
+   */
+  public ModelCompactor(double minProb, int minContextSize, int bits) {
+    this.logMinProb = minProb > 0 ? Math.log(minProb) : Double.NEGATIVE_INFINITY;
+    this.minContextSize = minContextSize;
+    this.bits = bits;
+    try {
+      precomputedProbsField = Model.class.getDeclaredField("precomputedProbs");
+      precomputedProbsField.setAccessible(true);
+      precomputedLambdasField =
+        Model.class.getDeclaredField("precomputedLambdas");
+      precomputedLambdasField.setAccessible(true);
+    }
+    catch (NoSuchFieldException nsfe) {
+      throw new RuntimeException(className + ": " + nsfe);
+    }
+  }
+
+  /** Compacts every model of the specified model collection. */
+  public void compact(ModelCollection modelCollection) {
+    Iterator it = modelCollection.modelIterator();
+    while (it.hasNext()) {
+      Model model = (Model)it.next();
+      for (int i = 0; i < model.numModels(); i++)
+        compact(model.getModel(i));
+    }
+  }
+
+  private HashMapDouble[] getTables(Field field, Model model) {
+    try {
+      return (HashMapDouble[])field.get(model);
+    }
+    catch (IllegalAccessException iae) {
+      throw new RuntimeException(className + ": " + iae);
+    }
+  }
+
+  /** Prunes and quantizes the precomputed tables of the specified model. */
+  private void compact(Model model) {
+    if (!visited.add(model))
+      return;
+    String name = model.getProbStructure().getClass().getName();
+    name = name.substring(name.lastIndexOf('.') + 1);
+    HashMapDouble[] probs = getTables(precomputedProbsField, model);
+    HashMapDouble[] lambdas = getTables(precomputedLambdasField, model);
+    if (probs == null) {
+      System.err.println(className + ": " + name +
+                         " has no precomputed probabilities; skipping");
+      return;
+    }
+
+    int probsBefore = size(probs);
+    int distinctBefore = numDistinctValues(probs);
+    // tables may be shared by several models; prune each one only once
+    for (int level = 0; level < probs.length - 1; level++) {
+      if (!visited.add(probs[level]))
+        continue;
+      Set emptied = prune(probs[level]);
+      if (lambdas != null && lambdas[level] != null)
+        for (Iterator it = emptied.iterator(); it.hasNext(); )
+          lambdas[level].remove(it.next());
+    }
+    int probsAfter = size(probs);
+    if (bits > 0) {
+      quantize(probs);
+      if (lambdas != null)
+        quantize(lambdas);
+    }
+    System.err.println(name + ": " + probsBefore + " -> " + probsAfter +
+                       " probabilities, " + distinctBefore + " -> " +
+                       numDistinctValues(probs) + " distinct values, " +
+                       size(lambdas) + " smoothing weights");
+  }
+
+  /**
+   * Prunes the specified table of precomputed probabilities, returning the
+   * histories none of whose probabilities are left.
+   */
+  private Set prune(HashMapDouble table) {
+    Set emptied = new HashSet();
+    if (table == null)
+      return emptied;
+    // the number of futures of each history before and after pruning
+    Map contextSizes = new HashMap();
+    for (Iterator it = table.keySet().iterator(); it.hasNext(); ) {
+      Object history = ((Transition)it.next()).history();
+      int[] count = (int[])contextSizes.get(history);
+      if (count == null)
+        contextSizes.put(history, count = new int[2]);
+      count[0]++;
+      count[1]++;
+    }
+    for (Iterator it = table.entrySet().iterator(); it.hasNext(); ) {
+      MapToPrimitive.Entry entry = (MapToPrimitive.Entry)it.next();
+      Object history = ((Transition)entry.getKey()).history();
+      int[] count = (int[])contextSizes.get(history);
+      boolean drop = entry.getDoubleValue() < logMinProb ||
+                     count[0] < minContextSize;
+      if (drop) {
+        it.remove();
+        if (--count[1] == 0)
+          emptied.add(history);
+      }
+    }
+    return emptied;
+  }
+
+  /**
+   * Quantizes each of the specified tables not quantized yet, as tables may
+   * be shared by several models.
+   */
+  private void quantize(HashMapDouble[] tables) {
+    for (int i = 0; i < tables.length; i++)
+      if (tables[i] != null && quantized.add(tables[i]))
+        quantize(tables[i]);
+  }
+
+  /**
+   * Replaces the values of the specified table by the values of a codebook
+   * of at most <code>2<sup>bits</sup></code> entries built from them.
+   */
+  private void quantize(HashMapDouble table) {
+    double[] values = new double[table.size()];
+    int n = 0;
+    for (Iterator it = table.entrySet().iterator(); it.hasNext(); ) {
+      double value = ((MapToPrimitive.Entry)it.next()).getDoubleValue();
+      if (!Double.isInfinite(value) && !Double.isNaN(value))
+        values[n++] = value;
+    }
+    if (n == 0)
+      return;
+    Arrays.sort(values, 0, n);
+
+    int numCodes = Math.min(1 << bits, n);
+    double[] upperBounds = new double[numCodes];
+    double[] codes = new double[numCodes];
+    for (int code = 0; code < numCodes; code++) {
+      int start = (int)((long)code * n / numCodes);
+      int end = (int)((long)(code + 1) * n / numCodes);
+      double sum = 0.0;
+      for (int i = start; i < end; i++)
+        sum += values[i];
+      codes[code] = sum / (end - start);
+      upperBounds[code] = values[end - 1];
+    }
+
+    for (Iterator it = table.entrySet().iterator(); it.hasNext(); ) {
+      MapToPrimitive.Entry entry = (MapToPrimitive.Entry)it.next();
+      double value = entry.getDoubleValue();
+      if (Double.isInfinite(value) || Double.isNaN(value))
+        continue;
+      int code = Arrays.binarySearch(upperBounds, value);
+      if (code < 0)
+        code = Math.min(-code - 1, numCodes - 1);
+      else
+        // the first range ending in this value
+        while (code > 0 && upperBounds[code - 1] == value)
+          code--;
+      entry.set(0, codes[code]);
+    }
+  }
+
+  private static int size(HashMapDouble[] tables) {
+    int size = 0;
+    if (tables != null)
+      for (int i = 0; i < tables.length; i++)
+        if (tables[i] != null)
+          size += tables[i].size();
+    return size;
+  }
+
+  private static int numDistinctValues(HashMapDouble[] tables) {
+    Set values = new HashSet();
+    for (int i = 0; i < tables.length; i++) {
+      if (tables[i] == null)
+        continue;
+      for (Iterator it = tables[i].entrySet().iterator(); it.hasNext(); )
+        values.add(Double.valueOf(((MapToPrimitive.Entry)it.next()).getDoubleValue()));
+    }
+    return values.size();
+  }
+
+  /**
+   * Reads the derived data file <code>inputFilename</code>, compacts its
+   * model collection and writes it, with the same header, to
+   * <code>outputFilename</code>.
+   */
+  public void compact(String inputFilename, String outputFilename)
+    throws IOException, ClassNotFoundException {
+    System.err.println("Reading derived counts from \"" + inputFilename +
+                       "\".");
+    ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+      GZIPStreams.newInputStream(inputFilename),
+      Constants.defaultFileBufsize));
+    // the header written by danbikel.parser.Trainer.writeModelCollection
+    Object settings = in.readObject();
+    Object trainingInputFilename = in.readObject();
+    Object settingsFilename = in.readObject();
+    ModelCollection modelCollection = (ModelCollection)in.readObject();
+    in.close();
+
+    compact(modelCollection);
+
+    System.err.println("Writing compacted derived counts to \"" +
+                       outputFilename + "\".");
+    ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+      GZIPStreams.newOutputStream(outputFilename),
+      Constants.defaultFileBufsize));
+    out.writeObject(settings);
+    out.writeObject(trainingInputFilename);
+    out.writeObject(settingsFilename);
+    out.writeObject(modelCollection);
+    out.close();
+
+    long before = new File(inputFilename).length();
+    long after = new File(outputFilename).length();
+    System.err.println("file size: " + before + " -> " + after + " bytes (" +
+                       (before == 0 ? 0 : 100 * after / before) + "%)");
+  }
+
+  private static void usage() {
+    System.err.println("usage: -i <derived data file> -o <output file> " +
+                       "[-minProb <prob>] [-minContextSize <n>] " +
+                       "[-bits <0|8|16>]");
+    System.exit(1);
+  }
+
+  /**
+   * Compacts a derived data file.
+   *
+   * @param args usage: <tt>-i &lt;derived data file&gt; -o &lt;output
+   * file&gt; [-minProb &lt;prob&gt;] [-minContextSize &lt;n&gt;]
+   * [-bits &lt;0|8|16&gt;]</tt>
+   */
+  public static void main(String[] args) {
+    String inputFilename = null, outputFilename = null;
+    double minProb = 0.0;
+    int minContextSize = 0;
+    int bits = 0;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (i + 1 == args.length)
+          usage();
+        if (args[i].equals("-i"))
+          inputFilename = args[++i];
+        else if (args[i].equals("-o"))
+          outputFilename = args[++i];
+        else if (args[i].equals("-minProb"))
+          minProb = Double.parseDouble(args[++i]);
+        else if (args[i].equals("-minContextSize"))
+          minContextSize = Integer.parseInt(args[++i]);
+        else if (args[i].equals("-bits"))
+          bits = Integer.parseInt(args[++i]);
+        else
+          usage();
+      }
+    }
+    catch (NumberFormatException nfe) {
+      usage();
+    }
+    if (inputFilename == null || outputFilename == null ||
+        (bits != 0 && bits != 8 && bits != 16))
+      usage();
+
+    try {
+      new ModelCompactor(minProb, minContextSize, bits).compact(
+        inputFilename, outputFilename);
+    }
+    catch (Exception e) {
+      System.err.println(className + ": " + e);
+      System.exit(1);
+    }
+  }
+}
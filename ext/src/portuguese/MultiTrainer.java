@@ -0,0 +1,367 @@
+package portuguese;
+
+import java.io.*;
+import java.util.*;
+import danbikel.lisp.Sexp;
+import danbikel.lisp.SexpList;
+import danbikel.lisp.SexpTokenizer;
+import danbikel.lisp.Symbol;
+import danbikel.parser.Language;
+import danbikel.parser.Settings;
+import danbikel.util.Time;
+
+/**
+ * Trains several configurations of the parser on the same training corpus
+ * in one process, such as experiments that differ only in their head rules.
+ * The trees of the corpus are read once and kept in memory, and the process,
+ * with its loaded classes, compiled code, symbol table and language objects,
+ * is shared by all configurations; each configuration is then trained by its
+ * own {@link Trainer}, with the head table of the configuration read into
+ * the one {@link HeadFinder} of the process, which finds the heads used both
+ * to preprocess the trees and to collect their events.
+ * <p>
+ * The trainer preprocesses the trees it is given in place, so each
+ * configuration is given fresh copies of the trees read, replayed to it as
+ * a stream of tokens.  The steps of preprocessing that come before the first
+ * one that finds heads, the test of whether a tree is to be skipped and the
+ * pruning of the nodes named by the training metadata, are done once, when
+ * the trees are read; the later steps, even those that find no heads
+ * themselves, such as the removal of null elements and the raising of
+ * punctuation, change the trees that the earlier ones find heads in, so
+ * they are done for each configuration.
+ * <p>
+ * A configuration is an experiment directory holding a settings file named
+ * {@link #settingsFilename}; the observed events, the vocabulary and the
+ * derived data of the configuration are written to the files
+ * {@link #observationsFilename}, {@link #vocabularyFilename} and
+ * {@link #modelFilename} of the same directory, which hold what
+ * {@link Trainer} would have written if run with those settings, the
+ * experiment directory as the settings directory and the same training
+ * corpus.  The settings of a configuration whose values name files of its
+ * directory, such as the head table and the training metadata, are read from
+ * that directory.
+ * <p>
+ * The settings of each configuration are applied in turn over the settings
+ * the process was started with, so every configuration must set the same
+ * properties, and all configurations must share their language, language
+ * package and file encoding, which name the classes and the encoding of the
+ * whole process.  As the language objects are created once, the files named
+ * by the settings other than the head table, such as the training metadata
+ * read by {@link Training}, must also be the same for all configurations.
+ */
+public class MultiTrainer {
+  // constants
+  private final static String className = MultiTrainer.class.getName();
+
+  /** The name of the settings file of an experiment directory. */
+  public final static String settingsFilename = "settings.properties";
+  /** The name of the observed events file written to each directory. */
+  public final static String observationsFilename = "observed.gz";
+  /** The name of the vocabulary file written to each directory. */
+  public final static String vocabularyFilename = "vocabulary.bin";
+  /** The name of the derived data file written to each directory. */
+  public final static String modelFilename = "objects.gz";
+
+  // data members
+  private String trainingFilename;
+  private List trees = new ArrayList();
+  private Properties startupSettings = Settings.getSettings();
+
+  /**
+   * Reads the trees of the specified training corpus into memory, decoding
+   * it with the encoding of the language, and prunes those that will not be
+   * skipped.
+   */
+  public MultiTrainer(String trainingFilename) throws IOException {
+    this.trainingFilename = trainingFilename;
+    SexpTokenizer tok =
+      new SexpTokenizer(TextFiles.newReader(trainingFilename));
+    try {
+      for (Sexp tree; (tree = Sexp.read(tok)) != null; )
+        trees.add(tree);
+    }
+    finally {
+      tok.close();
+    }
+    if (Language.training() instanceof Training) {
+      Training training = (Training)Language.training();
+      for (int i = 0; i < trees.size(); i++) {
+        Sexp tree = (Sexp)trees.get(i);
+        if (training.skip(tree) == null)
+          trees.set(i, training.prune(tree));
+      }
+      training.setTreesPruned(true);
+    }
+  }
+
+  /** Reads the settings file of the specified experiment directory. */
+  public static Properties readSettings(File dir) throws IOException {
+    Properties settings = new Properties();
+    File file = new File(dir, settingsFilename);
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      settings.load(in);
+    }
+    finally {
+      in.close();
+    }
+    return settings;
+  }
+
+  /**
+   * Checks that the specified settings can be trained in this process,
+   * printing the reason to <tt>System.err</tt> if they cannot.
+   *
+   * @param settings the settings of every configuration
+   * @param dirs the experiment directories of the configurations
+   * @return whether all configurations can be trained together
+   */
+  public boolean checkSettings(Properties[] settings, File[] dirs)
+    throws IOException {
+    if (!(Language.headFinder() instanceof HeadFinder)) {
+      System.err.println(className + ": error: the head finder is not a " +
+                         HeadFinder.class.getName());
+      return false;
+    }
+    String language = startupSettings.getProperty(Settings.language);
+    String[] shared = {Settings.language, Settings.languagePackage,
+                       Settings.fileEncodingPrefix + language};
+    String headTableKey = Settings.headTablePrefix + language;
+    Set keys = new HashSet();
+    for (int i = 0; i < settings.length; i++)
+      keys.addAll(settings[i].keySet());
+    boolean ok = true;
+    for (int i = 0; i < settings.length; i++) {
+      for (int j = 0; j < shared.length; j++) {
+        String value = settings[i].getProperty(shared[j]);
+        if (value != null &&
+            !value.equals(startupSettings.getProperty(shared[j]))) {
+          System.err.println(className + ": error: " + dirs[i] + " sets \"" +
+                             shared[j] + "\" to \"" + value + "\" but the " +
+                             "process was started with \"" +
+                             startupSettings.getProperty(shared[j]) + "\"");
+          ok = false;
+        }
+      }
+      Iterator it = keys.iterator();
+      while (it.hasNext()) {
+        String key = (String)it.next();
+        if (!settings[i].containsKey(key) &&
+            !startupSettings.containsKey(key)) {
+          System.err.println(className + ": error: " + dirs[i] + " does " +
+                             "not set \"" + key + "\", which other " +
+                             "configurations set");
+          ok = false;
+        }
+        else if (i > 0 && !key.equals(headTableKey)) {
+          File first = fileNamedBy(dirs[0], settings[0], key);
+          File file = fileNamedBy(dirs[i], settings[i], key);
+          if ((first != null || file != null) &&
+              (first == null || file == null ||
+               !Arrays.equals(readBytes(first), readBytes(file)))) {
+            System.err.println(className + ": error: the file named by \"" +
+                               key + "\" in " + dirs[i] + " differs from " +
+                               "that of " + dirs[0]);
+            ok = false;
+          }
+        }
+      }
+    }
+    return ok;
+  }
+
+  /**
+   * Returns the file of the specified experiment directory named by the
+   * value of the specified property, or <code>null</code> if the value does
+   * not name such a file.
+   */
+  private static File fileNamedBy(File dir, Properties settings, String key) {
+    String value = settings.getProperty(key);
+    if (value == null || value.length() == 0 || new File(value).isAbsolute())
+      return null;
+    File file = new File(dir, value);
+    return file.isFile() ? file : null;
+  }
+
+  private static byte[] readBytes(File file) throws IOException {
+    byte[] bytes = new byte[(int)file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(bytes);
+    }
+    finally {
+      in.close();
+    }
+    return bytes;
+  }
+
+  /**
+   * Trains the configuration of the specified experiment directory, writing
+   * its observed events and derived data files to it.
+   *
+   * @param dir the experiment directory
+   * @param settings the settings of the directory, as read by
+   * {@link #readSettings(File)}
+   */
+  public void train(File dir, Properties settings) throws IOException {
+    useSettings(dir, settings);
+
+    Trainer trainer = new Trainer();
+    trainer.createModelObjects();
+    Trainer.observationsFilename =
+      new File(dir, observationsFilename).getPath();
+    Trainer.vocabularyFilename = new File(dir, vocabularyFilename).getPath();
+
+    System.err.println(className + ": training \"" + dir + "\".");
+    Time time = new Time();
+    trainer.train(new TreeTokenizer(trees), true, false);
+    System.err.println("Observation collection completed in " + time + ".");
+    trainer.doneCollectingObservations();
+    Symbol.clean();
+
+    System.err.println("Deriving counts.");
+    Time deriveTime = new Time();
+    trainer.deriveCounts();
+    System.err.println("Finished deriving counts in " + deriveTime + ".");
+    String modelPath = new File(dir, modelFilename).getPath();
+    System.err.println("Writing out all derived counts to object file \"" +
+                       modelPath + "\".");
+    trainer.writeModelCollection(modelPath, trainingFilename, null);
+    System.err.println(className + ": trained \"" + dir + "\" in " + time +
+                       ".");
+  }
+
+  /**
+   * Makes the specified settings those of the process and reads the head
+   * table they name, resolving the settings that name files of the
+   * experiment directory against it.  These settings are then set back to
+   * their values in the settings file, so that the derived data file stores
+   * them as {@link Trainer} would.
+   */
+  private void useSettings(File dir, Properties settings) {
+    Settings.setSettings(startupSettings);
+    Properties resolved = new Properties();
+    Map relative = new HashMap();
+    Iterator it = settings.keySet().iterator();
+    while (it.hasNext()) {
+      String key = (String)it.next();
+      String value = settings.getProperty(key);
+      File file = fileNamedBy(dir, settings, key);
+      if (file != null) {
+        relative.put(key, value);
+        value = file.getPath();
+      }
+      resolved.setProperty(key, value);
+    }
+    Settings.setSettings(resolved);
+    ((HeadFinder)Language.headFinder()).rereadHeadTable();
+    it = relative.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry entry = (Map.Entry)it.next();
+      Settings.set((String)entry.getKey(), (String)entry.getValue());
+    }
+  }
+
+  /**
+   * A tokenizer giving the tokens of a list of trees, from which
+   * {@link Sexp#read(SexpTokenizer)} builds copies of the trees.
+   */
+  private static class TreeTokenizer extends SexpTokenizer {
+    private List trees;
+    private int treeIdx;
+    // the lists being replayed, and the index of the next element of each
+    private SexpList[] lists = new SexpList[16];
+    private int[] next = new int[16];
+    private int depth;
+    private boolean pushedBack;
+
+    TreeTokenizer(List trees) {
+      super(new StringReader(""));
+      this.trees = trees;
+    }
+
+    public int nextToken() {
+      if (pushedBack) {
+        pushedBack = false;
+        return ttype;
+      }
+      Sexp sexp;
+      if (depth == 0) {
+        if (treeIdx == trees.size())
+          return ttype = StreamTokenizer.TT_EOF;
+        sexp = (Sexp)trees.get(treeIdx++);
+      }
+      else if (next[depth - 1] == lists[depth - 1].length()) {
+        depth--;
+        return ttype = ')';
+      }
+      else
+        sexp = lists[depth - 1].get(next[depth - 1]++);
+
+      if (sexp.isSymbol()) {
+        sval = sexp.symbol().toString();
+        return ttype = StreamTokenizer.TT_WORD;
+      }
+      if (depth == lists.length) {
+        SexpList[] newLists = new SexpList[depth * 2];
+        System.arraycopy(lists, 0, newLists, 0, depth);
+        lists = newLists;
+        int[] newNext = new int[depth * 2];
+        System.arraycopy(next, 0, newNext, 0, depth);
+        next = newNext;
+      }
+      lists[depth] = sexp.list();
+      next[depth++] = 0;
+      return ttype = '(';
+    }
+
+    public void pushBack() {
+      pushedBack = true;
+    }
+
+    /** Returns the number of trees replayed so far. */
+    public int lineno() {
+      return treeIdx;
+    }
+  }
+
+  private static void usage() {
+    System.err.println("usage: -i <training file> <experiment directory>+");
+    System.exit(1);
+  }
+
+  /**
+   * Trains the configurations of several experiment directories on one
+   * training corpus.  The process should be started with the settings of
+   * one of the configurations and its experiment directory as the settings
+   * directory, so that the language objects are created as they would be to
+   * train that configuration alone.
+   *
+   * @param args usage: <tt>-i &lt;training file&gt;
+   * &lt;experiment directory&gt;+</tt>
+   */
+  public static void main(String[] args) {
+    if (args.length < 3 || !args[0].equals("-i"))
+      usage();
+    File[] dirs = new File[args.length - 2];
+    Properties[] settings = new Properties[dirs.length];
+    try {
+      for (int i = 0; i < dirs.length; i++) {
+        dirs[i] = new File(args[i + 2]);
+        settings[i] = readSettings(dirs[i]);
+      }
+      MultiTrainer multiTrainer = new MultiTrainer(args[1]);
+      if (!multiTrainer.checkSettings(settings, dirs))
+        System.exit(1);
+      Time time = new Time();
+      for (int i = 0; i < dirs.length; i++)
+        multiTrainer.train(dirs[i], settings[i]);
+      System.err.println(className + ": trained " + dirs.length +
+                         " configurations in " + time + ".");
+    }
+    catch (IOException ioe) {
+      System.err.println(className + ": " + ioe);
+      System.exit(1);
+    }
+  }
+}
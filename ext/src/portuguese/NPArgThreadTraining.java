@@ -55,8 +55,16 @@ public class NPArgThreadTraining extends Training {
    * @return the specified tree, modified by pre-processing methods 
    */
   public Sexp preProcess(Sexp tree) {
-    super.preProcess(tree);
-    threadNPArgAugmentations(tree);
+    if (TrainingProfiler.enabled)
+      TrainingProfiler.enter(TrainingProfiler.PREPROCESSING);
+    try {
+      super.preProcess(tree);
+      threadNPArgAugmentations(tree);
+    }
+    finally {
+      if (TrainingProfiler.enabled)
+        TrainingProfiler.exit(TrainingProfiler.PREPROCESSING);
+    }
     return tree;
   }
 
@@ -0,0 +1,509 @@
+package portuguese;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.*;
+import danbikel.lisp.*;
+import danbikel.parser.CountsTable;
+import danbikel.util.AbstractMapToPrimitive;
+import danbikel.util.MapToPrimitive;
+
+/**
+ * A {@link CountsTable} that keeps its keys and counts outside the Java heap,
+ * so that the trainer's event tables no longer grow the heap as the training
+ * corpus grows.
+ * <p>
+ * Every key is stored in its printed form (the same form in which the trainer
+ * writes it to the observed events file), encoded in UTF-8, next to its count
+ * in a list of direct byte buffers.  Records are found through an
+ * open-addressing hash table, itself in a direct byte buffer, whose slots
+ * hold the hash of the key and the location of its record.  Keys are rebuilt
+ * only when the table is iterated, by handing their S-expression to a
+ * constructor of the key class that takes a single {@link Sexp}, as the
+ * trainer does when it reads an observed events file.
+ * <p>
+ * The index holds at most 2<sup>27</sup> slots, as many as one buffer can
+ * address, and so at most 2<sup>26</sup> keys; adding more fails with an
+ * {@link IllegalStateException}.  Space taken by removed records is not
+ * reclaimed until the table is cleared.  Direct buffers count against the JVM's
+ * <tt>-XX:MaxDirectMemorySize</tt> limit rather than against the heap.
+ *
+ * @see Trainer
+ */
+public class OffHeapCountsTable extends AbstractMapToPrimitive
+  implements CountsTable {
+  // constants
+  private final static String className = OffHeapCountsTable.class.getName();
+
+  private final static int defaultChunkSize = 1 << 24;
+  private final static int defaultCapacity = 1 << 16;
+  // slot layout: hash, chunk number plus one (0 for empty, -1 for removed),
+  // offset of the record in its chunk
+  private final static int slotSize = 12;
+  // the largest capacity whose slot positions, slot * slotSize, all fit in
+  // an int, as the positions in a buffer are ints
+  private final static int maxCapacity =
+    Integer.highestOneBit(Integer.MAX_VALUE / slotSize);
+  private final static int emptySlot = 0;
+  private final static int removedSlot = -1;
+  // record layout: key length, count, key bytes
+  private final static int recordHeaderSize = 12;
+
+  // data members
+  private Constructor keyConstructor;
+  private int chunkSize;
+  private List chunks = new ArrayList();
+  private ByteBuffer currentChunk;
+  private ByteBuffer index;
+  private int capacity;
+  private int size;
+  private int numRemoved;
+  private int modCount;
+
+  /**
+   * Constructs an empty table whose keys are instances of the specified
+   * class.
+   *
+   * @param keyClass the class of the keys, which must have a public
+   * constructor taking a single {@link Sexp}
+   */
+  public OffHeapCountsTable(Class keyClass) {
+    this(keyClass, defaultChunkSize);
+  }
+
+  /**
+   * Constructs an empty table whose keys are instances of the specified
+   * class, storing records in direct buffers of the specified size.
+   *
+   * @param keyClass the class of the keys, which must have a public
+   * constructor taking a single {@link Sexp}
+   * @param chunkSize the size in bytes of each buffer holding records
+   */
+  public OffHeapCountsTable(Class keyClass, int chunkSize) {
+    try {
+      keyConstructor = keyClass.getConstructor(new Class[] {Sexp.class});
+    }
+    catch (NoSuchMethodException nsme) {
+      throw new IllegalArgumentException(className + ": " + keyClass +
+                                         " has no constructor taking a Sexp");
+    }
+    this.chunkSize = chunkSize;
+    clear();
+  }
+
+  // key encoding
+
+  private static byte[] encode(Object key) {
+    try {
+      return String.valueOf(key).getBytes("UTF-8");
+    }
+    catch (UnsupportedEncodingException uee) {
+      throw new RuntimeException(uee.toString());
+    }
+  }
+
+  private static String keyString(ByteBuffer chunk, int offset) {
+    int len = chunk.getInt(offset);
+    byte[] bytes = new byte[len];
+    for (int i = 0; i < len; i++)
+      bytes[i] = chunk.get(offset + recordHeaderSize + i);
+    try {
+      return new String(bytes, "UTF-8");
+    }
+    catch (UnsupportedEncodingException uee) {
+      throw new RuntimeException(uee.toString());
+    }
+  }
+
+  private Object decode(ByteBuffer chunk, int offset) {
+    String str = keyString(chunk, offset);
+    try {
+      Sexp sexp = Sexp.read(new SexpTokenizer(new StringReader(str)));
+      return keyConstructor.newInstance(new Object[] {sexp});
+    }
+    catch (Exception e) {
+      throw new RuntimeException(className + ": couldn't rebuild key " + str +
+                                 " (" + e + ")");
+    }
+  }
+
+  /** The 32-bit FNV-1a hash of the specified bytes. */
+  private static int hash(byte[] bytes) {
+    int h = 0x811c9dc5;
+    for (int i = 0; i < bytes.length; i++) {
+      h ^= bytes[i] & 0xff;
+      h *= 0x01000193;
+    }
+    return h;
+  }
+
+  // slot and record access
+
+  private int slotChunk(int slot) { return index.getInt(slot * slotSize + 4); }
+
+  private ByteBuffer chunkOf(int slot) {
+    return (ByteBuffer)chunks.get(slotChunk(slot) - 1);
+  }
+
+  private int offsetOf(int slot) { return index.getInt(slot * slotSize + 8); }
+
+  private boolean keyEquals(int slot, byte[] key) {
+    ByteBuffer chunk = chunkOf(slot);
+    int offset = offsetOf(slot);
+    if (chunk.getInt(offset) != key.length)
+      return false;
+    for (int i = 0; i < key.length; i++)
+      if (chunk.get(offset + recordHeaderSize + i) != key[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Returns the slot holding the specified key or, if there is none, minus
+   * one minus the slot where it should be inserted.
+   */
+  private int find(byte[] key, int hash) {
+    int mask = capacity - 1;
+    int firstRemoved = -1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int chunk = slotChunk(slot);
+      if (chunk == emptySlot)
+        return -1 - (firstRemoved == -1 ? slot : firstRemoved);
+      if (chunk == removedSlot) {
+        if (firstRemoved == -1)
+          firstRemoved = slot;
+      }
+      else if (index.getInt(slot * slotSize) == hash && keyEquals(slot, key))
+        return slot;
+    }
+  }
+
+  private int find(Object key) {
+    byte[] bytes = encode(key);
+    return find(bytes, hash(bytes));
+  }
+
+  private void insert(byte[] key, int hash, int slot, double count) {
+    int recordSize = recordHeaderSize + key.length;
+    if (currentChunk == null || currentChunk.remaining() < recordSize) {
+      currentChunk = ByteBuffer.allocateDirect(Math.max(chunkSize, recordSize));
+      chunks.add(currentChunk);
+    }
+    int offset = currentChunk.position();
+    currentChunk.putInt(key.length);
+    currentChunk.putDouble(count);
+    currentChunk.put(key);
+
+    if (slotChunk(slot) == removedSlot)
+      numRemoved--;
+    index.putInt(slot * slotSize, hash);
+    index.putInt(slot * slotSize + 4, chunks.size());
+    index.putInt(slot * slotSize + 8, offset);
+    size++;
+    modCount++;
+    if (2 * (size + numRemoved) > capacity)
+      rehash(2 * size >= capacity / 2 ? 2 * capacity : capacity);
+  }
+
+  private void removeSlot(int slot) {
+    index.putInt(slot * slotSize + 4, removedSlot);
+    size--;
+    numRemoved++;
+    modCount++;
+  }
+
+  private void rehash(int newCapacity) {
+    if (newCapacity > maxCapacity)
+      throw new IllegalStateException(className + ": more than " +
+                                      maxCapacity / 2 + " keys would need " +
+                                      "an index of more than " + maxCapacity +
+                                      " slots");
+    ByteBuffer oldIndex = index;
+    int oldCapacity = capacity;
+    index = ByteBuffer.allocateDirect(newCapacity * slotSize);
+    capacity = newCapacity;
+    numRemoved = 0;
+    int mask = capacity - 1;
+    for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+      int chunk = oldIndex.getInt(oldSlot * slotSize + 4);
+      if (chunk == emptySlot || chunk == removedSlot)
+        continue;
+      int hash = oldIndex.getInt(oldSlot * slotSize);
+      int slot = hash & mask;
+      while (slotChunk(slot) != emptySlot)
+        slot = (slot + 1) & mask;
+      index.putInt(slot * slotSize, hash);
+      index.putInt(slot * slotSize + 4, chunk);
+      index.putInt(slot * slotSize + 8,
+                   oldIndex.getInt(oldSlot * slotSize + 8));
+    }
+  }
+
+  private double getCount(int slot) {
+    return chunkOf(slot).getDouble(offsetOf(slot) + 4);
+  }
+
+  private double setCount(int slot, double count) {
+    ByteBuffer chunk = chunkOf(slot);
+    int offset = offsetOf(slot) + 4;
+    double old = chunk.getDouble(offset);
+    chunk.putDouble(offset, count);
+    return old;
+  }
+
+  // CountsTable methods
+
+  public void add(Object key) { add(key, 1.0); }
+
+  public void add(Object key, double value) {
+    byte[] bytes = encode(key);
+    int hash = hash(bytes);
+    int slot = find(bytes, hash);
+    if (slot >= 0)
+      setCount(slot, getCount(slot) + value);
+    else
+      insert(bytes, hash, -1 - slot, value);
+  }
+
+  public void add(Object key, int hashCode, double value) { add(key, value); }
+
+  public double put(Object key, double value) {
+    byte[] bytes = encode(key);
+    int hash = hash(bytes);
+    int slot = find(bytes, hash);
+    if (slot >= 0)
+      return setCount(slot, value);
+    insert(bytes, hash, -1 - slot, value);
+    return 0.0;
+  }
+
+  public double put(Object key, int hashCode, double value) {
+    return put(key, value);
+  }
+
+  public double count(Object key) {
+    int slot = find(key);
+    return slot >= 0 ? getCount(slot) : 0.0;
+  }
+
+  public double count(Object key, int hashCode) { return count(key); }
+
+  public void addAll(CountsTable other) {
+    Iterator it = other.entrySet().iterator();
+    while (it.hasNext()) {
+      MapToPrimitive.Entry entry = (MapToPrimitive.Entry)it.next();
+      add(entry.getKey(), entry.getDoubleValue());
+    }
+  }
+
+  public void putAll(CountsTable other) {
+    Iterator it = other.entrySet().iterator();
+    while (it.hasNext()) {
+      MapToPrimitive.Entry entry = (MapToPrimitive.Entry)it.next();
+      put(entry.getKey(), entry.getDoubleValue());
+    }
+  }
+
+  public void removeItemsBelow(double threshold) {
+    for (int slot = 0; slot < capacity; slot++) {
+      int chunk = slotChunk(slot);
+      if (chunk != emptySlot && chunk != removedSlot &&
+          getCount(slot) < threshold)
+        removeSlot(slot);
+    }
+    rehash(capacity);
+  }
+
+  /**
+   * Writes every key and its count as <tt>(name key count)</tt>, one per
+   * line, in the format of the observed events file.  Keys are written
+   * straight from their stored form, without being rebuilt.
+   */
+  public void output(String eventName, Writer out) throws IOException {
+    for (int slot = 0; slot < capacity; slot++) {
+      int chunk = slotChunk(slot);
+      if (chunk == emptySlot || chunk == removedSlot)
+        continue;
+      out.write("(");
+      out.write(eventName);
+      out.write(" ");
+      out.write(keyString(chunkOf(slot), offsetOf(slot)));
+      out.write(" ");
+      out.write(String.valueOf(getCount(slot)));
+      out.write(")\n");
+    }
+  }
+
+  // Map and MapToPrimitive methods
+
+  public int size() { return size; }
+
+  public boolean containsKey(Object key) { return find(key) >= 0; }
+
+  public Object get(Object key) {
+    int slot = find(key);
+    return slot >= 0 ? Double.valueOf(getCount(slot)) : null;
+  }
+
+  public Object remove(Object key) {
+    int slot = find(key);
+    if (slot < 0)
+      return null;
+    Double old = Double.valueOf(getCount(slot));
+    removeSlot(slot);
+    return old;
+  }
+
+  /**
+   * Removes all keys and releases the buffers holding them.
+   */
+  public void clear() {
+    chunks.clear();
+    currentChunk = null;
+    capacity = defaultCapacity;
+    index = ByteBuffer.allocateDirect(capacity * slotSize);
+    size = 0;
+    numRemoved = 0;
+    modCount++;
+  }
+
+  public MapToPrimitive.Entry getEntry(Object key) {
+    int slot = find(key);
+    return slot >= 0 ? new Entry(slot, key) : null;
+  }
+
+  public MapToPrimitive.Entry getEntry(Object key, int hashCode) {
+    return getEntry(key);
+  }
+
+  public MapToPrimitive.Entry getEntryMRU(Object key) { return getEntry(key); }
+
+  public MapToPrimitive.Entry getEntryMRU(Object key, int hashCode) {
+    return getEntry(key);
+  }
+
+  /**
+   * Removes the key in the specified slot of the hash table, if there is
+   * one, as a hash map removes the first key of the specified bucket.
+   */
+  public void removeRandom(int bucketIndex) {
+    if (bucketIndex < 0 || bucketIndex >= capacity)
+      return;
+    int chunk = slotChunk(bucketIndex);
+    if (chunk != emptySlot && chunk != removedSlot)
+      removeSlot(bucketIndex);
+  }
+
+  public Set entrySet() {
+    return new AbstractSet() {
+      public int size() { return size; }
+      public Iterator iterator() { return new EntryIterator(); }
+    };
+  }
+
+  private class EntryIterator implements Iterator {
+    private int next = -1;
+    private int current = -1;
+    private int expectedModCount = modCount;
+
+    EntryIterator() { advance(); }
+
+    private void advance() {
+      for (next++; next < capacity; next++) {
+        int chunk = slotChunk(next);
+        if (chunk != emptySlot && chunk != removedSlot)
+          break;
+      }
+    }
+
+    public boolean hasNext() { return next < capacity; }
+
+    public Object next() {
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException();
+      if (next >= capacity)
+        throw new NoSuchElementException();
+      current = next;
+      advance();
+      return new Entry(current, decode(chunkOf(current), offsetOf(current)));
+    }
+
+    public void remove() {
+      if (current == -1)
+        throw new IllegalStateException();
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException();
+      removeSlot(current);
+      expectedModCount = modCount;
+      current = -1;
+    }
+  }
+
+  /**
+   * An entry whose count lives in its record, so that changes to the entry
+   * change the table.
+   */
+  private class Entry extends AbstractMapToPrimitive.Entry {
+    private int slot;
+
+    Entry(int slot, Object key) {
+      this.slot = slot;
+      this.key = key;
+    }
+
+    /**
+     * Makes this entry return the specified key, if it is a different object
+     * equal to its key.  The record is left as it is, since equal keys
+     * have the same printed form.
+     */
+    public boolean replaceKey(Object newKey) {
+      if (key != newKey && key.equals(newKey)) {
+        key = newKey;
+        return true;
+      }
+      return false;
+    }
+
+    public Object getValue() { return Double.valueOf(getCount(slot)); }
+
+    public Object setValue(Object value) {
+      return Double.valueOf(setCount(slot, ((Number)value).doubleValue()));
+    }
+
+    public int numDoubles() { return 1; }
+
+    public double getDoubleValue() { return getCount(slot); }
+
+    public double getDoubleValue(int index) {
+      if (index != 0)
+        throw new IndexOutOfBoundsException();
+      return getCount(slot);
+    }
+
+    public double set(int index, double value) {
+      if (index != 0)
+        throw new IndexOutOfBoundsException();
+      return setCount(slot, value);
+    }
+
+    public void add(double value) { setCount(slot, getCount(slot) + value); }
+
+    public void add(int index, double value) {
+      if (index != 0)
+        throw new IndexOutOfBoundsException();
+      add(value);
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry))
+        return false;
+      Map.Entry other = (Map.Entry)o;
+      return key.equals(other.getKey()) && getValue().equals(other.getValue());
+    }
+
+    public int hashCode() { return key.hashCode() ^ getValue().hashCode(); }
+
+    public String toString() { return key + "=" + getCount(slot); }
+  }
+}
@@ -0,0 +1,143 @@
+package portuguese;
+
+import java.io.*;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An output stream that compresses its data in gzip format on several
+ * threads.  The data is cut into blocks of a fixed size, each block is
+ * compressed on a worker thread into a complete gzip member, and the members
+ * are written to the underlying stream in order.  A file made of
+ * concatenated gzip members is a valid gzip file, so the output can be read
+ * by <tt>gzip</tt>, <tt>zcat</tt> and {@link java.util.zip.GZIPInputStream}
+ * as usual.
+ * <p>
+ * At most twice as many blocks as there are threads are held in memory at
+ * any time; a write that completes a block waits while that many blocks are
+ * still being compressed.  As with {@link GZIPOutputStream},
+ * {@link #flush()} does not force out data that has not yet filled a block.
+ *
+ * @see ReadAheadInputStream
+ * @see GZIPStreams
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+  // data members
+  private ExecutorService pool;
+  private int maxInFlight;
+  private LinkedList inFlight = new LinkedList();
+  private byte[] block;
+  private int blockLength;
+  private boolean closed;
+  private boolean wroteMember;
+
+  /**
+   * Creates a parallel gzip stream writing to the specified stream.
+   *
+   * @param out the stream to which the compressed data is written
+   * @param blockSize the number of uncompressed bytes in each gzip member
+   * @param numThreads the number of compressing threads
+   */
+  public ParallelGZIPOutputStream(OutputStream out, int blockSize,
+                                  int numThreads) {
+    super(out);
+    if (blockSize <= 0 || numThreads <= 0)
+      throw new IllegalArgumentException();
+    block = new byte[blockSize];
+    maxInFlight = 2 * numThreads;
+    pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Parallel GZIP Compressor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public void write(int b) throws IOException {
+    if (blockLength == block.length)
+      submitBlock();
+    block[blockLength++] = (byte)b;
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (blockLength == block.length)
+        submitBlock();
+      int n = Math.min(len, block.length - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    if (closed)
+      throw new IOException("stream closed");
+    if (blockLength == 0 && wroteMember)
+      return;
+    final byte[] data = block;
+    final int length = blockLength;
+    inFlight.addLast(pool.submit(new Callable() {
+      public Object call() throws IOException {
+        ByteArrayOutputStream member =
+          new ByteArrayOutputStream(length / 2 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(member);
+        gzip.write(data, 0, length);
+        gzip.close();
+        return member;
+      }
+    }));
+    block = new byte[block.length];
+    blockLength = 0;
+    wroteMember = true;
+    while (inFlight.size() >= maxInFlight)
+      writeOldest();
+  }
+
+  private void writeOldest() throws IOException {
+    Future future = (Future)inFlight.removeFirst();
+    try {
+      ((ByteArrayOutputStream)future.get()).writeTo(out);
+    }
+    catch (InterruptedException ie) {
+      throw new InterruptedIOException(ie.toString());
+    }
+    catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      throw new IOException(String.valueOf(cause));
+    }
+  }
+
+  /** Writes out the members compressed so far and flushes the stream. */
+  public void flush() throws IOException {
+    while (!inFlight.isEmpty() && ((Future)inFlight.getFirst()).isDone())
+      writeOldest();
+    out.flush();
+  }
+
+  /**
+   * Writes out all remaining data, stops the compressing threads and closes
+   * the underlying stream.  An empty stream is written as a single empty
+   * gzip member.
+   */
+  public void close() throws IOException {
+    if (closed)
+      return;
+    try {
+      submitBlock();
+      while (!inFlight.isEmpty())
+        writeOldest();
+      out.flush();
+    }
+    finally {
+      closed = true;
+      pool.shutdownNow();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,825 @@
+package portuguese;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.CharacterCodingException;
+import java.util.*;
+import java.util.concurrent.*;
+import danbikel.lisp.*;
+import danbikel.parser.Parser;
+import danbikel.parser.Settings;
+import danbikel.util.Time;
+
+/**
+ * Parses a file of sentences on several threads that share a single
+ * {@link DecoderServer}, starting with the longest sentences so that a few
+ * very long sentences do not hold up the end of a run.  Every sentence is
+ * parsed by a {@link portuguese.Decoder} within a time and chart item budget;
+ * when the budget runs out, the sentence is decoded again with a tighter
+ * beam, and if that fails too, a flat tree is produced instead.
+ * <p>
+ * The output file has exactly one tree per input sentence, in input order,
+ * so that it can be scored against the gold file.  Sentences that received
+ * a fallback tree are listed, together with the reason, in a file with the
+ * same name as the output file plus {@link #flagsFilenameSuffix}.
+ * <p>
+ * When <tt>parser.decoder.anytime</tt> is <tt>true</tt>, sentences are
+ * decoded with {@link Decoder#parseAnytime(SexpList,int)} instead, either
+ * under the per-sentence <tt>parser.decoder.latencyTarget</tt> or, if
+ * <tt>parser.scheduler.batchLatencyTarget</tt> is set, under a share of the
+ * time left for the whole file that is proportional to the cube of the
+ * sentence length.
+ * <p>
+ * Sentences of the input file may carry {@link SpanConstraints}, which are
+ * given to the decoder unless <tt>parser.scheduler.useSpanConstraints</tt> is
+ * <tt>false</tt>, so that the same file can be parsed with and without them
+ * to measure the chart items and time they save.
+ * <p>
+ * When <tt>parser.scheduler.kBest</tt> is greater than zero, the <i>k</i>
+ * best parses of every sentence are also written, with their
+ * log-probabilities, to a file with the same name as the output file plus
+ * {@link #kBestFilenameSuffix}.  They are read lazily from the chart of the
+ * sentence (see {@link Decoder#kBestParses(int)}), so that a long list costs
+ * little more than the best parse.  Each sentence's list starts with a line
+ * holding the number of parses and the sentence number, followed by a line
+ * with the log-probability and a line with the tree of each parse, and ends
+ * with an empty line.  Sentences decoded in anytime mode or given a flat tree
+ * have only their output tree in the list.
+ * <p>
+ * When a gold file is given with <tt>-gold</tt>, the output file is also
+ * made scorable against it by {@link FakePos}, in the same process, and
+ * written to a file with the same name as the output file plus
+ * {@link #scorableFilenameSuffix}.
+ * <p>
+ * Raw text, read from a file or from standard input with <tt>-raw</tt>,
+ * is parsed as a stream instead (see {@link #processRawText}): it is split
+ * into sentences and tokens by a {@link RawTextTokenizer} as it is read,
+ * and the sentences are handed to the workers through a bounded queue, so
+ * that reading waits while the queue is full.  Trees are written, in input
+ * order, as soon as they and the trees before them are finished, to a file
+ * or to standard output, and reading also waits while too many finished
+ * trees wait for an earlier one, so that memory stays bounded however long
+ * the text is.  Sentences are parsed in input order in this mode, and the
+ * batch latency target is ignored.
+ * <p>
+ * The time from the start of the Java virtual machine to the first parsed
+ * sentence is reported at the end of a run, as a measure of the startup time
+ * of the parser, model loading included, together with the bytes allocated
+ * by the worker threads, per sentence, and the number and total time of the
+ * garbage collections during the run, as measures of the garbage produced by
+ * decoding.  The peak heap and resident set size of the process and all of
+ * its garbage collections, model loading included, are reported after the
+ * run (see {@link ProcessStats}).
+ * <p>
+ * The following settings control the scheduler:
+ * <table>
+ * <tr><td><tt>parser.scheduler.numThreads</tt></td>
+ *     <td>number of worker threads (default: number of processors)</td></tr>
+ * <tr><td><tt>parser.scheduler.maxParseTime</tt></td>
+ *     <td>time budget per sentence, in milliseconds (0 for none)</td></tr>
+ * <tr><td><tt>parser.scheduler.maxChartItems</tt></td>
+ *     <td>chart item budget per sentence (0 for none)</td></tr>
+ * <tr><td><tt>parser.scheduler.fallbackPruneFactor</tt></td>
+ *     <td>beam width for the second attempt (default 1; 0 to skip it)</td></tr>
+ * <tr><td><tt>parser.scheduler.fallbackParseTime</tt></td>
+ *     <td>time budget for the second attempt, in milliseconds</td></tr>
+ * <tr><td><tt>parser.scheduler.fallbackTag</tt></td>
+ *     <td>part of speech used in flat trees for unseen words</td></tr>
+ * <tr><td><tt>parser.scheduler.batchLatencyTarget</tt></td>
+ *     <td>time budget for the whole file in anytime mode, in milliseconds
+ *     (0 for none)</td></tr>
+ * <tr><td><tt>parser.scheduler.kBest</tt></td>
+ *     <td>number of parses per sentence in the k-best file (0 for no
+ *     k-best file)</td></tr>
+ * <tr><td><tt>parser.scheduler.useSpanConstraints</tt></td>
+ *     <td>whether to obey the span constraints of the input file (default
+ *     true)</td></tr>
+ * <tr><td><tt>parser.scheduler.streamQueueSize</tt></td>
+ *     <td>number of sentences of raw text read ahead of the workers
+ *     (default: four per worker thread)</td></tr>
+ * <tr><td><tt>parser.scheduler.maxRawSentenceLength</tt></td>
+ *     <td>number of tokens after which a sentence of raw text is cut
+ *     (default 250)</td></tr>
+ * </table>
+ */
+public class ParseScheduler {
+  // constants
+  private final static String className = ParseScheduler.class.getName();
+
+  /** The property specifying the number of worker threads. */
+  public final static String numThreadsProperty =
+    "parser.scheduler.numThreads";
+  /** The property specifying the time budget per sentence. */
+  public final static String maxParseTimeProperty =
+    "parser.scheduler.maxParseTime";
+  /** The property specifying the chart item budget per sentence. */
+  public final static String maxChartItemsProperty =
+    "parser.scheduler.maxChartItems";
+  /** The property specifying the beam width of the second attempt. */
+  public final static String fallbackPruneFactorProperty =
+    "parser.scheduler.fallbackPruneFactor";
+  /** The property specifying the time budget of the second attempt. */
+  public final static String fallbackParseTimeProperty =
+    "parser.scheduler.fallbackParseTime";
+  /** The property specifying the tag used in flat trees for unseen words. */
+  public final static String fallbackTagProperty =
+    "parser.scheduler.fallbackTag";
+
+  /** The property specifying the anytime time budget for the whole file. */
+  public final static String batchLatencyTargetProperty =
+    "parser.scheduler.batchLatencyTarget";
+
+  /** The property specifying the number of parses in k-best lists. */
+  public final static String kBestProperty = "parser.scheduler.kBest";
+  /** The property specifying whether to obey span constraints. */
+  public final static String useSpanConstraintsProperty =
+    "parser.scheduler.useSpanConstraints";
+  /** The property specifying the number of raw sentences read ahead. */
+  public final static String streamQueueSizeProperty =
+    "parser.scheduler.streamQueueSize";
+  /** The property specifying the length at which raw sentences are cut. */
+  public final static String maxRawSentenceLengthProperty =
+    "parser.scheduler.maxRawSentenceLength";
+
+  /** The file name standing for standard input or standard output. */
+  public final static String standardStream = "-";
+
+  /** The suffix of the file listing sentences that got a fallback tree. */
+  public final static String flagsFilenameSuffix = ".flags";
+  /** The suffix of the file of k-best lists. */
+  public final static String kBestFilenameSuffix = ".kbest";
+  /** The suffix of the output file made scorable against a gold file. */
+  public final static String scorableFilenameSuffix = ".scorable";
+
+  /** The reason recorded for sentences re-decoded with a tighter beam. */
+  public final static String TIGHT_BEAM = "tight-beam";
+  /** The reason recorded for sentences that got a flat tree. */
+  public final static String FLAT = "flat";
+
+  private final static Job endOfStream = new Job(-1, null, null);
+
+  // data members
+  private DecoderServer server;
+  private int numThreads;
+  private int maxParseTime;
+  private int maxChartItems;
+  private double fallbackPruneFactor;
+  private int fallbackParseTime;
+  private Symbol fallbackTag;
+  private int batchLatencyTarget;
+  private int kBest;
+  private boolean useSpanConstraints;
+  private int streamQueueSize;
+  private int maxRawSentenceLength;
+
+  private SexpList[] sentences;
+  private SpanConstraints[] spanConstraints;
+  private Integer[] order;
+  private int nextToSchedule;
+  private double remainingCost;
+  private Time batchTime;
+  private BlockingQueue queue;
+  private Semaphore window;
+  private Map finishedJobs = new HashMap();
+  private int nextToWrite;
+  private Writer out;
+  private Writer flagsOut;
+  private Writer kBestOut;
+  private volatile IOException writeError;
+  private long totalChartItems;
+  private long totalPrunedTags;
+  private long totalKBestMillis;
+  private long totalSkippedSpans;
+  private long totalVetoedItems;
+  private long firstParseMillis;
+  private long totalAllocatedBytes;
+  private int numParsed;
+  private long[] gcAtStart;
+
+  /**
+   * Constructs a scheduler that parses with the model in the specified
+   * derived data file.
+   *
+   * @param derivedDataFilename the file of derived counts written by the
+   * trainer (<tt>objects.gz</tt>)
+   */
+  public ParseScheduler(String derivedDataFilename)
+    throws IOException, ClassNotFoundException {
+    server = new DecoderServer(derivedDataFilename);
+    numThreads =
+      Settings.getIntProperty(numThreadsProperty,
+                              Runtime.getRuntime().availableProcessors());
+    maxParseTime = Settings.getIntProperty(maxParseTimeProperty, 0);
+    maxChartItems = Settings.getIntProperty(maxChartItemsProperty, 0);
+    String fallbackPruneFactorStr = Settings.get(fallbackPruneFactorProperty);
+    fallbackPruneFactor = fallbackPruneFactorStr == null ? 1.0 :
+      Double.parseDouble(fallbackPruneFactorStr);
+    fallbackParseTime =
+      Settings.getIntProperty(fallbackParseTimeProperty, maxParseTime);
+    String fallbackTagStr = Settings.get(fallbackTagProperty);
+    fallbackTag = Symbol.add(fallbackTagStr == null ? "N" : fallbackTagStr);
+    batchLatencyTarget = Settings.getIntProperty(batchLatencyTargetProperty, 0);
+    kBest = Settings.getIntProperty(kBestProperty, 0);
+    useSpanConstraints =
+      Settings.getBooleanProperty(useSpanConstraintsProperty, true);
+    streamQueueSize = Settings.getIntProperty(streamQueueSizeProperty, 0);
+    maxRawSentenceLength =
+      Settings.getIntProperty(maxRawSentenceLengthProperty,
+                              RawTextTokenizer.defaultMaxSentenceLength);
+  }
+
+  /** Returns the number of worker threads used by this scheduler. */
+  public int numThreads() { return numThreads; }
+
+  /** Sets the number of worker threads used by this scheduler. */
+  public void setNumThreads(int numThreads) { this.numThreads = numThreads; }
+
+  /**
+   * Sets the number of parses per sentence in the k-best file, or zero for
+   * no k-best file.
+   */
+  public void setKBest(int kBest) { this.kBest = kBest; }
+
+  /**
+   * Parses every sentence in the input file, writing one tree per line to
+   * the output file in input order.
+   */
+  public void processInputFile(String inputFilename, String outputFilename)
+    throws IOException {
+    readSentences(inputFilename);
+    queue = null;
+    window = null;
+    openOutput(outputFilename);
+
+    Time totalTime = new Time();
+    batchTime = totalTime;
+    gcAtStart = ProcessStats.gcSnapshot();
+    joinWorkers(startWorkers());
+    closeOutput();
+    if (nextToWrite != sentences.length)
+      throw new IOException(className + ": only " + nextToWrite + " of " +
+                            sentences.length + " trees of " +
+                            inputFilename + " were written");
+    printStats(totalTime);
+  }
+
+  /**
+   * Parses raw text as it is read, writing one tree per sentence to the
+   * output in input order as soon as it is finished.
+   *
+   * @param inputFilename the file of raw text, or {@link #standardStream}
+   * for standard input
+   * @param outputFilename the output file, or {@link #standardStream} for
+   * standard output, in which case no flags file or k-best file is written
+   */
+  public void processRawText(String inputFilename, String outputFilename)
+    throws IOException {
+    Reader reader = inputFilename.equals(standardStream) ?
+      TextFiles.newReader(System.in) : TextFiles.newReader(inputFilename);
+    RawTextTokenizer tokenizer =
+      new RawTextTokenizer(reader, maxRawSentenceLength);
+    int queueSize = streamQueueSize > 0 ? streamQueueSize : 4 * numThreads;
+    sentences = null;
+    spanConstraints = null;
+    order = null;
+    reset();
+    queue = new ArrayBlockingQueue(queueSize);
+    window = new Semaphore(queueSize + numThreads);
+    openOutput(outputFilename);
+
+    Time totalTime = new Time();
+    batchTime = totalTime;
+    gcAtStart = ProcessStats.gcSnapshot();
+    Thread[] workers = startWorkers();
+    IOException readError = null;
+    int numSentences = 0;
+    try {
+      try {
+        SexpList sentence;
+        while (writeError == null &&
+               (sentence = tokenizer.nextSentence()) != null) {
+          window.acquire();
+          queue.put(new Job(numSentences++, sentence, null));
+        }
+      }
+      catch (CharacterCodingException cce) {
+        readError = encodingError(inputFilename, cce);
+      }
+      catch (IOException ioe) {
+        readError = ioe;
+      }
+      queue.put(endOfStream);
+    }
+    catch (InterruptedException ie) {
+      throw new InterruptedIOException(ie.toString());
+    }
+    joinWorkers(workers);
+    reader.close();
+    closeOutput();
+    if (readError != null)
+      throw readError;
+
+    printStats(totalTime);
+    System.err.println("sentences of raw text: " + numSentences + " (" +
+                       tokenizer.numCut() + " cut at " +
+                       maxRawSentenceLength + " tokens)");
+  }
+
+  private void openOutput(String outputFilename) throws IOException {
+    finishedJobs.clear();
+    flagsOut = null;
+    kBestOut = null;
+    writeError = null;
+    if (outputFilename.equals(standardStream)) {
+      out = TextFiles.newWriter(System.out);
+      return;
+    }
+    out = TextFiles.newWriter(outputFilename);
+    flagsOut = TextFiles.newWriter(outputFilename + flagsFilenameSuffix);
+    if (kBest > 0)
+      kBestOut = TextFiles.newWriter(outputFilename + kBestFilenameSuffix);
+  }
+
+  private void closeOutput() throws IOException {
+    out.close();
+    if (flagsOut != null)
+      flagsOut.close();
+    if (kBestOut != null)
+      kBestOut.close();
+    if (writeError != null)
+      throw writeError;
+  }
+
+  private Thread[] startWorkers() {
+    Thread[] workers = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      workers[i] = new Thread(new Worker(i), "Parse Worker " + i);
+      workers[i].start();
+    }
+    return workers;
+  }
+
+  private static void joinWorkers(Thread[] workers)
+    throws InterruptedIOException {
+    for (int i = 0; i < workers.length; i++) {
+      try {
+        workers[i].join();
+      }
+      catch (InterruptedException ie) {
+        throw new InterruptedIOException(ie.toString());
+      }
+    }
+  }
+
+  private void printStats(Time totalTime) {
+    System.err.println("\ntotal chart items: " + totalChartItems);
+    System.err.println("total tags removed by tag dictionary: " +
+                       totalPrunedTags);
+    if (useSpanConstraints && spanConstraints != null)
+      printSpanConstraintStats();
+    if (kBest > 0)
+      System.err.println("total k-best extraction time: " +
+                         totalKBestMillis + " ms");
+    System.err.println("total elapsed time: " + totalTime);
+    System.err.println("time to first parse since JVM start: " +
+                       firstParseMillis + " ms");
+    if (totalAllocatedBytes >= 0)
+      System.err.println("total bytes allocated by workers: " +
+                         totalAllocatedBytes + " (" +
+                         (numParsed == 0 ? 0 :
+                          totalAllocatedBytes / numParsed) +
+                         " per sentence)");
+    long[] gc = ProcessStats.gcSnapshot();
+    System.err.println("garbage collections while parsing: " +
+                       (gc[0] - gcAtStart[0]) + " (" +
+                       (gc[1] - gcAtStart[1]) + " ms)");
+    String cacheStats = server.getCacheStats();
+    if (cacheStats != null)
+      System.err.print(cacheStats);
+  }
+
+  /**
+   * Returns the bytes allocated so far by the current thread, or -1 if the
+   * virtual machine does not measure them.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean))
+      return -1;
+    return ((com.sun.management.ThreadMXBean)threads).
+      getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private void printSpanConstraintStats() {
+    int numConstrained = 0, numRequired = 0, numForbidden = 0;
+    for (int i = 0; i < spanConstraints.length; i++) {
+      if (spanConstraints[i] == null)
+        continue;
+      numConstrained++;
+      numRequired += spanConstraints[i].numRequired();
+      numForbidden += spanConstraints[i].numForbidden();
+    }
+    if (numConstrained == 0)
+      return;
+    System.err.println("sentences with span constraints: " + numConstrained +
+                       " (" + numRequired + " required, " + numForbidden +
+                       " forbidden spans)");
+    System.err.println("total spans skipped by span constraints: " +
+                       totalSkippedSpans);
+    System.err.println("total items vetoed by span constraints: " +
+                       totalVetoedItems);
+  }
+
+  private static Sexp readSentence(SexpTokenizer tok, String inputFilename)
+    throws IOException {
+    try {
+      return Sexp.read(tok);
+    }
+    catch (CharacterCodingException cce) {
+      throw encodingError(inputFilename, cce);
+    }
+  }
+
+  private static IOException encodingError(String inputFilename,
+                                           CharacterCodingException cce) {
+    return new IOException(className + ": " + inputFilename + " is not " +
+                           "in the encoding of the language package (" +
+                           cce + "); transcode it with " +
+                           TextFiles.class.getName());
+  }
+
+  private void readSentences(String inputFilename) throws IOException {
+    SexpTokenizer tok = TextFiles.newTokenizer(inputFilename);
+    List sentenceList = new ArrayList();
+    List constraintList = new ArrayList();
+    Sexp curr = null;
+    while ((curr = readSentence(tok, inputFilename)) != null) {
+      SpanConstraints constraints = null;
+      if (SpanConstraints.isConstrainedSentence(curr)) {
+        try {
+          constraints = SpanConstraints.fromSexp(curr);
+        }
+        catch (IllegalArgumentException iae) {
+          System.err.println(className + ": ignoring span constraints of " +
+                             "sentence No. " + (sentenceList.size() + 1) +
+                             ": " + iae.getMessage());
+        }
+        curr = SpanConstraints.words(curr);
+      }
+      if (!curr.isList())
+        throw new IOException(className + ": " + inputFilename + ": " +
+                              "sentence No. " + (sentenceList.size() + 1) +
+                              " is not a list: " + curr);
+      sentenceList.add(curr.list());
+      constraintList.add(useSpanConstraints ? constraints : null);
+    }
+
+    sentences =
+      (SexpList[])sentenceList.toArray(new SexpList[sentenceList.size()]);
+    spanConstraints = (SpanConstraints[])
+      constraintList.toArray(new SpanConstraints[constraintList.size()]);
+    reset();
+    remainingCost = 0.0;
+    for (int i = 0; i < sentences.length; i++)
+      remainingCost += cost(sentences[i]);
+
+    // longest sentences first; ties keep input order
+    order = new Integer[sentences.length];
+    for (int i = 0; i < order.length; i++)
+      order[i] = Integer.valueOf(i);
+    Arrays.sort(order, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        int idx1 = ((Integer)o1).intValue();
+        int idx2 = ((Integer)o2).intValue();
+        return sentences[idx2].length() - sentences[idx1].length();
+      }
+    });
+  }
+
+  private void reset() {
+    nextToSchedule = 0;
+    nextToWrite = 0;
+    totalChartItems = 0;
+    totalPrunedTags = 0;
+    totalKBestMillis = 0;
+    totalSkippedSpans = 0;
+    totalVetoedItems = 0;
+    firstParseMillis = 0;
+    totalAllocatedBytes = 0;
+    numParsed = 0;
+  }
+
+  /** The expected relative decoding cost of a sentence. */
+  private static double cost(SexpList sentence) {
+    double length = sentence.length();
+    return length * length * length;
+  }
+
+  /**
+   * Returns the next sentence to parse, or <code>null</code> if there are
+   * no more sentences, taking it from the queue of raw sentences when
+   * parsing a stream.
+   */
+  private Job nextJob() {
+    if (queue == null)
+      return nextScheduledJob();
+    try {
+      Job job = (Job)queue.take();
+      if (job == endOfStream) {
+        // leave the end of the stream for the other workers
+        queue.put(endOfStream);
+        return null;
+      }
+      return job;
+    }
+    catch (InterruptedException ie) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the next sentence of the input file to parse, or
+   * <code>null</code> if there are no more sentences.  When there is a batch
+   * latency target, this method also sets the latency target of the
+   * returned sentence to its share of the time left for all the sentences
+   * not yet scheduled, across all workers.
+   */
+  private synchronized Job nextScheduledJob() {
+    if (nextToSchedule == order.length || writeError != null)
+      return null;
+    int idx = order[nextToSchedule++].intValue();
+    Job job = new Job(idx, sentences[idx], spanConstraints[idx]);
+    if (batchLatencyTarget > 0) {
+      double sentenceCost = cost(sentences[idx]);
+      long timeLeft = batchLatencyTarget - batchTime.elapsedMillis();
+      double share = remainingCost > 0 ? sentenceCost / remainingCost : 1.0;
+      job.latencyTarget =
+        (int)Math.max(1, Math.round(timeLeft * numThreads * share));
+      remainingCost -= sentenceCost;
+    }
+    return job;
+  }
+
+  /**
+   * Records the tree for the specified sentence and writes out every tree
+   * whose predecessors have all been written.
+   */
+  private synchronized void finished(Job job, long kBestMillis,
+                                     long allocated, Decoder decoder) {
+    if (firstParseMillis == 0)
+      firstParseMillis = System.currentTimeMillis() -
+        ManagementFactory.getRuntimeMXBean().getStartTime();
+    totalChartItems += decoder.numChartItems();
+    totalPrunedTags += decoder.numPrunedTags();
+    totalKBestMillis += kBestMillis;
+    totalSkippedSpans += decoder.numSkippedSpans();
+    totalVetoedItems += decoder.numVetoedItems();
+    totalAllocatedBytes = allocated < 0 || totalAllocatedBytes < 0 ? -1 :
+      totalAllocatedBytes + allocated;
+    numParsed++;
+    finishedJobs.put(Integer.valueOf(job.idx), job);
+    Job next;
+    while ((next = (Job)finishedJobs.remove(Integer.valueOf(nextToWrite))) !=
+           null) {
+      // after a write error, trees are still taken in order, so that a
+      // stream being read is not left waiting for them
+      if (writeError == null) {
+        try {
+          write(next);
+        }
+        catch (IOException ioe) {
+          writeError = ioe;
+        }
+      }
+      nextToWrite++;
+      if (window != null)
+        window.release();
+    }
+    if (writeError == null) {
+      try {
+        out.flush();
+        if (flagsOut != null)
+          flagsOut.flush();
+        if (kBestOut != null)
+          kBestOut.flush();
+      }
+      catch (IOException ioe) {
+        writeError = ioe;
+      }
+    }
+  }
+
+  private void write(Job job) throws IOException {
+    out.write(String.valueOf(job.tree));
+    out.write("\n");
+    if (job.flag != null && flagsOut != null)
+      flagsOut.write((job.idx + 1) + "\t" + job.sentence.length() + "\t" +
+                     job.flag + "\n");
+    if (kBestOut != null && job.kBestList != null)
+      writeKBestList(job.idx, job.kBestList);
+  }
+
+  private void writeKBestList(int idx, SexpList kBestList)
+    throws IOException {
+    kBestOut.write(kBestList.length() + "\t" + (idx + 1) + "\n");
+    for (int i = 0; i < kBestList.length(); i++) {
+      SexpList parse = kBestList.listAt(i);
+      kBestOut.write(parse.get(0) + "\n");
+      kBestOut.write(parse.get(1) + "\n");
+    }
+    kBestOut.write("\n");
+  }
+
+  /** A sentence to parse and, once it is parsed, its tree. */
+  private static class Job {
+    private int idx;
+    private SexpList sentence;
+    private SpanConstraints constraints;
+    private int latencyTarget;
+    private Sexp tree;
+    private String flag;
+    private SexpList kBestList;
+
+    Job(int idx, SexpList sentence, SpanConstraints constraints) {
+      this.idx = idx;
+      this.sentence = sentence;
+      this.constraints = constraints;
+    }
+  }
+
+  private class Worker implements Runnable {
+    private int id;
+
+    Worker(int id) { this.id = id; }
+
+    public void run() {
+      Decoder decoder = new Decoder(id, server);
+      if (kBest > 0)
+        decoder.keepDerivations();
+      double pruneFactor = decoder.getPruneFactor();
+      double maxPruneFactor = decoder.getMaxPruneFactor();
+      Job job;
+      while ((job = nextJob()) != null) {
+        int idx = job.idx;
+        SexpList sentence = job.sentence;
+        Sexp tree = null;
+        String flag = null;
+        Time time = new Time();
+        long allocatedAtStart = allocatedBytes();
+        SexpList kBestList = null;
+        long kBestMillis = 0;
+        try {
+          try {
+            decoder.setPruneFactors(pruneFactor, maxPruneFactor);
+            decoder.setMaxParseTime(maxParseTime);
+            decoder.setMaxChartItems(maxChartItems);
+            decoder.setSpanConstraints(job.constraints);
+            if (decoder.anytime()) {
+              int latencyTarget = job.latencyTarget > 0 ?
+                job.latencyTarget : decoder.latencyTarget();
+              tree = decoder.parseAnytime(sentence, latencyTarget);
+            }
+            else
+              tree = decoder.parseSentence(sentence);
+
+            if (tree == null && decoder.budgetExhausted() &&
+                fallbackPruneFactor > 0) {
+              flag = TIGHT_BEAM;
+              decoder.setPruneFactors(fallbackPruneFactor,
+                                      fallbackPruneFactor);
+              decoder.setMaxParseTime(fallbackParseTime);
+              tree = decoder.parseSentence(sentence);
+            }
+          }
+          catch (Throwable t) {
+            // errors such as running out of memory or stack on one sentence
+            // are survived too, so that its tree is still written
+            System.err.println(className + ": error parsing sentence No. " +
+                               (idx + 1) + ": " + t);
+            tree = null;
+          }
+          if (tree == null) {
+            flag = FLAT;
+            tree = decoder.flatParse(sentence, fallbackTag);
+          }
+          if (kBest > 0) {
+            Time kBestTime = new Time();
+            if (flag != FLAT && !decoder.anytime()) {
+              try {
+                kBestList = decoder.kBestParses(kBest);
+              }
+              catch (Throwable t) {
+                System.err.println(className + ": error extracting the " +
+                                   "k-best parses of sentence No. " +
+                                   (idx + 1) + ": " + t);
+                kBestList = null;
+              }
+            }
+            if (kBestList == null || kBestList.length() == 0) {
+              double logProb = flag == FLAT ? Double.NEGATIVE_INFINITY :
+                               decoder.topLogProb();
+              kBestList = new SexpList(1).add(new SexpList(2).add(
+                Symbol.add(String.valueOf(logProb))).add(tree));
+            }
+            kBestMillis = kBestTime.elapsedMillis();
+          }
+          System.err.println(className + ": sentence No. " + (idx + 1) +
+                             " (" + sentence.length() + " words, " +
+                             decoder.numChartItems() + " items" +
+                             (flag == null ? "" : ", " + flag) + "): " +
+                             time);
+        }
+        finally {
+          // every job is finished, even one whose flat parse failed, so that
+          // the trees after it are still written
+          job.tree = tree;
+          job.flag = flag;
+          job.kBestList = kBestList;
+          long allocated = allocatedAtStart < 0 ? -1 :
+            allocatedBytes() - allocatedAtStart;
+          finished(job, kBestMillis, allocated, decoder);
+        }
+      }
+    }
+  }
+
+  private static void usage() {
+    System.err.println("usage: -is <derived data file> " +
+                       "(-sa <input file> | -raw <raw text file or ->) " +
+                       "[-out <output file or ->] [-nt <num threads>] " +
+                       "[-k <k-best list size>] [-gold <gold file>]");
+    System.exit(1);
+  }
+
+  /**
+   * Parses a file with the model in a derived data file.
+   *
+   * @param args usage: <tt>-is &lt;derived data file&gt;
+   * (-sa &lt;input file&gt; | -raw &lt;raw text file or -&gt;)
+   * [-out &lt;output file or -&gt;] [-nt &lt;num threads&gt;]
+   * [-k &lt;k-best list size&gt;] [-gold &lt;gold file&gt;]</tt>; the
+   * output file defaults to the input file plus <tt>.parsed</tt>, or to
+   * standard output when raw text is read from standard input
+   */
+  public static void main(String[] args) {
+    String derivedDataFilename = null, inputFilename = null;
+    String rawFilename = null, outputFilename = null, goldFilename = null;
+    int numThreads = 0;
+    int kBest = -1;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length)
+        usage();
+      if (args[i].equals("-is"))
+        derivedDataFilename = args[++i];
+      else if (args[i].equals("-sa"))
+        inputFilename = args[++i];
+      else if (args[i].equals("-raw"))
+        rawFilename = args[++i];
+      else if (args[i].equals("-out"))
+        outputFilename = args[++i];
+      else if (args[i].equals("-nt"))
+        numThreads = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-k"))
+        kBest = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-gold"))
+        goldFilename = args[++i];
+      else
+        usage();
+    }
+    if (derivedDataFilename == null ||
+        (inputFilename == null) == (rawFilename == null))
+      usage();
+    if (outputFilename == null && rawFilename != null)
+      outputFilename = rawFilename.equals(standardStream) ? standardStream :
+        rawFilename + Parser.outputFilenameSuffix;
+    else if (outputFilename == null)
+      outputFilename = inputFilename + Parser.outputFilenameSuffix;
+    if (goldFilename != null && outputFilename.equals(standardStream))
+      usage();
+
+    try {
+      ParseScheduler scheduler = new ParseScheduler(derivedDataFilename);
+      if (numThreads > 0)
+        scheduler.setNumThreads(numThreads);
+      if (kBest >= 0)
+        scheduler.setKBest(kBest);
+      if (rawFilename != null)
+        scheduler.processRawText(rawFilename, outputFilename);
+      else
+        scheduler.processInputFile(inputFilename, outputFilename);
+      if (goldFilename != null)
+        new FakePos().writeScorable(goldFilename, outputFilename,
+                                    outputFilename + scorableFilenameSuffix);
+      ProcessStats.print();
+    }
+    catch (ClassNotFoundException cnfe) {
+      System.err.println(cnfe);
+      System.exit(1);
+    }
+    catch (IOException ioe) {
+      System.err.println(ioe);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package portuguese;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * Measures the resources used by the whole process: the peak of the heap
+ * used, the peak resident set size and the garbage collections.  The
+ * trainer and the parse scheduler print these measures at the end of a run
+ * with {@link #print()}, so that they can be read from their logs, as by the
+ * performance regression suite of the experiments.
+ */
+public class ProcessStats {
+  // constants
+  private final static String className = ProcessStats.class.getName();
+
+  // the file holding the peak resident set size on Linux
+  private final static String statusFilename = "/proc/self/status";
+
+  private ProcessStats() {}
+
+  /**
+   * Returns the sum of the peak usages of the heap memory pools, which is an
+   * upper bound of the peak of the heap used, in bytes.
+   */
+  public static long peakHeapBytes() {
+    long peak = 0;
+    Iterator it = ManagementFactory.getMemoryPoolMXBeans().iterator();
+    while (it.hasNext()) {
+      MemoryPoolMXBean pool = (MemoryPoolMXBean)it.next();
+      if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+        peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+
+  /**
+   * Returns the peak resident set size of the process, in kilobytes, or -1
+   * if the operating system does not report it.
+   */
+  public static long peakResidentKilobytes() {
+    File status = new File(statusFilename);
+    if (!status.exists())
+      return -1;
+    try {
+      BufferedReader in = new BufferedReader(new FileReader(status));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (line.startsWith("VmHWM:")) {
+            StringTokenizer tok = new StringTokenizer(line.substring(6));
+            return Long.parseLong(tok.nextToken());
+          }
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException ioe) {
+      System.err.println(className + ": couldn't read " + statusFilename +
+                         ": " + ioe);
+    }
+    catch (RuntimeException re) {
+      System.err.println(className + ": couldn't parse " + statusFilename +
+                         ": " + re);
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the number of garbage collections so far and their total time,
+   * in milliseconds.
+   */
+  public static long[] gcSnapshot() {
+    long count = 0, millis = 0;
+    Iterator it = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+    while (it.hasNext()) {
+      GarbageCollectorMXBean gc = (GarbageCollectorMXBean)it.next();
+      count += Math.max(0, gc.getCollectionCount());
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return new long[] {count, millis};
+  }
+
+  /** Prints the measures of the process so far to <tt>System.err</tt>. */
+  public static void print() {
+    long[] gc = gcSnapshot();
+    System.err.println("process peak heap used: " + peakHeapBytes() +
+                       " bytes");
+    System.err.println("process peak resident set size: " +
+                       peakResidentKilobytes() + " kB");
+    System.err.println("process garbage collections: " + gc[0] + " (" +
+                       gc[1] + " ms)");
+  }
+}
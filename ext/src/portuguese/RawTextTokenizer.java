@@ -0,0 +1,507 @@
+package portuguese;
+
+import java.io.*;
+import java.util.*;
+import danbikel.lisp.*;
+
+/**
+ * Splits raw Portuguese text into sentences of tokens written as in the
+ * parseable files of the Bosque corpus, so that running text can be parsed
+ * without being prepared offline.  The text is read a line at a time and a
+ * sentence is returned as soon as its end is seen, so that a reader of a
+ * large document holds at most a few sentences.
+ * <p>
+ * Tokens follow the conventions of the corpus:
+ * <ul>
+ * <li>punctuation is split from words, except the period of abbreviations
+ * (<tt>sr.</tt>, <tt>etc.</tt>, initials such as <tt>P.</tt> or
+ * <tt>A.B.P.</tt>) and the separators within numbers (<tt>2,5</tt>);
+ * parentheses are written as braces and closing guillemets are followed
+ * by a double quote, as they are in the corpus;
+ * <li>contractions of prepositions are split, keeping the capitalization of
+ * the contraction on the preposition: <tt>do</tt> becomes <tt>de o</tt>,
+ * <tt>Na</tt> becomes <tt>Em a</tt> and <tt>dele</tt> becomes
+ * <tt>de ele</tt>;
+ * <li><tt>nos</tt>, which is both the contraction <tt>em os</tt> and the
+ * object pronoun (<tt>Ele nos disse</tt>), is split only when the next token
+ * starts a plural noun phrase: a number, a capitalized word, a plural
+ * determiner such as <tt>&uacute;ltimos</tt> or <tt>cinco</tt>, or a word
+ * ending in <i>s</i> other than a verb ending in <i>mos</i>; otherwise it is
+ * kept whole, as the corpus writes the pronoun.  The pronouns <tt>no</tt>,
+ * <tt>na</tt> and <tt>nas</tt> only follow a verb and a hyphen, so these
+ * forms are always split when they stand alone;
+ * <li>clitic pronouns joined to a verb by hyphens are split from it, giving
+ * back the infinitive its final <i>r</i> before <tt>lo</tt>, <tt>la</tt>,
+ * <tt>los</tt> and <tt>las</tt> (<tt>parece-me</tt> becomes
+ * <tt>parece me</tt> and <tt>substitu&iacute;-lo</tt> becomes
+ * <tt>substituir lo</tt>), and the ending of a future or conditional verb
+ * put back in place (<tt>dar-se-&aacute;</tt> becomes
+ * <tt>dar&aacute; se</tt>);
+ * <li>other hyphens are written as underscores, which also join multiword
+ * units (<tt>ex-libris</tt> becomes <tt>ex_libris</tt>); words already
+ * written with underscores, such as <tt>Plano_Cavaco</tt>, are kept whole.
+ * </ul>
+ * A sentence ends at a blank line, or after a period, question mark,
+ * exclamation mark or ellipsis, and any closing quotes or brackets, that is
+ * followed by a word starting with a capital letter or a digit, by opening
+ * punctuation or by the end of the text.  A sentence that grows longer than
+ * the maximum length is cut, so that text without punctuation cannot
+ * exhaust memory.
+ */
+public class RawTextTokenizer {
+  // constants
+  private final static String className = RawTextTokenizer.class.getName();
+
+  /** The default maximum number of tokens in a sentence. */
+  public final static int defaultMaxSentenceLength = 250;
+
+  private final static String openingPunctuation = "\u00ab\"'{[";
+  private final static String closingPunctuation = "\u00bb\"'}],;:!?%";
+  private final static String sentenceFinalPunctuation = ".!?";
+  // the corpus writes closing guillemets followed by a double quote
+  private final static String closingGuillemet = "\u00bb";
+  private final static String closingGuillemetToken = "\u00bb\"";
+
+  private final static Map contractions = new HashMap();
+  static {
+    String[][] table = {
+      {"do", "de o"}, {"da", "de a"}, {"dos", "de os"}, {"das", "de as"},
+      {"dum", "de um"}, {"duma", "de uma"}, {"duns", "de uns"},
+      {"dumas", "de umas"},
+      {"dele", "de ele"}, {"dela", "de ela"}, {"deles", "de eles"},
+      {"delas", "de elas"},
+      {"deste", "de este"}, {"desta", "de esta"}, {"destes", "de estes"},
+      {"destas", "de estas"}, {"disto", "de isto"},
+      {"desse", "de esse"}, {"dessa", "de essa"}, {"desses", "de esses"},
+      {"dessas", "de essas"}, {"disso", "de isso"},
+      {"daquele", "de aquele"}, {"daquela", "de aquela"},
+      {"daqueles", "de aqueles"}, {"daquelas", "de aquelas"},
+      {"daquilo", "de aquilo"},
+      {"daqui", "de aqui"}, {"da\u00ed", "de a\u00ed"}, {"dali", "de ali"},
+      {"doutro", "de outro"}, {"doutra", "de outra"},
+      {"doutros", "de outros"}, {"doutras", "de outras"},
+      {"no", "em o"}, {"na", "em a"}, {"nos", "em os"}, {"nas", "em as"},
+      {"num", "em um"}, {"numa", "em uma"}, {"nuns", "em uns"},
+      {"numas", "em umas"},
+      {"nele", "em ele"}, {"nela", "em ela"}, {"neles", "em eles"},
+      {"nelas", "em elas"},
+      {"neste", "em este"}, {"nesta", "em esta"}, {"nestes", "em estes"},
+      {"nestas", "em estas"}, {"nisto", "em isto"},
+      {"nesse", "em esse"}, {"nessa", "em essa"}, {"nesses", "em esses"},
+      {"nessas", "em essas"}, {"nisso", "em isso"},
+      {"naquele", "em aquele"}, {"naquela", "em aquela"},
+      {"naqueles", "em aqueles"}, {"naquelas", "em aquelas"},
+      {"naquilo", "em aquilo"},
+      {"noutro", "em outro"}, {"noutra", "em outra"},
+      {"noutros", "em outros"}, {"noutras", "em outras"},
+      {"ao", "a o"}, {"aos", "a os"}, {"\u00e0", "a a"}, {"\u00e0s", "a as"},
+      {"\u00e0quele", "a aquele"}, {"\u00e0quela", "a aquela"},
+      {"\u00e0queles", "a aqueles"}, {"\u00e0quelas", "a aquelas"},
+      {"\u00e0quilo", "a aquilo"},
+      {"pelo", "por o"}, {"pela", "por a"}, {"pelos", "por os"},
+      {"pelas", "por as"},
+    };
+    for (int i = 0; i < table.length; i++)
+      contractions.put(table[i][0], table[i][1].split(" "));
+  }
+
+  // the contraction that is also a pronoun, and the words ending in "mos"
+  // or not in "s" after which it is still the contraction
+  private final static String ambiguousContraction = "nos";
+  private final static Set pluralDeterminers =
+    new HashSet(Arrays.asList(new String[] {
+      "\u00faltimos", "pr\u00f3ximos", "mesmos", "m\u00e1ximos",
+      "m\u00ednimos", "quatro", "cinco", "sete", "oito", "nove", "dez",
+      "onze", "doze", "quinze", "vinte", "trinta", "quarenta", "cinquenta",
+      "cem", "mil"
+    }));
+
+  private final static Set clitics = new HashSet(Arrays.asList(new String[] {
+    "me", "te", "se", "nos", "vos", "lhe", "lhes", "o", "a", "os", "as",
+    "lo", "la", "los", "las", "no", "na", "nas"
+  }));
+
+  private final static Set infinitiveClitics =
+    new HashSet(Arrays.asList(new String[] {"lo", "la", "los", "las"}));
+
+  private final static Set futureEndings =
+    new HashSet(Arrays.asList(new String[] {
+      "ei", "\u00e1s", "\u00e1", "emos", "eis", "\u00e3o",
+      "ia", "ias", "\u00edamos", "\u00edeis", "iam"
+    }));
+
+  private final static Set abbreviations =
+    new HashSet(Arrays.asList(new String[] {
+      "sr.", "sra.", "srs.", "sras.", "dr.", "dra.", "drs.", "eng.", "prof.",
+      "profa.", "arq.", "av.", "etc.", "p.", "pp.", "p\u00e1g.", "ed.",
+      "s\u00e9c.", "n\u00ba.", "dom.", "seg.", "ter.", "qua.", "qui.",
+      "sex.", "s\u00e1b.", "jan.", "fev.", "mar.", "abr.", "jun.", "jul.",
+      "ago.", "set.", "out.", "nov.", "dez.", "cf.", "ex.", "vol.", "tel.",
+      "cap.", "gen.", "cel.", "pe.", "st."
+    }));
+
+  // data members
+  private BufferedReader in;
+  private int maxSentenceLength;
+  private LinkedList sentences = new LinkedList();
+  private SexpList current = new SexpList();
+  private boolean sawFinal;
+  private int numCut;
+  // an ambiguous "nos" waiting for the token after it, and whether it was
+  // attached
+  private String pendingWord;
+  private boolean pendingAttached;
+
+  /**
+   * Constructs a tokenizer of the text read from the specified reader, with
+   * the default maximum sentence length.
+   */
+  public RawTextTokenizer(Reader in) {
+    this(in, defaultMaxSentenceLength);
+  }
+
+  /**
+   * Constructs a tokenizer of the text read from the specified reader.
+   *
+   * @param in the reader of the text
+   * @param maxSentenceLength the number of tokens after which a sentence is
+   * cut
+   */
+  public RawTextTokenizer(Reader in, int maxSentenceLength) {
+    this.in = in instanceof BufferedReader ?
+      (BufferedReader)in : new BufferedReader(in);
+    this.maxSentenceLength = maxSentenceLength;
+  }
+
+  /** Returns the number of sentences cut at the maximum length so far. */
+  public int numCut() { return numCut; }
+
+  /**
+   * Returns the next sentence of the text as a list of word symbols, or
+   * <code>null</code> at the end of the text.
+   */
+  public SexpList nextSentence() throws IOException {
+    String line;
+    while (sentences.isEmpty() && (line = in.readLine()) != null)
+      addLine(line);
+    if (sentences.isEmpty())
+      endSentence();
+    return sentences.isEmpty() ? null : (SexpList)sentences.removeFirst();
+  }
+
+  private void addLine(String line) {
+    int length = line.length();
+    boolean blank = true;
+    for (int start = 0; start < length; ) {
+      while (start < length && Character.isWhitespace(line.charAt(start)))
+        start++;
+      int end = start;
+      while (end < length && !Character.isWhitespace(line.charAt(end)))
+        end++;
+      if (end > start) {
+        addChunk(line.substring(start, end));
+        blank = false;
+      }
+      start = end;
+    }
+    if (blank)
+      endSentence();
+  }
+
+  private void endSentence() {
+    // nothing follows a pending "nos" in its sentence
+    if (pendingWord != null)
+      addPendingWord(false);
+    if (current.length() > 0) {
+      sentences.add(current);
+      current = new SexpList();
+    }
+    sawFinal = false;
+  }
+
+  /**
+   * Adds a token, ending the current sentence first if the token starts a
+   * new one.
+   *
+   * @param attached whether the token was written without space before it
+   */
+  private void addToken(String token, boolean attached) {
+    if (pendingWord != null)
+      addPendingWord(startsPluralNounPhrase(token));
+    if (token.equals(closingGuillemet))
+      token = closingGuillemetToken;
+    if (sawFinal) {
+      char first = token.charAt(0);
+      boolean closes = closingPunctuation.indexOf(first) >= 0 &&
+        (attached || openingPunctuation.indexOf(first) < 0);
+      if (!closes && (Character.isUpperCase(first) ||
+                      Character.isDigit(first) ||
+                      openingPunctuation.indexOf(first) >= 0 ||
+                      token.startsWith("_")))
+        endSentence();
+      else if (!closes)
+        sawFinal = false;
+    }
+    current.add(Symbol.add(token));
+    if (isSentenceFinal(token))
+      sawFinal = true;
+    if (current.length() >= maxSentenceLength) {
+      numCut++;
+      endSentence();
+    }
+  }
+
+  /**
+   * Adds the pending ambiguous word, split as a contraction or whole as a
+   * pronoun.
+   */
+  private void addPendingWord(boolean contraction) {
+    String word = pendingWord;
+    pendingWord = null;
+    if (contraction)
+      addContraction(word, (String[])contractions.get(word.toLowerCase()),
+                     pendingAttached);
+    else
+      addToken(word, pendingAttached);
+  }
+
+  /**
+   * Returns whether the specified token, following <tt>nos</tt>, starts a
+   * plural noun phrase, making <tt>nos</tt> the contraction
+   * <tt>em os</tt>.
+   */
+  private static boolean startsPluralNounPhrase(String token) {
+    char first = token.charAt(0);
+    if (Character.isDigit(first) || Character.isUpperCase(first))
+      return true;
+    String lower = token.toLowerCase();
+    if (pluralDeterminers.contains(lower))
+      return true;
+    return lower.length() > 1 && lower.endsWith("s") &&
+      Character.isLetter(first) && !lower.endsWith("mos");
+  }
+
+  private static boolean isSentenceFinal(String token) {
+    if (token.equals("..") || token.equals("..."))
+      return true;
+    return token.length() == 1 &&
+      sentenceFinalPunctuation.indexOf(token.charAt(0)) >= 0;
+  }
+
+  /** Splits a string of characters without whitespace into tokens. */
+  private void addChunk(String chunk) {
+    chunk = chunk.replace('(', '{').replace(')', '}');
+    boolean attached = false;
+
+    if (isDash(chunk)) {
+      addToken(chunk.equals("-") ? "_" : "__", false);
+      return;
+    }
+    if (chunk.equals("..") || chunk.equals("...")) {
+      addToken(chunk, true);
+      return;
+    }
+
+    // opening punctuation
+    int start = 0, end = chunk.length();
+    for ( ; start < end &&
+            openingPunctuation.indexOf(chunk.charAt(start)) >= 0; start++) {
+      addToken(chunk.substring(start, start + 1), attached);
+      attached = true;
+    }
+
+    // closing punctuation, kept in reverse order
+    LinkedList closing = new LinkedList();
+    while (start < end) {
+      String word = chunk.substring(start, end);
+      if (word.endsWith("...") && end - start > 3) {
+        closing.addFirst("...");
+        end -= 3;
+      }
+      else if (word.endsWith(closingGuillemetToken)) {
+        closing.addFirst(closingGuillemetToken);
+        end -= 2;
+      }
+      else if (closingPunctuation.indexOf(chunk.charAt(end - 1)) >= 0 &&
+               (end - start > 1 || closing.size() > 0)) {
+        closing.addFirst(chunk.substring(end - 1, end));
+        end--;
+      }
+      else if (chunk.charAt(end - 1) == '.' && end - start > 1 &&
+               !isAbbreviation(word)) {
+        closing.addFirst(".");
+        end--;
+      }
+      else
+        break;
+    }
+
+    if (start < end) {
+      addWord(chunk.substring(start, end), attached);
+      attached = true;
+    }
+    for (Iterator it = closing.iterator(); it.hasNext(); ) {
+      addToken((String)it.next(), attached);
+      attached = true;
+    }
+  }
+
+  private static boolean isDash(String chunk) {
+    if (chunk.equals("-") || chunk.equals("--"))
+      return true;
+    return chunk.length() == 1 &&
+      (chunk.charAt(0) == '\u2013' || chunk.charAt(0) == '\u2014');
+  }
+
+  /**
+   * Returns whether the specified word, which ends in a period, keeps its
+   * period: a known abbreviation, a single letter or a sequence of letters
+   * each followed by a period.
+   */
+  private static boolean isAbbreviation(String word) {
+    if (abbreviations.contains(word.toLowerCase()))
+      return true;
+    for (int i = 0; i < word.length(); i += 2)
+      if (!Character.isLetter(word.charAt(i)) ||
+          i + 1 >= word.length() || word.charAt(i + 1) != '.')
+        return false;
+    return true;
+  }
+
+  /** Adds a word stripped of punctuation, splitting it as needed. */
+  private void addWord(String word, boolean attached) {
+    if (word.indexOf('_') >= 0) {
+      addToken(word, attached);
+      return;
+    }
+    if (word.indexOf('-') > 0 && !word.endsWith("-")) {
+      String[] parts = word.split("-");
+      if (addVerbWithClitics(parts, attached))
+        return;
+      addToken(word.replace('-', '_'), attached);
+      return;
+    }
+    if (word.endsWith("-")) {
+      addToken(word.replace('-', '_'), attached);
+      return;
+    }
+    String[] split = (String[])contractions.get(word.toLowerCase());
+    if (split == null) {
+      addToken(word, attached);
+      return;
+    }
+    if (word.equalsIgnoreCase(ambiguousContraction)) {
+      if (pendingWord != null)
+        addPendingWord(startsPluralNounPhrase(word));
+      pendingWord = word;
+      pendingAttached = attached;
+      return;
+    }
+    addContraction(word, split, attached);
+  }
+
+  /** Adds the parts of a contraction, capitalized as the contraction. */
+  private void addContraction(String word, String[] split, boolean attached) {
+    for (int i = 0; i < split.length; i++) {
+      String part = split[i];
+      if (i == 0 && Character.isUpperCase(word.charAt(0)))
+        part = Character.toUpperCase(part.charAt(0)) + part.substring(1);
+      addToken(part, attached || i > 0);
+    }
+  }
+
+  /**
+   * Adds a verb and its clitics, if the specified parts of a hyphenated
+   * word are a verb followed by clitics, with possibly the ending of a
+   * future or conditional verb last.
+   *
+   * @return whether the parts were added
+   */
+  private boolean addVerbWithClitics(String[] parts, boolean attached) {
+    int numClitics = parts.length - 1;
+    String ending = null;
+    if (parts.length > 2 &&
+        futureEndings.contains(parts[parts.length - 1].toLowerCase())) {
+      ending = parts[parts.length - 1];
+      numClitics--;
+    }
+    for (int i = 1; i <= numClitics; i++)
+      if (parts[i].length() == 0 || !clitics.contains(parts[i].toLowerCase()))
+        return false;
+    if (parts[0].length() == 0)
+      return false;
+
+    String verb = parts[0];
+    if (ending != null)
+      verb += ending;
+    else if (infinitiveClitics.contains(parts[1].toLowerCase()))
+      verb = infinitive(verb);
+    addToken(verb, attached);
+    for (int i = 1; i <= numClitics; i++)
+      addToken(parts[i], true);
+    return true;
+  }
+
+  /**
+   * Gives back its final <i>r</i> to an infinitive that lost it before a
+   * clitic, as in <tt>faz\u00ea-lo</tt>, leaving other verbs as they are.
+   */
+  private static String infinitive(String verb) {
+    String stem = verb.substring(0, verb.length() - 1);
+    switch (verb.charAt(verb.length() - 1)) {
+    case '\u00e1': return stem + "ar";
+    case '\u00ea': return stem + "er";
+    case '\u00ed': return stem + "ir";
+    case '\u00f4': return verb + "r";
+    default: return verb;
+    }
+  }
+
+  private static void usage() {
+    System.err.println("usage: -i <input file> -o <output file>");
+    System.exit(1);
+  }
+
+  /**
+   * Tokenizes a file of raw text into a file of sentences that can be
+   * parsed, one per line.
+   *
+   * @param args usage: <tt>-i &lt;input file&gt; -o &lt;output file&gt;</tt>
+   */
+  public static void main(String[] args) {
+    String inputFilename = null, outputFilename = null;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length)
+        usage();
+      if (args[i].equals("-i"))
+        inputFilename = args[++i];
+      else if (args[i].equals("-o"))
+        outputFilename = args[++i];
+      else
+        usage();
+    }
+    if (inputFilename == null || outputFilename == null)
+      usage();
+
+    try {
+      RawTextTokenizer tokenizer =
+        new RawTextTokenizer(TextFiles.newReader(inputFilename));
+      Writer out = TextFiles.newWriter(outputFilename);
+      int numSentences = 0;
+      SexpList sentence;
+      while ((sentence = tokenizer.nextSentence()) != null) {
+        out.write(String.valueOf(sentence));
+        out.write("\n");
+        numSentences++;
+      }
+      out.close();
+      System.err.println(className + ": wrote " + numSentences +
+                         " sentences (" + tokenizer.numCut() + " cut at " +
+                         defaultMaxSentenceLength + " tokens)");
+    }
+    catch (IOException ioe) {
+      System.err.println(className + ": " + ioe);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package portuguese;
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An input stream that reads its underlying stream ahead of the consumer on
+ * a background thread.  When the underlying stream is a
+ * {@link java.util.zip.GZIPInputStream}, decompression overlaps with whatever
+ * the consumer does with the data, such as deserializing a model or parsing
+ * observed events.
+ * <p>
+ * The background thread fills chunks of a fixed size and hands them over
+ * through a bounded queue, so that at most a fixed number of chunks are read
+ * ahead.  An exception thrown by the underlying stream is rethrown to the
+ * consumer when it reaches the point at which it occurred.
+ *
+ * @see ParallelGZIPOutputStream
+ * @see GZIPStreams
+ */
+public class ReadAheadInputStream extends InputStream {
+  // constants
+  private final static byte[] endOfStream = new byte[0];
+
+  // data members
+  private InputStream in;
+  private BlockingQueue chunks;
+  private Thread reader;
+  private volatile IOException readError;
+  private volatile boolean closed;
+  private byte[] chunk;
+  private int chunkLength;
+  private int pos;
+  private boolean eof;
+
+  /**
+   * Creates a stream that reads the specified stream ahead in a background
+   * thread.
+   *
+   * @param in the stream to read ahead
+   * @param chunkSize the size of each chunk read ahead
+   * @param maxChunks the maximum number of chunks read ahead
+   */
+  public ReadAheadInputStream(InputStream in, final int chunkSize,
+                              int maxChunks) {
+    this.in = in;
+    chunks = new ArrayBlockingQueue(maxChunks);
+    reader = new Thread(new Runnable() {
+      public void run() { readAhead(chunkSize); }
+    }, "Read Ahead");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void readAhead(int chunkSize) {
+    try {
+      while (!closed) {
+        byte[] buf = new byte[chunkSize];
+        int len = 0;
+        int n = 0;
+        while (len < chunkSize && (n = in.read(buf, len, chunkSize - len)) != -1)
+          len += n;
+        if (len > 0) {
+          if (len < chunkSize) {
+            byte[] trimmed = new byte[len];
+            System.arraycopy(buf, 0, trimmed, 0, len);
+            buf = trimmed;
+          }
+          chunks.put(buf);
+        }
+        if (n == -1)
+          break;
+      }
+    }
+    catch (IOException ioe) {
+      readError = ioe;
+    }
+    catch (InterruptedException ie) {
+      return;
+    }
+    try {
+      chunks.put(endOfStream);
+    }
+    catch (InterruptedException ie) {
+    }
+  }
+
+  /** Makes a chunk available, returning <code>false</code> at the end. */
+  private boolean fill() throws IOException {
+    if (closed)
+      throw new IOException("stream closed");
+    while (!eof && pos == chunkLength) {
+      try {
+        chunk = (byte[])chunks.take();
+      }
+      catch (InterruptedException ie) {
+        throw new InterruptedIOException(ie.toString());
+      }
+      pos = 0;
+      chunkLength = chunk.length;
+      if (chunk == endOfStream) {
+        eof = true;
+        if (readError != null)
+          throw readError;
+      }
+    }
+    return pos < chunkLength;
+  }
+
+  public int read() throws IOException {
+    if (!fill())
+      return -1;
+    return chunk[pos++] & 0xff;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (!fill())
+      return -1;
+    int n = Math.min(len, chunkLength - pos);
+    System.arraycopy(chunk, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  public int available() throws IOException {
+    return chunkLength - pos;
+  }
+
+  /** Stops reading ahead and closes the underlying stream. */
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    reader.interrupt();
+    chunks.clear();
+    in.close();
+  }
+}
@@ -0,0 +1,247 @@
+package portuguese;
+
+import java.text.NumberFormat;
+import java.util.Arrays;
+
+/**
+ * A bounded cache of probabilities that may be shared by any number of
+ * threads, such as all the decoders of a {@link ParseScheduler}.  The cache
+ * holds the probabilities of several models, each identified by a small
+ * integer, so that a probability computed by one thread is found by all the
+ * others.
+ * <p>
+ * The cache is split into stripes, each with its own lock, and a key always
+ * falls in the same stripe, so that threads looking up different keys seldom
+ * wait for one another.  Each stripe holds a fixed number of entries; when a
+ * stripe is full, an entry is evicted according to the CLOCK policy: a hand
+ * sweeps over the entries, sparing (and clearing the mark of) every entry
+ * that was hit since the hand last passed over it, and evicting the first
+ * one that was not.  Lookups do not allocate; the caller must store a copy
+ * of its key if the key is later modified.
+ * <p>
+ * The number of hits, misses and evictions are kept for each model.
+ */
+public class SharedProbabilityCache {
+  // constants
+  private final static int minStripeCapacity = 16;
+
+  // data members
+  private Stripe[] stripes;
+  private int stripeMask;
+  private String[] modelNames;
+
+  /**
+   * Creates a cache with the specified total number of entries.
+   *
+   * @param maxEntries the maximum number of entries in the whole cache
+   * @param numStripes the number of independently locked stripes, rounded
+   * up to a power of two
+   * @param modelNames the names of the models whose probabilities are
+   * cached, used when reporting statistics; the model of an entry is its
+   * index in this array
+   */
+  public SharedProbabilityCache(int maxEntries, int numStripes,
+                                String[] modelNames) {
+    int n = 1;
+    while (n < numStripes)
+      n <<= 1;
+    stripes = new Stripe[n];
+    stripeMask = n - 1;
+    int stripeCapacity = Math.max(minStripeCapacity, maxEntries / n);
+    for (int i = 0; i < n; i++)
+      stripes[i] = new Stripe(stripeCapacity, modelNames.length);
+    this.modelNames = modelNames;
+  }
+
+  private static int hash(int model, Object key) {
+    int h = key.hashCode() * 31 + model;
+    return h ^ (h >>> 16);
+  }
+
+  private Stripe stripe(int hash) {
+    return stripes[(hash >>> 24 ^ hash) & stripeMask];
+  }
+
+  /**
+   * Returns the cached probability of the specified key, or
+   * <code>Double.NaN</code> if it is not in the cache.
+   */
+  public double get(int model, Object key) {
+    int hash = hash(model, key);
+    return stripe(hash).get(hash, model, key);
+  }
+
+  /**
+   * Caches the probability of the specified key, evicting another entry if
+   * its stripe is full.
+   */
+  public void put(int model, Object key, double prob) {
+    int hash = hash(model, key);
+    stripe(hash).put(hash, model, key, prob);
+  }
+
+  /** Returns the number of entries currently in the cache. */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < stripes.length; i++)
+      size += stripes[i].size();
+    return size;
+  }
+
+  /** Returns the maximum number of entries in the cache. */
+  public int capacity() {
+    return stripes.length * stripes[0].keys.length;
+  }
+
+  /** Returns the number of hits for the specified model. */
+  public long hits(int model) {
+    long total = 0;
+    for (int i = 0; i < stripes.length; i++)
+      total += stripes[i].hits(model);
+    return total;
+  }
+
+  /** Returns the number of misses for the specified model. */
+  public long misses(int model) {
+    long total = 0;
+    for (int i = 0; i < stripes.length; i++)
+      total += stripes[i].misses(model);
+    return total;
+  }
+
+  /** Returns the number of evictions of entries of the specified model. */
+  public long evictions(int model) {
+    long total = 0;
+    for (int i = 0; i < stripes.length; i++)
+      total += stripes[i].evictions(model);
+    return total;
+  }
+
+  /** Returns one line of statistics per model. */
+  public String getStats() {
+    NumberFormat nf = NumberFormat.getInstance();
+    nf.setMaximumFractionDigits(4);
+    StringBuffer sb = new StringBuffer();
+    sb.append("shared probability cache: ").append(size()).append(" of ")
+      .append(capacity()).append(" entries in ").append(stripes.length)
+      .append(" stripes\n");
+    for (int model = 0; model < modelNames.length; model++) {
+      long hits = hits(model);
+      long accesses = hits + misses(model);
+      sb.append("  ").append(modelNames[model])
+        .append(": hits=").append(hits)
+        .append(", misses=").append(accesses - hits)
+        .append(", evictions=").append(evictions(model))
+        .append(", hit rate=")
+        .append(nf.format(accesses == 0 ? 0.0 : hits / (double)accesses))
+        .append("\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A fixed-size hash table with chained buckets whose entries live in
+   * parallel arrays, indexed by slot.
+   */
+  private static class Stripe {
+    private Object[] keys;
+    private int[] models;
+    private double[] probs;
+    private int[] hashes;
+    private boolean[] referenced;
+    private int[] next;
+    private int[] buckets;
+    private int bucketMask;
+    private int size;
+    private int hand;
+    private long[] hits;
+    private long[] misses;
+    private long[] evictions;
+
+    Stripe(int capacity, int numModels) {
+      keys = new Object[capacity];
+      models = new int[capacity];
+      probs = new double[capacity];
+      hashes = new int[capacity];
+      referenced = new boolean[capacity];
+      next = new int[capacity];
+      int numBuckets = 1;
+      while (numBuckets < capacity)
+        numBuckets <<= 1;
+      buckets = new int[numBuckets];
+      Arrays.fill(buckets, -1);
+      bucketMask = numBuckets - 1;
+      hits = new long[numModels];
+      misses = new long[numModels];
+      evictions = new long[numModels];
+    }
+
+    private int find(int hash, int model, Object key) {
+      for (int slot = buckets[hash & bucketMask]; slot != -1;
+           slot = next[slot])
+        if (hashes[slot] == hash && models[slot] == model &&
+            key.equals(keys[slot]))
+          return slot;
+      return -1;
+    }
+
+    synchronized double get(int hash, int model, Object key) {
+      int slot = find(hash, model, key);
+      if (slot == -1) {
+        misses[model]++;
+        return Double.NaN;
+      }
+      hits[model]++;
+      referenced[slot] = true;
+      return probs[slot];
+    }
+
+    synchronized void put(int hash, int model, Object key, double prob) {
+      int slot = find(hash, model, key);
+      if (slot != -1) {
+        probs[slot] = prob;
+        return;
+      }
+      if (size < keys.length)
+        slot = size++;
+      else
+        slot = evict();
+      keys[slot] = key;
+      models[slot] = model;
+      probs[slot] = prob;
+      hashes[slot] = hash;
+      referenced[slot] = false;
+      int bucket = hash & bucketMask;
+      next[slot] = buckets[bucket];
+      buckets[bucket] = slot;
+    }
+
+    /** Evicts the entry under the CLOCK hand and returns its free slot. */
+    private int evict() {
+      while (referenced[hand]) {
+        referenced[hand] = false;
+        hand = (hand + 1) % keys.length;
+      }
+      int slot = hand;
+      hand = (hand + 1) % keys.length;
+
+      int bucket = hashes[slot] & bucketMask;
+      if (buckets[bucket] == slot)
+        buckets[bucket] = next[slot];
+      else {
+        int prev = buckets[bucket];
+        while (next[prev] != slot)
+          prev = next[prev];
+        next[prev] = next[slot];
+      }
+      evictions[models[slot]]++;
+      keys[slot] = null;
+      return slot;
+    }
+
+    synchronized int size() { return size; }
+    synchronized long hits(int model) { return hits[model]; }
+    synchronized long misses(int model) { return misses[model]; }
+    synchronized long evictions(int model) { return evictions[model]; }
+  }
+}
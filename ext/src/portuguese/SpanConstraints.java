@@ -0,0 +1,407 @@
+package portuguese;
+
+import java.io.*;
+import java.util.*;
+import danbikel.lisp.*;
+import danbikel.parser.CKYItem;
+import danbikel.parser.Language;
+import danbikel.parser.Treebank;
+
+/**
+ * Constituents known in advance for a sentence, such as named entities or
+ * the chunks found by an external chunker, given as spans of words that the
+ * parse must contain (required spans) or must not contain (forbidden spans),
+ * each optionally with a label.  A {@link Decoder} given these constraints
+ * does not fill the chart cells of spans that cross a required span, and
+ * refuses to build items that could only lead to a parse violating a
+ * constraint.
+ * <p>
+ * In an input file, a sentence with constraints is written as a list whose
+ * first element is the list of words, followed by lists of required and of
+ * forbidden spans, in either order:
+ * <pre>
+ * ((o Quadro_Comunit&aacute;rio_de_Apoio prev&ecirc; ...)
+ *  (required (0 1 NP) (3 5)) (forbidden (1 2)))
+ * </pre>
+ * A span is the index of its first and of its last word, counting from zero,
+ * optionally followed by a label.  A required span must be a constituent of
+ * the parse, with the given label somewhere in its chain of unary
+ * constituents if there is a label; a forbidden span must not be a
+ * constituent, or not one with the given label if there is a label.  Labels
+ * are compared after their augmentations are removed, as by
+ * {@link Treebank#getCanonical(Symbol)}.  The label of a required span that
+ * covers the whole sentence is not checked.  Sentences without constraints
+ * are written as usual.
+ *
+ * @see ParseScheduler
+ */
+public class SpanConstraints {
+  // constants
+  private final static String className = SpanConstraints.class.getName();
+
+  /** The symbol introducing the list of required spans. */
+  public final static Symbol requiredSym = Symbol.add("required");
+  /** The symbol introducing the list of forbidden spans. */
+  public final static Symbol forbiddenSym = Symbol.add("forbidden");
+
+  // data members
+  private List required = new ArrayList();
+  private List forbidden = new ArrayList();
+
+  /** A span of words, with an optional label. */
+  private static class Span {
+    int start;
+    int end;
+    Symbol label;
+
+    Span(int start, int end, Symbol label) {
+      this.start = start;
+      this.end = end;
+      this.label = label;
+    }
+
+    Sexp toSexp() {
+      SexpList list = new SexpList(3);
+      list.add(Symbol.get(String.valueOf(start)));
+      list.add(Symbol.get(String.valueOf(end)));
+      if (label != null)
+        list.add(label);
+      return list;
+    }
+  }
+
+  /** Creates an empty set of constraints. */
+  public SpanConstraints() {
+  }
+
+  /** Adds a required span, with a label or <code>null</code>. */
+  public void addRequired(int start, int end, Symbol label) {
+    required.add(new Span(start, end, label));
+  }
+
+  /** Adds a forbidden span, with a label or <code>null</code>. */
+  public void addForbidden(int start, int end, Symbol label) {
+    forbidden.add(new Span(start, end, label));
+  }
+
+  /** Returns the number of required spans. */
+  public int numRequired() { return required.size(); }
+
+  /** Returns the number of forbidden spans. */
+  public int numForbidden() { return forbidden.size(); }
+
+  /**
+   * Returns whether the specified input sentence is written with
+   * constraints, that is, whether its first element is a list of words.
+   */
+  public static boolean isConstrainedSentence(Sexp sentence) {
+    if (!sentence.isList() || sentence.list().length() == 0 ||
+        !sentence.list().get(0).isList())
+      return false;
+    SexpList words = sentence.list().listAt(0);
+    for (int i = 0; i < words.length(); i++)
+      if (!words.get(i).isSymbol())
+        return false;
+    return true;
+  }
+
+  /** Returns the words of an input sentence written with constraints. */
+  public static SexpList words(Sexp sentence) {
+    return sentence.list().listAt(0);
+  }
+
+  /**
+   * Reads the constraints of an input sentence written with constraints.
+   *
+   * @throws IllegalArgumentException if the constraints are malformed or
+   * a span is outside the sentence
+   */
+  public static SpanConstraints fromSexp(Sexp sentence) {
+    SpanConstraints constraints = new SpanConstraints();
+    SexpList list = sentence.list();
+    int numWords = words(sentence).length();
+    for (int i = 1; i < list.length(); i++) {
+      if (!list.get(i).isList() || list.listAt(i).length() == 0)
+        throw new IllegalArgumentException("bad constraint list " +
+                                           list.get(i));
+      SexpList spans = list.listAt(i);
+      boolean isRequired = spans.get(0) == requiredSym;
+      if (!isRequired && spans.get(0) != forbiddenSym)
+        throw new IllegalArgumentException("unknown constraint list " +
+                                           spans.get(0));
+      for (int j = 1; j < spans.length(); j++) {
+        Span span = readSpan(spans.get(j), numWords);
+        if (isRequired)
+          constraints.required.add(span);
+        else
+          constraints.forbidden.add(span);
+      }
+    }
+    return constraints;
+  }
+
+  private static Span readSpan(Sexp sexp, int numWords) {
+    try {
+      SexpList list = sexp.list();
+      if (list.length() < 2 || list.length() > 3)
+        throw new IllegalArgumentException("bad span " + sexp);
+      int start = Integer.parseInt(list.symbolAt(0).toString());
+      int end = Integer.parseInt(list.symbolAt(1).toString());
+      if (start < 0 || end < start || end >= numWords)
+        throw new IllegalArgumentException("span " + sexp + " is outside " +
+                                           "a sentence of " + numWords +
+                                           " words");
+      return new Span(start, end, list.length() == 3 ? list.symbolAt(2) : null);
+    }
+    catch (ClassCastException cce) {
+      throw new IllegalArgumentException("bad span " + sexp);
+    }
+    catch (NumberFormatException nfe) {
+      throw new IllegalArgumentException("bad span " + sexp);
+    }
+  }
+
+  /**
+   * Returns the specified words together with these constraints, in the
+   * input format described above.
+   */
+  public SexpList toSexp(SexpList words) {
+    SexpList sentence = new SexpList(3).add(words);
+    if (required.size() > 0)
+      sentence.add(toSexp(requiredSym, required));
+    if (forbidden.size() > 0)
+      sentence.add(toSexp(forbiddenSym, forbidden));
+    return sentence;
+  }
+
+  private static SexpList toSexp(Symbol name, List spans) {
+    SexpList list = new SexpList(spans.size() + 1).add(name);
+    for (int i = 0; i < spans.size(); i++)
+      list.add(((Span)spans.get(i)).toSexp());
+    return list;
+  }
+
+  /**
+   * Returns these constraints for a sentence from which some words were
+   * removed.  A span becomes the span of its remaining words, and is dropped
+   * if none of them remains.
+   *
+   * @param originalIndices the index in the original sentence of each
+   * remaining word, in increasing order
+   * @param numWords the number of remaining words
+   */
+  public SpanConstraints forRemainingWords(int[] originalIndices,
+                                           int numWords) {
+    SpanConstraints constraints = new SpanConstraints();
+    mapSpans(required, constraints.required, originalIndices, numWords);
+    mapSpans(forbidden, constraints.forbidden, originalIndices, numWords);
+    return constraints;
+  }
+
+  private static void mapSpans(List from, List to, int[] originalIndices,
+                               int numWords) {
+    for (int i = 0; i < from.size(); i++) {
+      Span span = (Span)from.get(i);
+      int start = 0;
+      while (start < numWords && originalIndices[start] < span.start)
+        start++;
+      int end = numWords - 1;
+      while (end >= 0 && originalIndices[end] > span.end)
+        end--;
+      if (start <= end)
+        to.add(new Span(start, end, span.label));
+    }
+  }
+
+  /**
+   * Returns whether the specified span crosses a required span, in which
+   * case no item of the span can be part of a parse.
+   */
+  public boolean crossesRequired(int start, int end) {
+    for (int i = 0; i < required.size(); i++) {
+      Span span = (Span)required.get(i);
+      if ((start < span.start && span.start <= end && end < span.end) ||
+          (span.start < start && start <= span.end && span.end < end))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether joining the specified modificand and modifier would
+   * build an item that cannot be part of a parse with every required span
+   * as a constituent.  This is the case when the new item strictly contains
+   * a required span but the span is neither inside one of its children nor
+   * one of its children, or is a child lacking the required label.  The
+   * items of spans crossing a required span are not considered, since
+   * {@link #crossesRequired(int,int)} keeps them out of the chart.
+   */
+  public boolean violatedByJoin(CKYItem modificand, CKYItem modifier) {
+    int start = Math.min(modificand.start(), modifier.start());
+    int end = Math.max(modificand.end(), modifier.end());
+    for (int i = 0; i < required.size(); i++) {
+      Span span = (Span)required.get(i);
+      if (start > span.start || span.end > end ||
+          (start == span.start && end == span.end))
+        continue;
+      if (contains(modificand, span)) {
+        // the span is the modificand's only child, or inside one of its
+        // children, which were checked when they were joined
+        if (matches(modificand, span) &&
+            (modificand.numLeftChildren() > 0 ||
+             modificand.numRightChildren() > 0 ||
+             !hasLabel(modificand.headChild(), span)))
+          return true;
+      }
+      else if (modificand.end() < span.start || modificand.start() > span.end) {
+        if (!contains(modifier, span) ||
+            (matches(modifier, span) && !hasLabel(modifier, span)))
+          return true;
+      }
+      else
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the specified item may not become a constituent because
+   * of a forbidden span.
+   */
+  public boolean forbids(CKYItem item) {
+    for (int i = 0; i < forbidden.size(); i++) {
+      Span span = (Span)forbidden.get(i);
+      if (matches(item, span) &&
+          (span.label == null || labelMatches((Symbol)item.label(), span)))
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean contains(CKYItem item, Span span) {
+    return item.start() <= span.start && span.end <= item.end();
+  }
+
+  private static boolean matches(CKYItem item, Span span) {
+    return item.start() == span.start && item.end() == span.end;
+  }
+
+  /**
+   * Returns whether the specified item or one of the items it dominates
+   * through unary productions, over the same span, has the label of the
+   * span.
+   */
+  private static boolean hasLabel(CKYItem item, Span span) {
+    if (span.label == null)
+      return true;
+    for ( ; item != null && matches(item, span); item = item.headChild())
+      if (labelMatches((Symbol)item.label(), span))
+        return true;
+    return false;
+  }
+
+  private static boolean labelMatches(Symbol label, Span span) {
+    return Language.treebank().getCanonical(label) == span.label;
+  }
+
+  /**
+   * Writes the sentences of a file of trees as input sentences whose
+   * constituents with any of the specified labels, and of at least the
+   * specified number of words, are required spans.  This produces inputs
+   * for measuring the effect of constraints from gold trees.
+   */
+  public static void fromTrees(String inputFilename, String outputFilename,
+                               Set labels, int minLength, boolean labelled)
+    throws IOException {
+    SexpTokenizer tok = TextFiles.newTokenizer(inputFilename);
+    Writer out = TextFiles.newWriter(outputFilename);
+    int numSentences = 0, numSpans = 0;
+    Sexp tree;
+    while ((tree = Sexp.read(tok)) != null) {
+      SexpList words = new SexpList();
+      SpanConstraints constraints = new SpanConstraints();
+      collectSpans(tree, words, constraints, labels, minLength, labelled);
+      out.write(String.valueOf(constraints.toSexp(words)));
+      out.write("\n");
+      numSentences++;
+      numSpans += constraints.numRequired();
+    }
+    out.close();
+    System.err.println(className + ": " + numSentences + " sentences, " +
+                       numSpans + " required spans");
+  }
+
+  private static void collectSpans(Sexp tree, SexpList words,
+                                   SpanConstraints constraints, Set labels,
+                                   int minLength, boolean labelled) {
+    Treebank treebank = Language.treebank();
+    if (treebank.isPreterminal(tree)) {
+      words.add(tree.list().get(1));
+      return;
+    }
+    if (!tree.isList())
+      return;
+    SexpList treeList = tree.list();
+    int start = words.length();
+    for (int i = 1; i < treeList.length(); i++)
+      collectSpans(treeList.get(i), words, constraints, labels, minLength,
+                   labelled);
+    int end = words.length() - 1;
+    Symbol label = treebank.getCanonical(treeList.symbolAt(0));
+    if (end - start + 1 >= minLength && labels.contains(label))
+      constraints.addRequired(start, end, labelled ? label : null);
+  }
+
+  private static void usage() {
+    System.err.println("usage: -i <tree file> -o <output file> " +
+                       "[-labels <label>,...] [-minLength <n>] [-labelled]");
+    System.exit(1);
+  }
+
+  /**
+   * Writes an input file whose required spans are constituents of the trees
+   * in a file (by default, noun phrases of at least two words, without
+   * their labels).
+   *
+   * @param args usage: <tt>-i &lt;tree file&gt; -o &lt;output file&gt;
+   * [-labels &lt;label&gt;,...] [-minLength &lt;n&gt;] [-labelled]</tt>
+   */
+  public static void main(String[] args) {
+    String inputFilename = null, outputFilename = null;
+    String labelsStr = "NP";
+    int minLength = 2;
+    boolean labelled = false;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-labelled")) {
+        labelled = true;
+        continue;
+      }
+      if (i + 1 == args.length)
+        usage();
+      if (args[i].equals("-i"))
+        inputFilename = args[++i];
+      else if (args[i].equals("-o"))
+        outputFilename = args[++i];
+      else if (args[i].equals("-labels"))
+        labelsStr = args[++i];
+      else if (args[i].equals("-minLength"))
+        minLength = Integer.parseInt(args[++i]);
+      else
+        usage();
+    }
+    if (inputFilename == null || outputFilename == null)
+      usage();
+
+    Set labels = new HashSet();
+    String[] labelArr = labelsStr.split(",");
+    for (int i = 0; i < labelArr.length; i++)
+      labels.add(Symbol.add(labelArr[i]));
+    try {
+      fromTrees(inputFilename, outputFilename, labels, minLength, labelled);
+    }
+    catch (IOException ioe) {
+      System.err.println(ioe);
+      System.exit(1);
+    }
+  }
+}
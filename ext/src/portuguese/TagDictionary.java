@@ -0,0 +1,364 @@
+package portuguese;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import danbikel.lisp.*;
+import danbikel.parser.Constants;
+import danbikel.parser.Language;
+import danbikel.parser.Treebank;
+
+/**
+ * A read-only dictionary of the parts of speech observed with each word, and
+ * with each word-feature vector, in a training treebank, together with their
+ * counts.  The dictionary is built once at training time by
+ * {@link #build(String,String)} and stored in a compact binary file that is
+ * memory-mapped when opened, so that it costs almost no heap and can be
+ * shared by every decoder in a process.
+ * <p>
+ * The file consists of a header, the table of tags, an open-addressing hash
+ * table of entry offsets and the entries themselves; all numbers are
+ * big-endian.  Each entry holds its key (a word or a feature vector), the
+ * total count of the key and its tags with their counts, most frequent first.
+ *
+ * @see Decoder
+ */
+public class TagDictionary {
+  // constants
+  private final static String className = TagDictionary.class.getName();
+
+  /** The number identifying tag dictionary files. */
+  public final static int MAGIC = 0x54414744;
+  /** The version of the file format written by this class. */
+  public final static int VERSION = 1;
+
+  private final static int headerSize = 20;
+  private final static byte wordKey = 'w';
+  private final static byte featuresKey = 'f';
+
+  // data members
+  private ByteBuffer buf;
+  private Symbol[] tags;
+  private int numEntries;
+  private int tableSize;
+  private int tableOffset;
+
+  /**
+   * Opens the tag dictionary in the specified file.
+   *
+   * @param filename a file written by {@link #build(String,String)}
+   * @throws IOException if the file cannot be read or is not a tag dictionary
+   */
+  public TagDictionary(String filename) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(filename, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    finally {
+      file.close();
+    }
+    if (buf.capacity() < headerSize || buf.getInt(0) != MAGIC)
+      throw new IOException(className + ": " + filename +
+                            " is not a tag dictionary");
+    if (buf.getInt(4) != VERSION)
+      throw new IOException(className + ": " + filename +
+                            " has unsupported version " + buf.getInt(4));
+    int numTags = buf.getInt(8);
+    numEntries = buf.getInt(12);
+    tableSize = buf.getInt(16);
+
+    tags = new Symbol[numTags];
+    int offset = headerSize;
+    for (int i = 0; i < numTags; i++) {
+      int len = buf.getShort(offset);
+      tags[i] = Symbol.add(readString(offset + 2, len));
+      offset += 2 + len;
+    }
+    tableOffset = offset;
+  }
+
+  private String readString(int offset, int len)
+    throws UnsupportedEncodingException {
+    byte[] bytes = new byte[len];
+    for (int i = 0; i < len; i++)
+      bytes[i] = buf.get(offset + i);
+    return new String(bytes, "UTF-8");
+  }
+
+  /** Returns the number of distinct tags in this dictionary. */
+  public int numTags() { return tags.length; }
+
+  /** Returns the number of words and feature vectors in this dictionary. */
+  public int numEntries() { return numEntries; }
+
+  /**
+   * Returns the tags observed with the specified word whose relative
+   * frequency is at least <code>threshold</code>, most frequent first, or
+   * <code>null</code> if the word was never observed.
+   */
+  public SexpList wordTags(Symbol word, double threshold) {
+    return tags(find(wordKey, word), threshold);
+  }
+
+  /**
+   * Returns the tags observed with words having the specified feature vector
+   * whose relative frequency is at least <code>threshold</code>, most frequent
+   * first, or <code>null</code> if the feature vector was never observed.
+   */
+  public SexpList featureTags(Symbol features, double threshold) {
+    return tags(find(featuresKey, features), threshold);
+  }
+
+  /** Returns the number of times the specified word was observed. */
+  public int wordCount(Symbol word) {
+    int entry = find(wordKey, word);
+    return entry == -1 ? 0 : buf.getInt(entry + 2 + buf.getShort(entry));
+  }
+
+  private SexpList tags(int entry, double threshold) {
+    if (entry == -1)
+      return null;
+    int offset = entry + 2 + buf.getShort(entry);
+    int total = buf.getInt(offset);
+    int numKeyTags = buf.getShort(offset + 4);
+    offset += 6;
+    SexpList keyTags = new SexpList(numKeyTags);
+    for (int i = 0; i < numKeyTags; i++, offset += 6) {
+      int count = buf.getInt(offset + 2);
+      // tags are sorted by decreasing count
+      if (keyTags.length() > 0 && count < threshold * total)
+        break;
+      keyTags.add(tags[buf.getShort(offset)]);
+    }
+    return keyTags;
+  }
+
+  /**
+   * Returns the absolute offset of the entry for the specified key, or -1
+   * if there is none.
+   */
+  private int find(byte kind, Symbol key) {
+    if (key == null || tableSize == 0)
+      return -1;
+    byte[] bytes = keyBytes(kind, key);
+    int mask = tableSize - 1;
+    for (int slot = hash(bytes) & mask; ; slot = (slot + 1) & mask) {
+      int entry = buf.getInt(tableOffset + 4 * slot);
+      if (entry == 0)
+        return -1;
+      if (keyEquals(entry, bytes))
+        return entry;
+    }
+  }
+
+  private boolean keyEquals(int entry, byte[] bytes) {
+    if (buf.getShort(entry) != bytes.length)
+      return false;
+    for (int i = 0; i < bytes.length; i++)
+      if (buf.get(entry + 2 + i) != bytes[i])
+        return false;
+    return true;
+  }
+
+  private static byte[] keyBytes(byte kind, Symbol key) {
+    try {
+      byte[] str = key.toString().getBytes("UTF-8");
+      byte[] bytes = new byte[str.length + 1];
+      bytes[0] = kind;
+      System.arraycopy(str, 0, bytes, 1, str.length);
+      return bytes;
+    }
+    catch (UnsupportedEncodingException uee) {
+      throw new RuntimeException(uee.toString());
+    }
+  }
+
+  /** The 32-bit FNV-1a hash of the specified bytes. */
+  private static int hash(byte[] bytes) {
+    int h = 0x811c9dc5;
+    for (int i = 0; i < bytes.length; i++) {
+      h ^= bytes[i] & 0xff;
+      h *= 0x01000193;
+    }
+    return h;
+  }
+
+  /**
+   * Counts the tags of every word and word-feature vector in a treebank and
+   * writes them to a tag dictionary file.
+   *
+   * @param treebankFilename a file of training trees, such as
+   * <tt>corpus.train.gold.txt</tt>
+   * @param outputFilename the tag dictionary file to write
+   */
+  public static void build(String treebankFilename, String outputFilename)
+    throws IOException {
+    // maps each key (as a byte array wrapped in a String) to a map of tags to
+    // counts
+    Map counts = new HashMap();
+    Map tagIndices = new HashMap();
+    List tagList = new ArrayList();
+
+    SexpTokenizer tok = TextFiles.newTokenizer(treebankFilename);
+    Sexp tree = null;
+    int numSentences = 0;
+    while ((tree = Sexp.read(tok)) != null) {
+      List preterms = new ArrayList();
+      collectPreterminals(tree, preterms);
+      for (int i = 0; i < preterms.size(); i++) {
+        SexpList preterm = (SexpList)preterms.get(i);
+        Symbol tag = Language.treebank().getTag(preterm);
+        Symbol word = preterm.symbolAt(1);
+        if (!tagIndices.containsKey(tag)) {
+          tagIndices.put(tag, Integer.valueOf(tagList.size()));
+          tagList.add(tag);
+        }
+        increment(counts, keyBytes(wordKey, word), tag);
+        increment(counts, keyBytes(featuresKey,
+                                   Language.wordFeatures().features(word, i == 0)),
+                  tag);
+      }
+      numSentences++;
+    }
+    if (tagList.size() > Short.MAX_VALUE)
+      throw new IOException(className + ": too many tags (" + tagList.size() +
+                            ")");
+
+    // the hash table is kept at most half full
+    int tableSize = 1;
+    while (tableSize < 2 * counts.size())
+      tableSize <<= 1;
+
+    ByteArrayOutputStream tagBytes = new ByteArrayOutputStream();
+    DataOutputStream tagOut = new DataOutputStream(tagBytes);
+    for (int i = 0; i < tagList.size(); i++) {
+      byte[] str = tagList.get(i).toString().getBytes("UTF-8");
+      tagOut.writeShort(str.length);
+      tagOut.write(str);
+    }
+    tagOut.flush();
+    int entriesOffset = headerSize + tagBytes.size() + 4 * tableSize;
+
+    int[] table = new int[tableSize];
+    ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+    DataOutputStream entryOut = new DataOutputStream(entryBytes);
+    int mask = tableSize - 1;
+    Iterator it = counts.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry entry = (Map.Entry)it.next();
+      byte[] key = ((String)entry.getKey()).getBytes("ISO-8859-1");
+      int slot = hash(key) & mask;
+      while (table[slot] != 0)
+        slot = (slot + 1) & mask;
+      table[slot] = entriesOffset + entryBytes.size();
+
+      Map tagCounts = (Map)entry.getValue();
+      Map.Entry[] sorted =
+        (Map.Entry[])tagCounts.entrySet().toArray(new Map.Entry[0]);
+      Arrays.sort(sorted, new Comparator() {
+        public int compare(Object o1, Object o2) {
+          int c1 = ((int[])((Map.Entry)o1).getValue())[0];
+          int c2 = ((int[])((Map.Entry)o2).getValue())[0];
+          return c2 - c1;
+        }
+      });
+      int total = 0;
+      for (int i = 0; i < sorted.length; i++)
+        total += ((int[])sorted[i].getValue())[0];
+
+      entryOut.writeShort(key.length);
+      entryOut.write(key);
+      entryOut.writeInt(total);
+      entryOut.writeShort(sorted.length);
+      for (int i = 0; i < sorted.length; i++) {
+        entryOut.writeShort(((Integer)tagIndices.get(sorted[i].getKey())).intValue());
+        entryOut.writeInt(((int[])sorted[i].getValue())[0]);
+      }
+    }
+    entryOut.flush();
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(outputFilename), Constants.defaultFileBufsize));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(tagList.size());
+    out.writeInt(counts.size());
+    out.writeInt(tableSize);
+    tagBytes.writeTo(out);
+    for (int i = 0; i < tableSize; i++)
+      out.writeInt(table[i]);
+    entryBytes.writeTo(out);
+    out.close();
+
+    System.err.println(className + ": " + numSentences + " sentences, " +
+                       tagList.size() + " tags, " + counts.size() +
+                       " entries");
+  }
+
+  private static void collectPreterminals(Sexp tree, List preterms) {
+    Treebank treebank = Language.treebank();
+    if (treebank.isPreterminal(tree)) {
+      if (!treebank.isNullElementPreterminal(tree))
+        preterms.add(tree);
+    }
+    else if (tree.isList()) {
+      SexpList treeList = tree.list();
+      for (int i = 1; i < treeList.length(); i++)
+        collectPreterminals(treeList.get(i), preterms);
+    }
+  }
+
+  private static void increment(Map counts, byte[] key, Symbol tag)
+    throws UnsupportedEncodingException {
+    // ISO-8859-1 maps every byte to a distinct char, so the key survives the
+    // round trip unchanged
+    String keyStr = new String(key, "ISO-8859-1");
+    Map tagCounts = (Map)counts.get(keyStr);
+    if (tagCounts == null) {
+      tagCounts = new HashMap();
+      counts.put(keyStr, tagCounts);
+    }
+    int[] count = (int[])tagCounts.get(tag);
+    if (count == null)
+      tagCounts.put(tag, new int[]{1});
+    else
+      count[0]++;
+  }
+
+  private static void usage() {
+    System.err.println("usage: -i <training file> -o <tag dictionary file>");
+    System.exit(1);
+  }
+
+  /**
+   * Builds a tag dictionary from a training file.
+   *
+   * @param args usage: <tt>-i &lt;training file&gt;
+   * -o &lt;tag dictionary file&gt;</tt>
+   */
+  public static void main(String[] args) {
+    String inputFilename = null, outputFilename = null;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length)
+        usage();
+      if (args[i].equals("-i"))
+        inputFilename = args[++i];
+      else if (args[i].equals("-o"))
+        outputFilename = args[++i];
+      else
+        usage();
+    }
+    if (inputFilename == null || outputFilename == null)
+      usage();
+
+    try {
+      build(inputFilename, outputFilename);
+    }
+    catch (IOException ioe) {
+      System.err.println(ioe);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package portuguese;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import danbikel.lisp.SexpTokenizer;
+import danbikel.parser.Constants;
+import danbikel.parser.Language;
+
+/**
+ * Static methods to open the text files of the pipeline, such as corpora,
+ * parser input and parser output, in the encoding of the language package.
+ * Files are decoded and encoded a buffer at a time by the
+ * {@link CharsetDecoder} and {@link CharsetEncoder} of a file channel, which
+ * report malformed input and unmappable characters instead of silently
+ * replacing them, so that a file in the wrong encoding is noticed where it is
+ * read rather than where its trees fail to score.
+ * <p>
+ * The pipeline uses UTF-8 throughout (the <tt>parser.file.encoding.</tt>
+ * setting of the language, which defaults to the <tt>file.encoding</tt>
+ * system property).  Files in another encoding, such as the ISO-8859-1 of
+ * the original Bosque treebank, are meant to be transcoded once when they
+ * are imported, for which this class has a {@link #main(String[])} method.
+ */
+public class TextFiles {
+  // constants
+  private final static String className = TextFiles.class.getName();
+
+  /** The encoding of the files of the pipeline. */
+  public final static String utf8 = "UTF-8";
+  /**
+   * The encoding assumed for files that are not valid UTF-8, which is that
+   * of the original Bosque treebank.
+   */
+  public final static String fallbackEncoding = "ISO-8859-1";
+
+  private final static int bufSize = Constants.defaultFileBufsize;
+
+  private TextFiles() {}
+
+  private static CharsetDecoder decoder(String encoding) {
+    return Charset.forName(encoding).newDecoder().
+      onMalformedInput(CodingErrorAction.REPORT).
+      onUnmappableCharacter(CodingErrorAction.REPORT);
+  }
+
+  private static CharsetEncoder encoder(String encoding) {
+    return Charset.forName(encoding).newEncoder().
+      onMalformedInput(CodingErrorAction.REPORT).
+      onUnmappableCharacter(CodingErrorAction.REPORT);
+  }
+
+  /** Opens the specified file for reading in the specified encoding. */
+  public static BufferedReader newReader(String filename, String encoding)
+    throws IOException {
+    FileChannel channel = new FileInputStream(filename).getChannel();
+    return new BufferedReader(Channels.newReader(channel, decoder(encoding),
+                                                 bufSize), bufSize);
+  }
+
+  /** Opens the specified file for reading in the language's encoding. */
+  public static BufferedReader newReader(String filename) throws IOException {
+    return newReader(filename, Language.encoding());
+  }
+
+  /**
+   * Opens the specified stream, such as standard input, for reading in the
+   * language's encoding.
+   */
+  public static BufferedReader newReader(InputStream in) {
+    return new BufferedReader(Channels.newReader(Channels.newChannel(in),
+                                                 decoder(Language.encoding()),
+                                                 bufSize), bufSize);
+  }
+
+  /** Opens the specified file for writing in the specified encoding. */
+  public static BufferedWriter newWriter(String filename, String encoding)
+    throws IOException {
+    FileChannel channel = new FileOutputStream(filename).getChannel();
+    return new BufferedWriter(Channels.newWriter(channel, encoder(encoding),
+                                                 bufSize), bufSize);
+  }
+
+  /** Opens the specified file for writing in the language's encoding. */
+  public static BufferedWriter newWriter(String filename) throws IOException {
+    return newWriter(filename, Language.encoding());
+  }
+
+  /**
+   * Opens the specified stream, such as standard output, for writing in the
+   * language's encoding.
+   */
+  public static BufferedWriter newWriter(OutputStream out) {
+    return new BufferedWriter(Channels.newWriter(Channels.newChannel(out),
+                                                 encoder(Language.encoding()),
+                                                 bufSize), bufSize);
+  }
+
+  /**
+   * Returns a tokenizer of the S-expressions of the specified file, read in
+   * the language's encoding.
+   */
+  public static SexpTokenizer newTokenizer(String filename)
+    throws IOException {
+    return new SexpTokenizer(newReader(filename));
+  }
+
+  /**
+   * Returns whether the specified file is entirely valid in the specified
+   * encoding, decoding it a buffer at a time without keeping the characters.
+   */
+  public static boolean isValid(String filename, String encoding)
+    throws IOException {
+    FileChannel channel = new FileInputStream(filename).getChannel();
+    try {
+      CharsetDecoder decoder = decoder(encoding);
+      ByteBuffer in = ByteBuffer.allocate(bufSize);
+      CharBuffer out = CharBuffer.allocate(bufSize);
+      boolean endOfInput = false;
+      while (!endOfInput) {
+        endOfInput = channel.read(in) == -1;
+        in.flip();
+        CoderResult result;
+        do {
+          out.clear();
+          result = decoder.decode(in, out, endOfInput);
+          if (result.isError())
+            return false;
+        } while (result.isOverflow());
+        in.compact();
+      }
+      out.clear();
+      return !decoder.flush(out).isError();
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Returns the encoding of the specified file: UTF-8 if it is valid UTF-8,
+   * and {@link #fallbackEncoding} otherwise.
+   */
+  public static String detectEncoding(String filename) throws IOException {
+    return isValid(filename, utf8) ? utf8 : fallbackEncoding;
+  }
+
+  /**
+   * Copies the specified file to a UTF-8 file, decoding it from its
+   * detected encoding.
+   *
+   * @return the detected encoding of the input file
+   */
+  public static String transcodeToUTF8(String inputFilename,
+                                       String outputFilename)
+    throws IOException {
+    String encoding = detectEncoding(inputFilename);
+    Reader in = newReader(inputFilename, encoding);
+    Writer out = newWriter(outputFilename, utf8);
+    char[] buf = new char[bufSize];
+    int numRead;
+    while ((numRead = in.read(buf)) != -1)
+      out.write(buf, 0, numRead);
+    in.close();
+    out.close();
+    return encoding;
+  }
+
+  private static void usage() {
+    System.err.println("usage: -i <input file> -o <output file>");
+    System.exit(1);
+  }
+
+  /**
+   * Transcodes a file to UTF-8 from its detected encoding.
+   *
+   * @param args usage: <tt>-i &lt;input file&gt; -o &lt;output file&gt;</tt>
+   */
+  public static void main(String[] args) {
+    String inputFilename = null, outputFilename = null;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length)
+        usage();
+      if (args[i].equals("-i"))
+        inputFilename = args[++i];
+      else if (args[i].equals("-o"))
+        outputFilename = args[++i];
+      else
+        usage();
+    }
+    if (inputFilename == null || outputFilename == null)
+      usage();
+
+    try {
+      String encoding = transcodeToUTF8(inputFilename, outputFilename);
+      System.err.println(className + ": transcoded " + inputFilename +
+                         " from " + encoding + " to " + utf8);
+    }
+    catch (IOException ioe) {
+      System.err.println(className + ": " + ioe);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,373 @@
+package portuguese;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import danbikel.lisp.Sexp;
+import danbikel.lisp.SexpTokenizer;
+import danbikel.parser.Constants;
+import danbikel.parser.GapEvent;
+import danbikel.parser.HeadEvent;
+import danbikel.parser.HeadTreeNode;
+import danbikel.parser.Language;
+import danbikel.parser.Model;
+import danbikel.parser.ModifierEvent;
+import danbikel.parser.Settings;
+import danbikel.util.FlexibleMap;
+import danbikel.util.Time;
+
+/**
+ * A trainer for the Portuguese language package that can keep its head,
+ * modifier and gap event counts in {@link OffHeapCountsTable} objects
+ * instead of on the Java heap.  These three tables hold nearly all of the
+ * observations made while reading a training corpus; the remaining tables
+ * are small and stay on the heap.  The observed events file written by this
+ * trainer holds the same counts as the one written by
+ * {@link danbikel.parser.Trainer}, although its lines may come in a
+ * different order, and events that print identically are written as a single
+ * line with their counts summed, just as they are summed when the file is
+ * read back.
+ * <p>
+ * Off-heap counts are used when the property
+ * <tt>parser.trainer.offHeapCounts</tt> is <tt>true</tt>.
+ * <p>
+ * This trainer also writes the observed events file and the derived data
+ * file, and reads observed events files, through {@link GZIPStreams}, so that
+ * gzipped files are compressed in parallel and decompressed ahead of the
+ * reader.  This class takes the same command-line arguments as
+ * {@link danbikel.parser.Trainer}, plus <tt>-ov &lt;vocabulary file&gt;</tt>,
+ * with which the words counted in the training corpus are also written to a
+ * {@link Vocabulary} file for the decoder.
+ * <p>
+ * The probabilities of the models are precomputed by
+ * <tt>parser.trainer.precomputeThreads</tt> threads (by default, one per
+ * processor), one model at a time on each thread.  The models share no
+ * state while their probabilities are precomputed, so the derived data file
+ * is the same as when they are precomputed one after another, which they
+ * are when this property is <tt>1</tt>.
+ * <p>
+ * When <tt>parser.trainer.profileFile</tt> is set, the phases of training
+ * are recorded by a {@link TrainingProfiler} as flight recorder events.
+ */
+public class Trainer extends danbikel.parser.Trainer {
+  // constants
+  private final static String className = Trainer.class.getName();
+
+  /**
+   * The property to specify whether the head, modifier and gap event counts
+   * should be kept off the Java heap.
+   */
+  public final static String offHeapCountsProperty =
+    "parser.trainer.offHeapCounts";
+
+  /**
+   * The property to specify the number of threads precomputing the
+   * probabilities of the models.
+   */
+  public final static String precomputeThreadsProperty =
+    "parser.trainer.precomputeThreads";
+
+  static {
+    // make danbikel.parser.Trainer.main instantiate this class
+    trainerClass = Trainer.class;
+  }
+
+  // the observed events output file, which this class writes in place of
+  // danbikel.parser.Trainer.main; MultiTrainer sets it for each configuration
+  static String observationsFilename;
+  // the vocabulary output file; MultiTrainer sets it for each configuration
+  static String vocabularyFilename;
+
+  // data members
+  private int collectStatsDepth;
+
+  /**
+   * Constructs a new trainer, using off-heap event counts if the settings
+   * say so.
+   */
+  public Trainer() {
+    super();
+    if (Settings.getBooleanProperty(offHeapCountsProperty, false)) {
+      headEvents = new OffHeapCountsTable(HeadEvent.class);
+      modifierEvents = new OffHeapCountsTable(ModifierEvent.class);
+      gapEvents = new OffHeapCountsTable(GapEvent.class);
+      System.err.println(className + ": keeping event counts off the heap");
+    }
+  }
+
+  /**
+   * Creates the model objects, as the superclass does; overridden so that
+   * {@link MultiTrainer} can call it.
+   */
+  protected void createModelObjects() {
+    super.createModelObjects();
+  }
+
+  /** Reads the training corpus, recording it as a profiled phase. */
+  public void train(SexpTokenizer tok, boolean auto, boolean stripOuterParens)
+    throws IOException {
+    if (!TrainingProfiler.enabled) {
+      super.train(tok, auto, stripOuterParens);
+      return;
+    }
+    TrainingProfiler.enter(TrainingProfiler.CORPUS_PASS);
+    try {
+      super.train(tok, auto, stripOuterParens);
+    }
+    finally {
+      TrainingProfiler.exit(TrainingProfiler.CORPUS_PASS);
+    }
+  }
+
+  /**
+   * Collects the events of a tree, recording it as a profiled phase and
+   * counting the sentence when it is the outermost call.
+   */
+  protected void collectStats(Sexp tree, HeadTreeNode headTree,
+                              boolean isRoot) {
+    if (!TrainingProfiler.enabled) {
+      super.collectStats(tree, headTree, isRoot);
+      return;
+    }
+    if (collectStatsDepth++ == 0)
+      TrainingProfiler.sentence(TrainingProfiler.EVENT_EXTRACTION);
+    TrainingProfiler.enter(TrainingProfiler.EVENT_EXTRACTION);
+    try {
+      super.collectStats(tree, headTree, isRoot);
+    }
+    finally {
+      TrainingProfiler.exit(TrainingProfiler.EVENT_EXTRACTION);
+      collectStatsDepth--;
+    }
+  }
+
+  /** Derives the model counts, recording it as a profiled phase. */
+  public void deriveCounts(boolean deletePrecomputedProbs,
+                           FlexibleMap canonical) {
+    if (TrainingProfiler.enabled)
+      TrainingProfiler.enter(TrainingProfiler.DERIVATION);
+    try {
+      super.deriveCounts(deletePrecomputedProbs, canonical);
+    }
+    finally {
+      if (TrainingProfiler.enabled)
+        TrainingProfiler.exit(TrainingProfiler.DERIVATION);
+    }
+  }
+
+  /**
+   * Precomputes probabilities, recording it as a profiled phase, on as many
+   * threads as the settings say.
+   */
+  protected void precomputeProbs() {
+    if (TrainingProfiler.enabled)
+      TrainingProfiler.enter(TrainingProfiler.PRECOMPUTATION);
+    try {
+      int numThreads =
+        Settings.getIntProperty(precomputeThreadsProperty,
+                                Runtime.getRuntime().availableProcessors());
+      if (numThreads > 1)
+        precomputeProbsInParallel(numThreads);
+      else
+        super.precomputeProbs();
+    }
+    finally {
+      if (TrainingProfiler.enabled)
+        TrainingProfiler.exit(TrainingProfiler.PRECOMPUTATION);
+    }
+  }
+
+  /**
+   * Precomputes the probabilities of each model as a task of a pool of the
+   * specified number of threads.  The models are kept quiet while they do,
+   * since the messages of a verbose model are formatted with a number format
+   * that all models share, and the time each model took is printed
+   * afterwards, in the order in which the superclass precomputes them.
+   */
+  private void precomputeProbsInParallel(int numThreads) {
+    final Model[] models = {
+      lexPriorModel, nonterminalPriorModel, topNonterminalModel, topLexModel,
+      headModel, gapModel, leftSubcatModel, rightSubcatModel,
+      modNonterminalModel, modWordModel
+    };
+    ExecutorService pool =
+      Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Probability Precomputer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    Time time = new Time();
+    Future[] futures = new Future[models.length];
+    try {
+      for (int i = 0; i < models.length; i++) {
+        final Model model = models[i];
+        setVerbose(model, false);
+        futures[i] = pool.submit(new Callable() {
+          public Object call() {
+            long start = System.currentTimeMillis();
+            model.precomputeProbs();
+            return Long.valueOf(System.currentTimeMillis() - start);
+          }
+        });
+      }
+      for (int i = 0; i < models.length; i++) {
+        long millis = ((Long)futures[i].get()).longValue();
+        System.err.println("Precomputed probabilities for " +
+                           models[i].getProbStructure().getClass().getName() +
+                           " in " + millis + " ms.");
+      }
+    }
+    catch (InterruptedException ie) {
+      throw new RuntimeException(className + ": interrupted while " +
+                                 "precomputing probabilities");
+    }
+    catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new RuntimeException(String.valueOf(cause));
+    }
+    finally {
+      pool.shutdownNow();
+      for (int i = 0; i < models.length; i++)
+        setVerbose(models[i], true);
+    }
+    System.err.println("Precomputed probabilities on " + numThreads +
+                       " threads in " + time + ".");
+  }
+
+  // sets the verbosity of a model and of the models it is made of; models
+  // are always constructed verbose
+  private static void setVerbose(Model model, boolean verbose) {
+    for (int i = 0; i < model.numModels(); i++) {
+      if (verbose)
+        model.getModel(i).beVerbose();
+      else
+        model.getModel(i).beQuiet();
+    }
+  }
+
+  /**
+   * Finishes collecting observations as usual and then writes them to the
+   * observed events output file given on the command line, if any.
+   */
+  public void doneCollectingObservations() {
+    if (TrainingProfiler.enabled)
+      TrainingProfiler.enter(TrainingProfiler.OBSERVATIONS);
+    try {
+      writeObservations();
+      writeVocabulary();
+    }
+    finally {
+      if (TrainingProfiler.enabled)
+        TrainingProfiler.exit(TrainingProfiler.OBSERVATIONS);
+    }
+  }
+
+  private void writeObservations() {
+    super.doneCollectingObservations();
+    if (observationsFilename == null)
+      return;
+    System.err.println("Writing observations to output file \"" +
+                       observationsFilename + "\".");
+    Time time = new Time();
+    try {
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+        GZIPStreams.newOutputStream(observationsFilename),
+        Language.encoding()), Constants.defaultFileBufsize);
+      writeStats(out);
+      out.close();
+    }
+    catch (IOException ioe) {
+      System.err.println(className + ": couldn't write observations to \"" +
+                         observationsFilename + "\": " + ioe);
+      System.exit(1);
+    }
+    System.err.println("Finished writing observations in " + time + ".");
+  }
+
+  private void writeVocabulary() {
+    if (vocabularyFilename == null)
+      return;
+    System.err.println("Writing vocabulary to output file \"" +
+                       vocabularyFilename + "\".");
+    Time time = new Time();
+    try {
+      Vocabulary.write(vocabCounter, vocabularyFilename);
+    }
+    catch (IOException ioe) {
+      System.err.println(className + ": couldn't write vocabulary to \"" +
+                         vocabularyFilename + "\": " + ioe);
+      System.exit(1);
+    }
+    System.err.println("Finished writing vocabulary in " + time + ".");
+  }
+
+  /** Reads observations from the specified observed events file. */
+  public void readStats(File file) throws IOException {
+    InputStream in = GZIPStreams.newInputStream(file.getPath());
+    try {
+      readStats(new SexpTokenizer(in, Language.encoding(),
+                                  Constants.defaultFileBufsize));
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /** Writes the derived data file through {@link GZIPStreams}. */
+  public void writeModelCollection(String objectOutputFilename,
+                                   String trainingInputFilename,
+                                   String settingsFilename)
+    throws FileNotFoundException, IOException {
+    if (TrainingProfiler.enabled)
+      TrainingProfiler.enter(TrainingProfiler.SERIALIZATION);
+    try {
+      writeModelCollectionFile(objectOutputFilename, trainingInputFilename,
+                               settingsFilename);
+    }
+    finally {
+      if (TrainingProfiler.enabled)
+        TrainingProfiler.exit(TrainingProfiler.SERIALIZATION);
+    }
+  }
+
+  private void writeModelCollectionFile(String objectOutputFilename,
+                                        String trainingInputFilename,
+                                        String settingsFilename)
+    throws IOException {
+    OutputStream out = new BufferedOutputStream(
+      GZIPStreams.newOutputStream(objectOutputFilename),
+      Constants.defaultFileBufsize);
+    writeModelCollection(new ObjectOutputStream(out), trainingInputFilename,
+                         settingsFilename);
+  }
+
+  /**
+   * Trains a model exactly as {@link danbikel.parser.Trainer#main(String[])}
+   * does, but with an instance of this class, which writes the observed
+   * events output file itself, and the vocabulary file given with
+   * <tt>-ov</tt>, if any, and then prints the measures of the process (see
+   * {@link ProcessStats}).
+   */
+  public static void main(String[] args) {
+    List argList = new ArrayList(Arrays.asList(args));
+    int outputIdx = argList.indexOf("-o");
+    if (outputIdx != -1 && outputIdx + 1 < argList.size() &&
+        !argList.get(outputIdx + 1).equals("-")) {
+      observationsFilename = (String)argList.remove(outputIdx + 1);
+      argList.remove(outputIdx);
+    }
+    int vocabularyIdx = argList.indexOf("-ov");
+    if (vocabularyIdx != -1 && vocabularyIdx + 1 < argList.size()) {
+      vocabularyFilename = (String)argList.remove(vocabularyIdx + 1);
+      argList.remove(vocabularyIdx);
+    }
+    danbikel.parser.Trainer.main((String[])argList.toArray(new String[0]));
+    ProcessStats.print();
+  }
+}
@@ -53,6 +53,8 @@ public class Training extends danbikel.parser.lang.AbstractTraining {
 
   // data members
   private Nonterminal nonterminal = new Nonterminal();
+  // whether the trees to be preprocessed have already been pruned
+  private boolean treesPruned;
 
   /**
    * The default constructor, to be invoked by {@link danbikel.parser.Language}.
@@ -74,10 +76,39 @@ public class Training extends danbikel.parser.lang.AbstractTraining {
     readMetadata(metadataTok);
   }
 
+  /**
+   * Sets whether the trees given to {@link #preProcess(Sexp)} have already
+   * been pruned, as {@link MultiTrainer} prunes them once for all the
+   * configurations it trains, so that they are not pruned again.
+   */
+  public void setTreesPruned(boolean treesPruned) {
+    this.treesPruned = treesPruned;
+  }
+
+  /**
+   * Prunes the specified tree as usual, unless the trees have already been
+   * pruned.
+   *
+   * @see #setTreesPruned(boolean)
+   */
+  public Sexp prune(Sexp tree) {
+    return treesPruned ? tree : super.prune(tree);
+  }
+
   public Sexp preProcess(Sexp tree) {
-    //transformSubjectNTs(tree);
-    super.preProcess(tree);
-    fixSubjectlessSentences(tree);
+    if (TrainingProfiler.enabled) {
+      TrainingProfiler.sentence(TrainingProfiler.PREPROCESSING);
+      TrainingProfiler.enter(TrainingProfiler.PREPROCESSING);
+    }
+    try {
+      //transformSubjectNTs(tree);
+      super.preProcess(tree);
+      fixSubjectlessSentences(tree);
+    }
+    finally {
+      if (TrainingProfiler.enabled)
+        TrainingProfiler.exit(TrainingProfiler.PREPROCESSING);
+    }
     return tree;
   }
 
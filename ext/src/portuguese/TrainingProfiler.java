@@ -0,0 +1,497 @@
+package portuguese;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.Paths;
+import java.util.*;
+import jdk.jfr.*;
+import jdk.jfr.consumer.*;
+import danbikel.parser.Settings;
+
+/**
+ * Records where the time of a training run goes, phase by phase, as events of
+ * a Java Flight Recorder recording, and turns the recording into a table.
+ * The trainer, the training preprocessor and the head finder mark the start
+ * and end of their phases with {@link #enter(int)} and {@link #exit(int)},
+ * which cost a call to {@link System#nanoTime()} when profiling is on and
+ * nothing but a test of {@link #enabled} when it is off.
+ * <p>
+ * Phases nest: the corpus pass of the trainer contains the preprocessing of
+ * every tree, head finding and event extraction, and the derivation of the
+ * models contains the precomputation of their probabilities.  The time of a
+ * nested phase is not counted in the phase that contains it, and a phase
+ * entered again while it is running (such as the recursive extraction of the
+ * events of a tree) is counted once.  When an outermost phase ends, a
+ * {@link PhaseEvent} spanning it is committed for it and for each phase
+ * nested in it, with the time spent in the phase itself and the number of
+ * times it was entered; that of the outermost phase also has the CPU time,
+ * the bytes allocated by the training thread and the number and time of
+ * garbage collections, including those of its nested phases.  Every
+ * <tt>parser.trainer.profileInterval</tt> sentences of the preprocessing and
+ * event extraction phases, a {@link ThroughputEvent} spanning the last
+ * interval is committed.
+ * <p>
+ * The recording is made with the <tt>profile</tt> configuration of the
+ * recorder, so that it also has the garbage collections, allocation samples
+ * and method samples of the run, and is written when the virtual machine
+ * exits; it can be opened with Java Mission Control or <tt>jfr print</tt>,
+ * and the {@link #main(String[])} method of this class summarizes it.
+ * <p>
+ * The following settings control the profiler:
+ * <table>
+ * <tr><td><tt>parser.trainer.profileFile</tt></td>
+ *     <td>the file the recording is written to (no recording if not
+ *     set)</td></tr>
+ * <tr><td><tt>parser.trainer.profileInterval</tt></td>
+ *     <td>number of sentences per throughput event (default 1000)</td></tr>
+ * </table>
+ */
+public class TrainingProfiler {
+  // constants
+  private final static String className = TrainingProfiler.class.getName();
+
+  /** The property specifying the file the recording is written to. */
+  public final static String profileFileProperty =
+    "parser.trainer.profileFile";
+  /** The property specifying the sentences per throughput event. */
+  public final static String profileIntervalProperty =
+    "parser.trainer.profileInterval";
+
+  /** The pass over the training corpus, excluding its nested phases. */
+  public final static int CORPUS_PASS = 0;
+  /** The preprocessing of a training tree. */
+  public final static int PREPROCESSING = 1;
+  /** The finding of the head of a node. */
+  public final static int HEAD_FINDING = 2;
+  /** The extraction of the events of a training tree. */
+  public final static int EVENT_EXTRACTION = 3;
+  /** The writing of the observed events file. */
+  public final static int OBSERVATIONS = 4;
+  /** The derivation of the counts of the models. */
+  public final static int DERIVATION = 5;
+  /** The precomputation of the probabilities of the models. */
+  public final static int PRECOMPUTATION = 6;
+  /** The writing of the derived data file. */
+  public final static int SERIALIZATION = 7;
+
+  private final static String[] phaseNames = {
+    "corpus-pass", "preprocessing", "head-finding", "event-extraction",
+    "observations", "derivation", "precomputation", "serialization"
+  };
+
+  private final static String phaseEventName = "portuguese.TrainingPhase";
+  private final static String throughputEventName =
+    "portuguese.TrainingThroughput";
+  private final static String gcEventName = "jdk.GarbageCollection";
+
+  /** Whether a recording is being made. */
+  public final static boolean enabled =
+    Settings.get(profileFileProperty) != null;
+
+  /**
+   * The time spent in a phase of training, committed when the outermost
+   * phase it belongs to ends and spanning that outermost phase.
+   */
+  @Name(phaseEventName)
+  @Label("Training Phase")
+  @Category("Porser")
+  @StackTrace(false)
+  static class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+    @Label("Outer Phase")
+    @Description("The outermost phase, or null if this is one")
+    String outer;
+    @Label("Time")
+    @Description("The time spent in the phase, excluding nested phases")
+    @Timespan(Timespan.MILLISECONDS)
+    long millis;
+    @Label("Calls")
+    long calls;
+    @Label("CPU Time")
+    @Description("The CPU time of the training thread, including nested " +
+                 "phases; -1 if unknown")
+    @Timespan(Timespan.MILLISECONDS)
+    long cpuMillis = -1;
+    @Label("Allocated")
+    @Description("The bytes allocated by the training thread, including " +
+                 "nested phases; -1 if unknown")
+    @DataAmount
+    long allocated = -1;
+    @Label("GC Count")
+    long gcCount;
+    @Label("GC Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long gcMillis;
+  }
+
+  /** The number of sentences a phase went through over an interval. */
+  @Name(throughputEventName)
+  @Label("Training Throughput")
+  @Category("Porser")
+  @StackTrace(false)
+  static class ThroughputEvent extends Event {
+    @Label("Phase")
+    String phase;
+    @Label("Sentences")
+    int sentences;
+  }
+
+  // data members
+  private static Recording recording;
+  private static int interval =
+    Settings.getIntProperty(profileIntervalProperty, 1000);
+  private static int[] depth = new int[phaseNames.length];
+  private static long[] nanos = new long[phaseNames.length];
+  private static int[] calls = new int[phaseNames.length];
+  private static int[] sentences = new int[phaseNames.length];
+  private static ThroughputEvent[] intervals =
+    new ThroughputEvent[phaseNames.length];
+  private static PhaseEvent[] events = new PhaseEvent[phaseNames.length];
+  private static int[] stack = new int[phaseNames.length];
+  private static int stackSize;
+  private static long since;
+  private static long[] outerStart;
+
+  static {
+    if (enabled)
+      startRecording(Settings.get(profileFileProperty));
+  }
+
+  private TrainingProfiler() {}
+
+  private static void startRecording(String filename) {
+    try {
+      recording = new Recording(Configuration.getConfiguration("profile"));
+      recording.setName(className);
+      recording.setToDisk(true);
+      recording.setDestination(Paths.get(filename));
+      recording.setDumpOnExit(true);
+      recording.start();
+    }
+    catch (Exception e) {
+      // the events are still committed, to a recording started with
+      // -XX:StartFlightRecording, if any
+      System.err.println(className + ": couldn't start recording: " + e);
+    }
+  }
+
+  /**
+   * Marks the start of the specified phase, pausing the phase it is nested
+   * in.
+   */
+  public static synchronized void enter(int phase) {
+    if (depth[phase]++ > 0)
+      return;
+    long now = System.nanoTime();
+    if (stackSize > 0)
+      nanos[stack[stackSize - 1]] += now - since;
+    else
+      begin(now);
+    stack[stackSize++] = phase;
+    calls[phase]++;
+    since = now;
+  }
+
+  /**
+   * Marks the end of the specified phase, resuming the phase it is nested
+   * in; the end of an outermost phase commits the events of its phases.
+   */
+  public static synchronized void exit(int phase) {
+    if (--depth[phase] > 0)
+      return;
+    long now = System.nanoTime();
+    nanos[phase] += now - since;
+    stackSize--;
+    since = now;
+    if (stackSize == 0)
+      commit(phase, snapshot(now));
+  }
+
+  /**
+   * Counts a sentence of the specified phase, committing the throughput of
+   * the last interval when it is complete.
+   */
+  public static synchronized void sentence(int phase) {
+    if (sentences[phase] % interval == 0) {
+      intervals[phase] = new ThroughputEvent();
+      intervals[phase].begin();
+    }
+    if (++sentences[phase] % interval == 0) {
+      ThroughputEvent event = intervals[phase];
+      event.end();
+      event.phase = phaseNames[phase];
+      event.sentences = interval;
+      event.commit();
+      intervals[phase] = null;
+    }
+  }
+
+  /**
+   * Returns the elapsed time, the CPU time and the bytes allocated by the
+   * current thread, the number of garbage collections and their time.
+   */
+  private static long[] snapshot(long now) {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long cpu = threads.isCurrentThreadCpuTimeSupported() ?
+      threads.getCurrentThreadCpuTime() : -1;
+    long allocated = -1;
+    if (threads instanceof com.sun.management.ThreadMXBean)
+      allocated = ((com.sun.management.ThreadMXBean)threads).
+        getThreadAllocatedBytes(Thread.currentThread().getId());
+    long gcCount = 0, gcMillis = 0;
+    Iterator it = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+    while (it.hasNext()) {
+      GarbageCollectorMXBean gc = (GarbageCollectorMXBean)it.next();
+      gcCount += Math.max(0, gc.getCollectionCount());
+      gcMillis += Math.max(0, gc.getCollectionTime());
+    }
+    return new long[] {now, cpu, allocated, gcCount, gcMillis};
+  }
+
+  /**
+   * Begins the events of the phases of an outermost phase, which all span
+   * it.
+   */
+  private static void begin(long now) {
+    outerStart = snapshot(now);
+    for (int i = 0; i < events.length; i++) {
+      events[i] = new PhaseEvent();
+      events[i].begin();
+    }
+  }
+
+  /** Commits the events of an outermost phase and the phases nested in it. */
+  private static void commit(int phase, long[] end) {
+    for (int i = 0; i < events.length; i++) {
+      PhaseEvent event = events[i];
+      events[i] = null;
+      if (i != phase && calls[i] == 0)
+        continue;
+      event.end();
+      event.phase = phaseNames[i];
+      event.millis = nanos[i] / 1000000;
+      event.calls = calls[i];
+      if (i == phase) {
+        if (end[1] >= 0)
+          event.cpuMillis = (end[1] - outerStart[1]) / 1000000;
+        if (end[2] >= 0)
+          event.allocated = end[2] - outerStart[2];
+        event.gcCount = end[3] - outerStart[3];
+        event.gcMillis = end[4] - outerStart[4];
+      }
+      else
+        event.outer = phaseNames[phase];
+      event.commit();
+    }
+    Arrays.fill(nanos, 0);
+    Arrays.fill(calls, 0);
+  }
+
+  /** The totals of a phase over a recording. */
+  private static class Row {
+    String name;
+    String outer;
+    long millis;
+    long calls;
+    long cpuMillis = -1;
+    long allocated = -1;
+    long gcCount;
+    long gcMillis;
+    List throughputs = new ArrayList();
+
+    Row(String name, String outer) {
+      this.name = name;
+      this.outer = outer;
+    }
+  }
+
+  /**
+   * Summarizes a recording as a table of the time of every phase, its share
+   * of the total, and, for outermost phases, the CPU time, allocation and
+   * garbage collection, followed by the throughput of the phases that
+   * recorded it and the pauses of all the garbage collections recorded.
+   */
+  public static void report(String recordingFilename, Writer out)
+    throws IOException {
+    List recorded =
+      new ArrayList(RecordingFile.readAllEvents(Paths.get(recordingFilename)));
+    // in the order they ended, so that the rows are in the order of the
+    // phases
+    Collections.sort(recorded, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        return ((RecordedEvent)o1).getEndTime().compareTo(
+          ((RecordedEvent)o2).getEndTime());
+      }
+    });
+    Map rows = new LinkedHashMap();
+    long total = 0;
+    long gcCount = 0, gcPauseNanos = 0, longestPauseNanos = 0;
+    Iterator it = recorded.iterator();
+    while (it.hasNext()) {
+      RecordedEvent event = (RecordedEvent)it.next();
+      String type = event.getEventType().getName();
+      if (type.equals(phaseEventName)) {
+        String name = event.getString("phase");
+        String outer = event.getString("outer");
+        if (outer == null)
+          outer = "-";
+        String key = outer + "/" + name;
+        Row row = (Row)rows.get(key);
+        if (row == null)
+          rows.put(key, row = new Row(name, outer));
+        long millis = event.getLong("millis");
+        row.millis += millis;
+        row.calls += event.getLong("calls");
+        total += millis;
+        if (outer.equals("-")) {
+          row.cpuMillis = add(row.cpuMillis, event.getLong("cpuMillis"));
+          row.allocated = add(row.allocated, event.getLong("allocated"));
+          row.gcCount += event.getLong("gcCount");
+          row.gcMillis += event.getLong("gcMillis");
+        }
+      }
+      else if (type.equals(throughputEventName)) {
+        String name = event.getString("phase");
+        String key = "throughput/" + name;
+        Row row = (Row)rows.get(key);
+        if (row == null)
+          rows.put(key, row = new Row(name, null));
+        long millis = Math.max(1, event.getDuration().toMillis());
+        row.throughputs.add(Double.valueOf(event.getInt("sentences") *
+                                           1000.0 / millis));
+      }
+      else if (type.equals(gcEventName)) {
+        gcCount++;
+        long pause = event.getDuration("sumOfPauses").toNanos();
+        gcPauseNanos += pause;
+        longestPauseNanos =
+          Math.max(longestPauseNanos,
+                   event.getDuration("longestPause").toNanos());
+      }
+    }
+
+    out.write(format("phase", "elapsed s", "share", "calls", "cpu s",
+                     "alloc MB", "GCs", "GC s"));
+    it = rows.values().iterator();
+    while (it.hasNext()) {
+      Row row = (Row)it.next();
+      if (row.outer == null || !row.outer.equals("-"))
+        continue;
+      writeRow(out, row, "", total);
+      // then the phases nested in it
+      Iterator nested = rows.values().iterator();
+      while (nested.hasNext()) {
+        Row inner = (Row)nested.next();
+        if (inner.outer != null && inner.outer.equals(row.name))
+          writeRow(out, inner, "  ", total);
+      }
+    }
+    out.write(format("total", seconds(total), "100.0%", "", "", "", "", ""));
+    out.write("(the CPU time, allocation and garbage collection of a phase " +
+              "include its nested phases)\n");
+    if (gcCount > 0)
+      out.write("(" + gcCount + " garbage collections were recorded, " +
+                "pausing for " + seconds(gcPauseNanos / 1000000) +
+                " s, at most " + longestPauseNanos / 1000000 + " ms at a " +
+                "time)\n");
+
+    boolean first = true;
+    it = rows.values().iterator();
+    while (it.hasNext()) {
+      Row row = (Row)it.next();
+      if (row.throughputs.isEmpty())
+        continue;
+      if (first)
+        out.write("\nsentences/s\tmin\tmedian\tmax\n");
+      first = false;
+      Collections.sort(row.throughputs);
+      List t = row.throughputs;
+      out.write(row.name + "\t" + round(t.get(0)) + "\t" +
+                round(t.get(t.size() / 2)) + "\t" +
+                round(t.get(t.size() - 1)) + "\n");
+    }
+  }
+
+  private static long add(long sum, long value) {
+    return value < 0 ? sum : Math.max(sum, 0) + value;
+  }
+
+  private static void writeRow(Writer out, Row row, String indent,
+                               long total) throws IOException {
+    String share = total == 0 ? "" :
+      String.valueOf(Math.round(row.millis * 1000.0 / total) / 10.0) + "%";
+    boolean outer = indent.length() == 0;
+    out.write(format(indent + row.name, seconds(row.millis), share,
+                     String.valueOf(row.calls),
+                     outer && row.cpuMillis >= 0 ?
+                     seconds(row.cpuMillis) : "",
+                     outer && row.allocated >= 0 ?
+                     String.valueOf(row.allocated / (1024 * 1024)) : "",
+                     outer ? String.valueOf(row.gcCount) : "",
+                     outer ? seconds(row.gcMillis) : ""));
+  }
+
+  private static String format(String name, String elapsed, String share,
+                               String calls, String cpu, String allocated,
+                               String gcCount, String gcTime) {
+    StringBuffer sb = new StringBuffer(name);
+    while (sb.length() < 20)
+      sb.append(' ');
+    String[] columns = {elapsed, share, calls, cpu, allocated, gcCount,
+                        gcTime};
+    for (int i = 0; i < columns.length; i++) {
+      for (int pad = columns[i].length(); pad < 10; pad++)
+        sb.append(' ');
+      sb.append(columns[i]);
+    }
+    return sb.append('\n').toString();
+  }
+
+  private static String seconds(long millis) {
+    return String.valueOf(Math.round(millis / 100.0) / 10.0);
+  }
+
+  private static String round(Object value) {
+    return String.valueOf(Math.round(((Double)value).doubleValue()));
+  }
+
+  private static void usage() {
+    System.err.println("usage: -i <recording file> [-o <report file>]");
+    System.exit(1);
+  }
+
+  /**
+   * Summarizes a recording of a training run.
+   *
+   * @param args usage: <tt>-i &lt;recording file&gt;
+   * [-o &lt;report file&gt;]</tt>; the report is written to standard
+   * output if no report file is given
+   */
+  public static void main(String[] args) {
+    String inputFilename = null, outputFilename = null;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length)
+        usage();
+      if (args[i].equals("-i"))
+        inputFilename = args[++i];
+      else if (args[i].equals("-o"))
+        outputFilename = args[++i];
+      else
+        usage();
+    }
+    if (inputFilename == null)
+      usage();
+
+    try {
+      Writer out = outputFilename == null ?
+        TextFiles.newWriter(System.out) : TextFiles.newWriter(outputFilename);
+      report(inputFilename, out);
+      out.close();
+    }
+    catch (IOException ioe) {
+      System.err.println(className + ": " + ioe);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,427 @@
+package portuguese;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import danbikel.lisp.Symbol;
+import danbikel.parser.Constants;
+import danbikel.parser.CountsTable;
+import danbikel.parser.Language;
+import danbikel.parser.ModelCollection;
+
+/**
+ * A read-only vocabulary of the words counted by the trainer, mapping each
+ * word to a dense integer id between zero and the number of words, and each
+ * id to the count of the word and to its word-feature vectors.  The
+ * vocabulary is written at training time by {@link #write(CountsTable,String)}
+ * and stored in a compact binary file that is memory-mapped when opened, so
+ * that it costs almost no heap and can be shared by every decoder in a
+ * process; {@link DecoderServer} uses it in place of the table of word counts
+ * of the model to decide which words are unknown.
+ * <p>
+ * Ids are given by a minimal perfect hash function: each word is hashed once
+ * to a bucket, and a displacement stored for the bucket takes the hash to
+ * the id of the word, no two words of the vocabulary sharing an id.  Looking
+ * up a word costs one hash of its characters, one read of the displacement
+ * of its bucket and a comparison with the word stored for the id, which
+ * tells the words of the vocabulary from the others.
+ * <p>
+ * The file consists of a header, the table of word-feature vectors, the
+ * displacements of the buckets, the entries of the words in id order and the
+ * characters of the words; all numbers are big-endian.  Each entry holds the
+ * offset of the characters of its word, the count of the word and the
+ * indices of its feature vectors when it is not the first word of a sentence
+ * and when it is.
+ *
+ * @see DecoderServer
+ */
+public class Vocabulary {
+  // constants
+  private final static String className = Vocabulary.class.getName();
+
+  /** The number identifying vocabulary files. */
+  public final static int MAGIC = 0x564f4342;
+  /** The version of the file format written by this class. */
+  public final static int VERSION = 1;
+
+  private final static int headerSize = 24;
+  private final static int entrySize = 12;
+  // the average number of words per bucket
+  private final static int bucketSize = 4;
+  // the displacements tried for a bucket before another seed is tried
+  private final static int maxDisplacement = 1 << 24;
+
+  // data members
+  private ByteBuffer buf;
+  private Symbol[] features;
+  private int numWords;
+  private int numBuckets;
+  private int seed;
+  private int bucketsOffset;
+  private int entriesOffset;
+
+  /**
+   * Opens the vocabulary in the specified file.
+   *
+   * @param filename a file written by {@link #write(CountsTable,String)}
+   * @throws IOException if the file cannot be read or is not a vocabulary
+   */
+  public Vocabulary(String filename) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(filename, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    finally {
+      file.close();
+    }
+    if (buf.capacity() < headerSize || buf.getInt(0) != MAGIC)
+      throw new IOException(className + ": " + filename +
+                            " is not a vocabulary");
+    if (buf.getInt(4) != VERSION)
+      throw new IOException(className + ": " + filename +
+                            " has unsupported version " + buf.getInt(4));
+    int numFeatures = buf.getInt(8);
+    numWords = buf.getInt(12);
+    numBuckets = buf.getInt(16);
+    seed = buf.getInt(20);
+
+    features = new Symbol[numFeatures];
+    int offset = headerSize;
+    for (int i = 0; i < numFeatures; i++) {
+      int len = buf.getShort(offset);
+      byte[] bytes = new byte[len];
+      for (int j = 0; j < len; j++)
+        bytes[j] = buf.get(offset + 2 + j);
+      features[i] = Symbol.add(new String(bytes, "UTF-8"));
+      offset += 2 + len;
+    }
+    bucketsOffset = offset;
+    entriesOffset = bucketsOffset + 4 * numBuckets;
+  }
+
+  /** Returns the number of words in this vocabulary. */
+  public int size() { return numWords; }
+
+  /** Returns the number of distinct word-feature vectors of the words. */
+  public int numFeatures() { return features.length; }
+
+  /**
+   * Returns the id of the specified word, or -1 if the word is not in this
+   * vocabulary.
+   */
+  public int id(String word) {
+    if (numWords == 0)
+      return -1;
+    long hash = hash(word, seed);
+    int displacement = buf.getInt(bucketsOffset + 4 * bucket(hash, numBuckets));
+    int id = slot(hash, displacement, numWords);
+    return wordEquals(id, word) ? id : -1;
+  }
+
+  /**
+   * Returns the id of the specified word, or -1 if the word is not in this
+   * vocabulary.
+   */
+  public int id(Symbol word) {
+    return word == null ? -1 : id(word.toString());
+  }
+
+  /** Returns the number of times the word with the specified id was seen. */
+  public int count(int id) {
+    return buf.getInt(entriesOffset + entrySize * id + 4);
+  }
+
+  /**
+   * Returns the number of times the specified word was seen, or zero if it
+   * is not in this vocabulary.
+   */
+  public int count(Symbol word) {
+    int id = id(word);
+    return id == -1 ? 0 : count(id);
+  }
+
+  /**
+   * Returns the word-feature vector of the word with the specified id, as
+   * given by {@link danbikel.parser.WordFeatures#features(Symbol,boolean)}.
+   *
+   * @param id the id of a word
+   * @param firstWord whether the word is the first word of its sentence
+   */
+  public Symbol features(int id, boolean firstWord) {
+    int offset = entriesOffset + entrySize * id + (firstWord ? 10 : 8);
+    return features[buf.getShort(offset)];
+  }
+
+  /** Returns the word with the specified id. */
+  public String word(int id) {
+    int offset = buf.getInt(entriesOffset + entrySize * id);
+    int len = buf.getShort(offset);
+    char[] chars = new char[len];
+    for (int i = 0; i < len; i++)
+      chars[i] = buf.getChar(offset + 2 + 2 * i);
+    return new String(chars);
+  }
+
+  private boolean wordEquals(int id, String word) {
+    int offset = buf.getInt(entriesOffset + entrySize * id);
+    int len = word.length();
+    if (buf.getShort(offset) != len)
+      return false;
+    for (int i = 0; i < len; i++)
+      if (buf.getChar(offset + 2 + 2 * i) != word.charAt(i))
+        return false;
+    return true;
+  }
+
+  /** The 64-bit FNV-1a hash of the characters of a word, then mixed. */
+  private static long hash(String word, int seed) {
+    long h = 0xcbf29ce484222325L ^ seed;
+    for (int i = 0; i < word.length(); i++) {
+      h ^= word.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  /** The finalization step of MurmurHash3, which spreads every bit. */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static int bucket(long hash, int numBuckets) {
+    return (int)((hash >>> 1) % numBuckets);
+  }
+
+  private static int slot(long hash, int displacement, int numWords) {
+    return (int)((mix(hash + displacement * 0x9e3779b97f4a7c15L) >>> 1) %
+                 numWords);
+  }
+
+  /**
+   * Writes the words counted in the specified table, with their counts and
+   * word-feature vectors, to a vocabulary file.
+   *
+   * @param vocabCounter the counts of the words of a training corpus, as
+   * kept by the trainer and the model collection
+   * @param outputFilename the vocabulary file to write
+   */
+  public static void write(CountsTable vocabCounter, String outputFilename)
+    throws IOException {
+    int numWords = vocabCounter.size();
+    String[] words = new String[numWords];
+    int[] counts = new int[numWords];
+    Iterator it = vocabCounter.keySet().iterator();
+    for (int i = 0; it.hasNext(); i++) {
+      Object word = it.next();
+      words[i] = word.toString();
+      counts[i] = (int)vocabCounter.count(word);
+    }
+
+    Map featureIndices = new HashMap();
+    List featureList = new ArrayList();
+    short[][] wordFeatures = new short[2][numWords];
+    for (int i = 0; i < numWords; i++) {
+      for (int first = 0; first < 2; first++) {
+        Symbol vector =
+          Language.wordFeatures().features(Symbol.add(words[i]), first == 1);
+        Integer idx = (Integer)featureIndices.get(vector);
+        if (idx == null) {
+          idx = Integer.valueOf(featureList.size());
+          featureIndices.put(vector, idx);
+          featureList.add(vector);
+        }
+        wordFeatures[first][i] = (short)idx.intValue();
+      }
+    }
+    if (featureList.size() > Short.MAX_VALUE)
+      throw new IOException(className + ": too many word-feature vectors (" +
+                            featureList.size() + ")");
+
+    int numBuckets = Math.max(1, (numWords + bucketSize - 1) / bucketSize);
+    int[] displacements = new int[numBuckets];
+    int[] ids = new int[numWords];
+    int seed = 0;
+    while (!findDisplacements(words, seed, displacements, ids))
+      seed++;
+
+    ByteArrayOutputStream featureBytes = new ByteArrayOutputStream();
+    DataOutputStream featureOut = new DataOutputStream(featureBytes);
+    for (int i = 0; i < featureList.size(); i++) {
+      byte[] str = featureList.get(i).toString().getBytes("UTF-8");
+      featureOut.writeShort(str.length);
+      featureOut.write(str);
+    }
+    featureOut.flush();
+    int wordsOffset = headerSize + featureBytes.size() + 4 * numBuckets +
+                      entrySize * numWords;
+
+    // entries are written in id order, the words in the order of the table
+    int[] wordOffsets = new int[numWords];
+    int[] byId = new int[numWords];
+    ByteArrayOutputStream wordBytes = new ByteArrayOutputStream();
+    DataOutputStream wordOut = new DataOutputStream(wordBytes);
+    for (int i = 0; i < numWords; i++) {
+      if (words[i].length() > Short.MAX_VALUE)
+        throw new IOException(className + ": word too long (" +
+                              words[i].length() + " characters)");
+      wordOffsets[i] = wordsOffset + wordBytes.size();
+      wordOut.writeShort(words[i].length());
+      wordOut.writeChars(words[i]);
+      byId[ids[i]] = i;
+    }
+    wordOut.flush();
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(outputFilename), Constants.defaultFileBufsize));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(featureList.size());
+    out.writeInt(numWords);
+    out.writeInt(numBuckets);
+    out.writeInt(seed);
+    featureBytes.writeTo(out);
+    for (int i = 0; i < numBuckets; i++)
+      out.writeInt(displacements[i]);
+    for (int id = 0; id < numWords; id++) {
+      int i = byId[id];
+      out.writeInt(wordOffsets[i]);
+      out.writeInt(counts[i]);
+      out.writeShort(wordFeatures[0][i]);
+      out.writeShort(wordFeatures[1][i]);
+    }
+    wordBytes.writeTo(out);
+    out.close();
+
+    System.err.println(className + ": " + numWords + " words, " +
+                       featureList.size() + " word-feature vectors, " +
+                       numBuckets + " buckets (seed " + seed + ")");
+  }
+
+  /**
+   * Finds a displacement for every bucket with the specified seed, so that
+   * the words are given distinct ids, placing the largest buckets first,
+   * while most ids are still free.
+   *
+   * @return whether displacements were found for every bucket
+   */
+  private static boolean findDisplacements(String[] words, int seed,
+                                           int[] displacements, int[] ids) {
+    int numWords = words.length;
+    if (numWords == 0)
+      return true;
+    int numBuckets = displacements.length;
+    long[] hashes = new long[numWords];
+    int[] bucketSizes = new int[numBuckets];
+    for (int i = 0; i < numWords; i++) {
+      hashes[i] = hash(words[i], seed);
+      bucketSizes[bucket(hashes[i], numBuckets)]++;
+    }
+    // the words of each bucket, contiguously, in bucket order
+    int[] bucketStarts = new int[numBuckets + 1];
+    for (int b = 0; b < numBuckets; b++)
+      bucketStarts[b + 1] = bucketStarts[b] + bucketSizes[b];
+    int[] bucketWords = new int[numWords];
+    int[] filled = new int[numBuckets];
+    for (int i = 0; i < numWords; i++) {
+      int b = bucket(hashes[i], numBuckets);
+      bucketWords[bucketStarts[b] + filled[b]++] = i;
+    }
+    Integer[] order = new Integer[numBuckets];
+    for (int b = 0; b < numBuckets; b++)
+      order[b] = Integer.valueOf(b);
+    final int[] sizes = bucketSizes;
+    Arrays.sort(order, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        return sizes[((Integer)o2).intValue()] -
+          sizes[((Integer)o1).intValue()];
+      }
+    });
+
+    boolean[] taken = new boolean[numWords];
+    for (int k = 0; k < numBuckets; k++) {
+      int b = order[k].intValue();
+      int start = bucketStarts[b], end = bucketStarts[b + 1];
+      if (start == end)
+        break;
+      int d = 0;
+      for (; d < maxDisplacement; d++) {
+        boolean fits = true;
+        for (int j = start; fits && j < end; j++) {
+          int slot = slot(hashes[bucketWords[j]], d, numWords);
+          if (taken[slot])
+            fits = false;
+          for (int i = start; fits && i < j; i++)
+            if (ids[bucketWords[i]] == slot)
+              fits = false;
+          ids[bucketWords[j]] = slot;
+        }
+        if (fits)
+          break;
+      }
+      if (d == maxDisplacement)
+        return false;
+      displacements[b] = d;
+      for (int j = start; j < end; j++)
+        taken[ids[bucketWords[j]]] = true;
+    }
+    return true;
+  }
+
+  private static void usage() {
+    System.err.println("usage: -is <derived data file> " +
+                       "-o <vocabulary file>");
+    System.exit(1);
+  }
+
+  /**
+   * Writes the vocabulary of the model in a derived data file, for models
+   * trained without one.
+   *
+   * @param args usage: <tt>-is &lt;derived data file&gt;
+   * -o &lt;vocabulary file&gt;</tt>
+   */
+  public static void main(String[] args) {
+    String derivedDataFilename = null, outputFilename = null;
+    for (int i = 0; i < args.length; i++) {
+      if (i + 1 == args.length)
+        usage();
+      if (args[i].equals("-is"))
+        derivedDataFilename = args[++i];
+      else if (args[i].equals("-o"))
+        outputFilename = args[++i];
+      else
+        usage();
+    }
+    if (derivedDataFilename == null || outputFilename == null)
+      usage();
+
+    try {
+      ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+        GZIPStreams.newInputStream(derivedDataFilename),
+        Constants.defaultFileBufsize));
+      ModelCollection modelCollection;
+      try {
+        modelCollection = danbikel.parser.Trainer.loadModelCollection(in);
+      }
+      finally {
+        in.close();
+      }
+      write(modelCollection.vocabCounter(), outputFilename);
+    }
+    catch (ClassNotFoundException cnfe) {
+      System.err.println(cnfe);
+      System.exit(1);
+    }
+    catch (IOException ioe) {
+      System.err.println(ioe);
+      System.exit(1);
+    }
+  }
+}
@@ -52,7 +52,12 @@ import java.text.*;
 public class WordFeatures extends danbikel.parser.lang.AbstractWordFeatures {
 
   private final static ParsePosition pos = new ParsePosition(0);
-  private final static NumberFormat nf = NumberFormat.getNumberInstance();
+
+  // holds the number format, which takes long to create, so that it is
+  // created only when the first word is looked at
+  private static class NumberFormatHolder {
+    private final static NumberFormat nf = NumberFormat.getNumberInstance();
+  }
 
   /**
    * The property obtained from the {@link Settings} class to indicate
@@ -182,7 +187,7 @@ public class WordFeatures extends danbikel.parser.lang.AbstractWordFeatures {
   private static boolean isNumber(String word) {
     pos.setIndex(0);
     pos.setErrorIndex(-1);
-    nf.parse(word, pos);
+    NumberFormatHolder.nf.parse(word, pos);
     return pos.getIndex() == word.length() && pos.getErrorIndex() == -1;
   }
 
@@ -16,11 +16,32 @@ module Porser
     @path ||= Pathname.new(File.expand_path(File.join(File.dirname(__FILE__), "..")))
   end
   
+  # The extension classes come from the jar built by the build:cds task
+  # when there is one, since class data sharing only archives classes from
+  # jars.
   def self.java_classpath
-    paths = [java_ext_build_path, path.join('vendor', 'dbparser.jar')]
+    paths = [java_ext_jar_path.check || java_ext_build_path, path.join('vendor', 'dbparser.jar')]
     paths.join(':')
   end
   
+  # The java command line, using the class data sharing archive built by the
+  # build:cds task when there is one and use_java_archive is true.  Java
+  # reads and writes UTF-8, like the rest of the pipeline, unless an
+  # experiment's settings say otherwise.
+  def self.java_command
+    cmd = "/usr/bin/env java -Dfile.encoding=UTF-8"
+    cmd << " -XX:SharedArchiveFile=\"#{java_archive_path}\"" if use_java_archive && java_archive_path.exist?
+    cmd
+  end
+  
+  def self.use_java_archive
+    @use_java_archive != false
+  end
+  
+  def self.use_java_archive=(use)
+    @use_java_archive = use
+  end
+  
   def self.java_ext_path
     path.join('ext')
   end
@@ -33,12 +54,21 @@ module Porser
     java_ext_path.join('build')
   end
   
+  def self.java_ext_jar_path
+    java_ext_path.join('porser.jar')
+  end
+  
+  def self.java_archive_path
+    java_ext_path.join('porser.jsa')
+  end
+  
   def self.boot!
     include_paths.each { |path| $:.unshift(path.to_s) }
   end
   
   def self.require_all!
     require 'porser/experiment'
+    require 'porser/filter_cache'
     require 'porser/cli/components/file_list'
     require 'porser/cli/components/file_list'
     require 'porser/cli/components/question'
@@ -50,6 +80,8 @@ module Porser
     require 'porser/performance/confusion_matrix'
     require 'porser/performance/category_confusion_matrix'
     require 'porser/performance/part_of_speech_confusion_matrix'    
+    require 'porser/performance/regression_suite'
+    require 'porser/performance/sampled_evaluation'
     Dir["#{path.join('lib', 'filters')}/*.rb"].each { |path| require(path) }
   end
 end
@@ -69,6 +69,11 @@ module Porser
         "(#{@tag} #{children_str})"
       end
       
+      def source_string
+        children_str = @children.map { |child| child.source_string }.join(" ")
+        "(#{@tag} #{children_str})"
+      end
+      
       def clean_string
         @children.map { |child| child.clean_string }.join(" ")
       end
@@ -25,6 +25,12 @@ module Porser
       def to_s
         "(#{tag} #{word})"
       end
+      
+      # Like to_s, but keeping the lemma, so that the string is parsed back
+      # into an equal part of speech.
+      def source_string
+        extra[:lema] ? "(#{tag}-#{extra[:lema]} #{word})" : to_s
+      end
     end
   end
 end
\ No newline at end of file
@@ -50,6 +50,10 @@ module Porser
         @root_node.to_s
       end
       
+      def source_string
+        @root_node.source_string
+      end
+      
       def clean_string
         @root_node.clean_string
       end
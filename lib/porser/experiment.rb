@@ -32,44 +32,378 @@ module Porser
       @filters
     end
     
-    def train!(what = :train, heap_size = 1000)
-      cmd = "rm -f \"#{observed_path}\" \"#{objects_path}\" && "
-      cmd << "/usr/bin/env java"
+    def train!(what = :train, heap_size = 1000, off_heap_size = 4000)
+      cmd = "rm -f \"#{observed_path}\" \"#{objects_path}\" \"#{vocabulary_path}\" \"#{tag_dictionary_path}\" \"#{training_profile_path_for(what)}\" && "
+      cmd << Porser.java_command
       cmd << " -Xms#{heap_size}\\m -Xmx#{heap_size}\\m"
+      cmd << " -XX:MaxDirectMemorySize=#{off_heap_size}\\m"
       cmd << " -cp \"#{Porser.java_classpath}:#{@path}\""
       cmd << " -Ddanbikel.parser.Model.printPrunedEvents=false"
       cmd << " -Dparser.settingsDir=\"#{@path}\""
       cmd << " -Dparser.settingsFile=\"#{settings_path.check!}\""
-      cmd << " danbikel.parser.Trainer"
-      cmd << " -i \"#{gold_path_for(what).check!}\" -o \"#{observed_path}\" -od \"#{objects_path}\""
-      cmd << " > \"#{log_path_for(:train, what)}\" 2>&1"
+      cmd << " -Dparser.trainer.profileFile=\"#{training_profile_path_for(what)}\""
+      cmd << " portuguese.Trainer"
+      cmd << " -i \"#{gold_path_for(what).check!}\" -o \"#{observed_path}\" -od \"#{objects_path}\" -ov \"#{vocabulary_path}\""
+      cmd << " > \"#{log_path_for(:train, what)}\" 2>&1 && "
+      cmd << Porser.java_command
+      cmd << " -cp \"#{Porser.java_classpath}:#{@path}\""
+      cmd << " -Dparser.settingsDir=\"#{@path}\""
+      cmd << " -Dparser.settingsFile=\"#{settings_path}\""
+      cmd << " portuguese.TagDictionary"
+      cmd << " -i \"#{gold_path_for(what)}\" -o \"#{tag_dictionary_path}\""
+      cmd << " >> \"#{log_path_for(:train, what)}\" 2>&1"
       `#{cmd}`
+      training_phase_report!(what)
     ensure
       `rm -rf #{Porser.path.join('*.prune-log')}`
     end
     
-    def parse!(what = :dev, heap_size = 1000)
-      cmd = "/usr/bin/env java"
+    # Trains many experiments, training the experiments whose gold trees are
+    # the same, such as those that differ only in their head rules, in one
+    # java process that reads the trees once (see portuguese.MultiTrainer).
+    # Experiments are grouped only when MultiTrainer can train them
+    # together (see multi_training_signature), and a group that it still
+    # rejects or fails to train is trained one experiment at a time.  The
+    # tag dictionary, which does not depend on the settings, is built once
+    # for each group.  The profile of a group covers all its experiments and
+    # is copied to each of them, like its log.
+    def self.train_together!(experiments, what = :train, heap_size = 1000, off_heap_size = 4000)
+      groups = experiments.group_by { |experiment| experiment.multi_training_signature(what) }
+
+      groups.each_value do |group|
+        if group.size == 1
+          group.first.train!(what, heap_size, off_heap_size)
+          next
+        end
+
+        first = group.first
+        paths = group.map { |experiment| "\"#{experiment.path}\"" }.join(" ")
+        cmd   = "rm -f " + group.map { |experiment| "\"#{experiment.observed_path}\" \"#{experiment.objects_path}\" \"#{experiment.vocabulary_path}\" \"#{experiment.tag_dictionary_path}\" \"#{experiment.training_profile_path_for(what)}\"" }.join(" ") + " && "
+        cmd << Porser.java_command
+        cmd << " -Xms#{heap_size}\\m -Xmx#{heap_size}\\m"
+        cmd << " -XX:MaxDirectMemorySize=#{off_heap_size}\\m"
+        cmd << " -cp \"#{Porser.java_classpath}:#{first.path}\""
+        cmd << " -Ddanbikel.parser.Model.printPrunedEvents=false"
+        cmd << " -Dparser.settingsDir=\"#{first.path}\""
+        cmd << " -Dparser.settingsFile=\"#{first.settings_path.check!}\""
+        cmd << " -Dparser.trainer.profileFile=\"#{first.training_profile_path_for(what)}\""
+        cmd << " portuguese.MultiTrainer"
+        cmd << " -i \"#{first.gold_path_for(what)}\" #{paths}"
+        cmd << " > \"#{first.log_path_for(:train, what)}\" 2>&1 && "
+        cmd << Porser.java_command
+        cmd << " -cp \"#{Porser.java_classpath}:#{first.path}\""
+        cmd << " -Dparser.settingsDir=\"#{first.path}\""
+        cmd << " -Dparser.settingsFile=\"#{first.settings_path}\""
+        cmd << " portuguese.TagDictionary"
+        cmd << " -i \"#{first.gold_path_for(what)}\" -o \"#{first.tag_dictionary_path}\""
+        cmd << " >> \"#{first.log_path_for(:train, what)}\" 2>&1"
+        `#{cmd}`
+
+        unless $?.success?
+          puts "Training #{paths} together failed (see #{first.log_path_for(:train, what)}); training them one at a time"
+          group.each { |experiment| experiment.train!(what, heap_size, off_heap_size) }
+          next
+        end
+
+        first.training_phase_report!(what)
+        group[1..-1].each do |experiment|
+          [first.tag_dictionary_path, first.log_path_for(:train, what), first.training_profile_path_for(what), first.training_phases_path_for(what)].each do |path|
+            FileUtils.cp(path, experiment.path.join(path.basename)) if path.exist?
+          end
+        end
+      end
+    ensure
+      `rm -rf #{Porser.path.join('*.prune-log')}`
+    end
+
+    # What portuguese.MultiTrainer requires to be the same for the
+    # experiments it trains together: the gold trees, the properties that
+    # name the classes and the encoding of the process, which properties are
+    # set, and the contents of the files named by any property but the head
+    # table.
+    def multi_training_signature(what = :train)
+      properties = settings_properties
+      language   = properties['parser.language']
+      shared     = ['parser.language', 'parser.language.package', "parser.file.encoding.#{language}"].map { |key| properties[key] }
+      files      = properties.keys.sort.reject { |key| key == "parser.headtable.#{language}" }.map do |key|
+        value = properties[key]
+        file  = @path.join(value)
+        [key, (Digest::SHA1.file(file).hexdigest if !value.empty? && Pathname.new(value).relative? && file.file?)]
+      end
+      [Digest::SHA1.file(gold_path_for(what).check!).hexdigest, shared, files]
+    end
+
+    # The properties set by the settings file.
+    def settings_properties
+      settings.lines.map { |line| line.strip }.reject { |line| line.empty? || line =~ /^[#!]/ }.inject({}) do |properties, line|
+        key, value = line.split(/\s*[=:]\s*|\s+/, 2)
+        properties.merge(key => value.to_s)
+      end
+    end
+
+    # Summarizes the phases recorded while training into a table of where
+    # the time, allocation and garbage collection of training went.
+    def training_phase_report!(what = :train)
+      return unless training_profile_path_for(what).exist?
+      cmd = "#{Porser.java_command}"
+      cmd << " -cp \"#{Porser.java_classpath}:#{@path}\""
+      cmd << " -Dparser.settingsDir=\"#{@path}\""
+      cmd << " -Dparser.settingsFile=\"#{settings_path.check!}\""
+      cmd << " portuguese.TrainingProfiler"
+      cmd << " -i \"#{training_profile_path_for(what)}\" -o \"#{training_phases_path_for(what)}\""
+      `#{cmd}`
+    end
+    
+    # Parses the input and, when the gold trees of the input are known,
+    # writes the output made scorable against them next to it (see
+    # scorable_path_for).
+    def parse!(what = :dev, heap_size = 1000, properties = {}, output = parsed_path_for(what), log = log_path_for(:parse, what), objects = objects_path, input = parseable_path_for(what), gold = (gold_path_for(what) if input == parseable_path_for(what)))
+      cmd = "#{Porser.java_command}"
       cmd << " -Xms#{heap_size}\\m -Xmx#{heap_size}\\m"
       cmd << " -cp \"#{Porser.java_classpath}:#{@path}\""
       cmd << " -Ddanbikel.parser.Model.printPrunedEvents=false"
       cmd << " -Dparser.settingsDir=\"#{@path}\""
       cmd << " -Dparser.settingsFile=\"#{settings_path.check!}\""
-      cmd << " danbikel.parser.Parser"
-      cmd << " -is \"#{objects_path}\" -sa \"#{parseable_path_for(what)}\""
+      cmd << " -Dparser.decoder.vocabulary=\"#{vocabulary_path}\"" if vocabulary_path.exist?
+      properties.each { |name, value| cmd << " -D#{name}=#{value}" }
+      cmd << " portuguese.ParseScheduler"
+      cmd << " -is \"#{objects}\" -sa \"#{input}\" -out \"#{output}\""
+      cmd << " -gold \"#{gold}\"" if gold && File.exist?(gold)
+      cmd << " > \"#{log}\" 2>&1"
+      `#{cmd}`
+    end
+    
+    # Parses on a cluster of num_workers parser processes on this host, each
+    # with its own heap of heap_size megabytes, through the switchboard.
+    # Workers that die are restarted and their sentences parsed again.
+    def cluster_parse!(what = :dev, num_workers = 2, heap_size = 1000, properties = {})
+      cmd = "#{Porser.java_command}"
+      cmd << " -Xms200\\m -Xmx200\\m"
+      cmd << " -cp \"#{Porser.java_classpath}:#{@path}\""
+      cmd << " -Ddanbikel.parser.Model.printPrunedEvents=false"
+      cmd << " -Dparser.settingsDir=\"#{@path}\""
+      cmd << " -Dparser.settingsFile=\"#{settings_path.check!}\""
+      cmd << " -Dparser.cluster.workerHeapSize=#{heap_size}"
+      properties.each { |name, value| cmd << " -D#{name}=#{value}" }
+      cmd << " portuguese.LocalCluster"
+      cmd << " -is \"#{objects_path.check!}\" -sa \"#{parseable_path_for(what)}\" -out \"#{parsed_path_for(what)}\" -nw #{num_workers}"
       cmd << " > \"#{log_path_for(:parse, what)}\" 2>&1"
       `#{cmd}`
     end
     
-    def create_scorable_file(what = :dev)
-      `/usr/bin/env java -Xms200m -Xmx200m -cp \"#{Porser.java_classpath}:#{@path}\" danbikel.parser.util.AddFakePos \"#{gold_path_for(what)}\" \"#{parsed_path_for(what)}\" 2> \"#{log_path_for(:score, what)}\" | iconv -f ISO-8859-1 -t UTF-8 > \"#{scorable_file_for(what)}\"`
+    # Parses with the fixed beam and then in anytime mode under each latency
+    # target (in milliseconds per sentence), writing the elapsed time and the
+    # F-measure of every run to a CSV file.
+    def anytime_curve!(what = :dev, latency_targets = [50, 100, 200, 500, 1000, 2000], heap_size = 1000)
+      File.open(anytime_curve_path_for(what), "w") do |fp|
+        fp.write("mode,latency_target_ms,elapsed_s,fmeasure\n")
+        
+        run = measured_parse!(what, "fixed", {}, heap_size)
+        fp.write("fixed,,#{'%.1f' % run[:elapsed]},#{'%.2f' % run[:fmeasure]}\n")
+        fp.flush
+        
+        latency_targets.each do |target|
+          run = measured_parse!(what, "anytime-#{target}", { 'parser.decoder.anytime' => true, 'parser.decoder.latencyTarget' => target }, heap_size)
+          fp.write("anytime,#{target},#{'%.1f' % run[:elapsed]},#{'%.2f' % run[:fmeasure]}\n")
+          fp.flush
+        end
+      end
+    end
+    
+    # Parses without the tag dictionary and then with it under each
+    # threshold, writing the number of chart items, the elapsed time and the
+    # F-measure of every run to a CSV file.
+    def tag_dictionary_report!(what = :dev, thresholds = [0.0, 0.01, 0.05, 0.1], heap_size = 1000)
+      File.open(tag_dictionary_report_path_for(what), "w") do |fp|
+        fp.write("threshold,chart_items,elapsed_s,fmeasure\n")
+        
+        run = measured_parse!(what, "no-tag-dictionary", {}, heap_size)
+        fp.write(",#{run[:chart_items]},#{'%.1f' % run[:elapsed]},#{'%.2f' % run[:fmeasure]}\n")
+        fp.flush
+        
+        thresholds.each do |threshold|
+          run = measured_parse!(what, "tag-dictionary-#{threshold}", { 'parser.decoder.tagDictionary' => "\"#{tag_dictionary_path.check!}\"", 'parser.decoder.tagDictionaryThreshold' => threshold }, heap_size)
+          fp.write("#{threshold},#{run[:chart_items]},#{'%.1f' % run[:elapsed]},#{'%.2f' % run[:fmeasure]}\n")
+          fp.flush
+        end
+      end
+    end
+    
+    # Compacts the model with portuguese.ModelCompactor under each setting
+    # (a hash of its command-line options, such as
+    # { 'minProb' => 0.001, 'bits' => 8 }) and parses with the original model
+    # and every compacted one, writing the file size, the load time, the
+    # parse time and the F-measure of every run to a CSV file.
+    def compaction_report!(what = :dev, settings = [{ 'bits' => 16 }, { 'bits' => 8 }, { 'minProb' => 0.001, 'bits' => 8 }, { 'minProb' => 0.01, 'bits' => 8 }], heap_size = 1000)
+      File.open(compaction_report_path_for(what), "w") do |fp|
+        fp.write("settings,size_bytes,load_s,parse_s,fmeasure\n")
+        
+        run = measured_parse!(what, "uncompacted", {}, heap_size)
+        fp.write(",#{File.size(objects_path.check!)},#{'%.1f' % run[:load]},#{'%.1f' % run[:elapsed]},#{'%.2f' % run[:fmeasure]}\n")
+        fp.flush
+        
+        settings.each do |options|
+          name    = options.map { |option, value| "#{option}=#{value}" }.join(" ")
+          suffix  = options.map { |option, value| "#{option}-#{value}" }.join("-")
+          objects = compacted_objects_path_for(suffix)
+          compact!(objects, options, log_path_for("compact-#{suffix}", :train))
+          run = measured_parse!(what, "compacted-#{suffix}", {}, heap_size, objects)
+          fp.write("#{name},#{File.size(objects)},#{'%.1f' % run[:load]},#{'%.1f' % run[:elapsed]},#{'%.2f' % run[:fmeasure]}\n")
+          fp.flush
+        end
+      end
+    end
+    
+    # Derives required spans with the specified labels from the gold trees
+    # with portuguese.SpanConstraints and parses with and without them,
+    # writing the chart items, the parse time and the F-measure of both runs
+    # to a CSV file.
+    def constraint_report!(what = :dev, labels = ['NP'], heap_size = 1000)
+      constrained = constrained_path_for(what)
+      cmd = "#{Porser.java_command}"
+      cmd << " -Xms#{heap_size}\\m -Xmx#{heap_size}\\m"
+      cmd << " -cp \"#{Porser.java_classpath}:#{@path}\""
+      cmd << " -Dparser.settingsDir=\"#{@path}\""
+      cmd << " -Dparser.settingsFile=\"#{settings_path.check!}\""
+      cmd << " portuguese.SpanConstraints"
+      cmd << " -i \"#{gold_path_for(what)}\" -o \"#{constrained}\""
+      cmd << " -labels #{labels.join(',')}" unless labels.empty?
+      cmd << " > \"#{log_path_for(:constrain, what)}\" 2>&1"
+      `#{cmd}`
+      
+      File.open(constraint_report_path_for(what), "w") do |fp|
+        fp.write("constraints,chart_items,parse_s,fmeasure\n")
+        [["none", "unconstrained", parseable_path_for(what)], [labels.join(" "), "constrained", constrained]].each do |name, suffix, input|
+          run = measured_parse!(what, suffix, {}, heap_size, objects_path, input)
+          fp.write("#{name},#{run[:chart_items]},#{'%.1f' % run[:elapsed]},#{'%.2f' % run[:fmeasure]}\n")
+          fp.flush
+        end
+      end
+    end
+    
+    # Parses and scores growing stratified samples of the corpus while the
+    # experiment could still beat the best F-measure so far (see
+    # Performance::SampledEvaluation), returning the evaluation.
+    def sampled_evaluation!(what = :dev, best = nil, options = {})
+      evaluation = Performance::SampledEvaluation.new(self, what, options)
+      evaluation.run!(best)
+      evaluation
+    end
+    
+    # Parses the first sentences of the corpus and writes every class loaded
+    # on the way to a class data sharing archive, which later java commands
+    # use when it exists (see Porser.java_command).  The experiment directory
+    # is left out of the class path, since a directory with files in it can't
+    # be archived.
+    def archive_classes!(archive, what = :dev, num_sentences = 10, heap_size = 1000)
+      input = "#{parseable_path_for(what)}.archive"
+      `head -n #{num_sentences} "#{parseable_path_for(what).check!}" > "#{input}"`
+      cmd = "/usr/bin/env java"
+      cmd << " -XX:ArchiveClassesAtExit=\"#{archive}\""
+      cmd << " -Xms#{heap_size}\\m -Xmx#{heap_size}\\m"
+      cmd << " -cp \"#{Porser.java_classpath}\""
+      cmd << " -Ddanbikel.parser.Model.printPrunedEvents=false"
+      cmd << " -Dparser.settingsDir=\"#{@path}\""
+      cmd << " -Dparser.settingsFile=\"#{settings_path.check!}\""
+      cmd << " portuguese.ParseScheduler"
+      cmd << " -is \"#{objects_path.check!}\" -sa \"#{input}\" -out \"#{input}.parsed\""
+      cmd << " > \"#{log_path_for(:archive, what)}\" 2>&1"
+      `#{cmd}`
+    ensure
+      `rm -f "#{input}" "#{input}.parsed" "#{input}.parsed.flags"`
+    end
+    
+    # Parses the first sentence of the corpus several times with and without
+    # the class data sharing archive (when there is one), writing the time
+    # from the start of the JVM to the first parsed sentence and the total
+    # time of every run to a CSV file.
+    def startup_report!(what = :dev, runs = 5, heap_size = 1000)
+      input = "#{parseable_path_for(what)}.startup"
+      `head -n 1 "#{parseable_path_for(what).check!}" > "#{input}"`
+      modes = Porser.java_archive_path.exist? ? [false, true] : [false]
+      File.open(startup_report_path_for(what), "w") do |fp|
+        fp.write("archive,run,first_parse_s,total_s\n")
+        modes.each do |use_archive|
+          Porser.use_java_archive = use_archive
+          runs.times do |run|
+            log     = log_path_for(:startup, what)
+            started = Time.now
+            parse!(what, heap_size, {}, "#{input}.parsed", log, objects_path, input)
+            elapsed = Time.now - started
+            first_parse = File.read(log)[/time to first parse since JVM start: (\d+) ms/, 1].to_f / 1000
+            fp.write("#{use_archive},#{run + 1},#{'%.2f' % first_parse},#{'%.2f' % elapsed}\n")
+            fp.flush
+          end
+        end
+      end
+    ensure
+      Porser.use_java_archive = true
+      `rm -f "#{input}" "#{input}.parsed" "#{input}.parsed.flags"`
     end
     
-    def score!(what = :dev)
-      cmd = " ./vendor/scorer/evalb -p vendor/scorer/BIKEL.prm \"#{gold_path_for(what)}\" \"#{parsed_path_for(what)}\" > \"#{score_path_for(what)}\" 2>&1"
+    def compact!(output, options = {}, log = log_path_for(:compact, :train), heap_size = 1000)
+      cmd = "#{Porser.java_command}"
+      cmd << " -Xms#{heap_size}\\m -Xmx#{heap_size}\\m"
+      cmd << " -cp \"#{Porser.java_classpath}:#{@path}\""
+      cmd << " -Ddanbikel.parser.Model.printPrunedEvents=false"
+      cmd << " -Dparser.settingsDir=\"#{@path}\""
+      cmd << " -Dparser.settingsFile=\"#{settings_path.check!}\""
+      cmd << " portuguese.ModelCompactor"
+      cmd << " -i \"#{objects_path.check!}\" -o \"#{output}\""
+      options.each { |option, value| cmd << " -#{option} #{value}" }
+      cmd << " > \"#{log}\" 2>&1"
+      `#{cmd}`
+    end
+    
+    # Parses and scores with the specified extra properties, keeping the
+    # output, log and score of the run apart from the regular ones, and
+    # returns the elapsed time, the time taken to load the model (in
+    # seconds), the total number of chart items and the F-measure.
+    def measured_parse!(what, suffix, properties, heap_size = 1000, objects = objects_path, input = parseable_path_for(what))
+      output  = "#{parsed_path_for(what)}.#{suffix}"
+      log     = log_path_for("parse-#{suffix}", what)
+      started = Time.now
+      parse!(what, heap_size, properties, output, log, objects, input)
+      elapsed = Time.now - started
+      
+      score_path = "#{score_path_for(what)}.#{suffix}"
+      score!(what, output, score_path)
+      log_text = File.read(log)
+      { :elapsed => elapsed, :load => self.class.seconds(log_text[/Finished loading derived counts in ([\d:.]+)/, 1]), :chart_items => log_text[/total chart items: (\d+)/, 1].to_i, :fmeasure => fmeasure(File.read(score_path)) }
+    end
+    
+    # Converts a time printed by danbikel.util.Time, such as "01:02.345", to
+    # seconds.
+    def self.seconds(time_text)
+      (time_text || "0").split(":").inject(0.0) { |total, part| total * 60 + part.to_f }
+    end
+    
+    # The parse run writes the scorable file itself (see parse!), so this
+    # only starts a JVM for output parsed some other way, or older than its
+    # scorable file.
+    def create_scorable_file(what = :dev, parsed_path = parsed_path_for(what), gold_path = gold_path_for(what))
+      scorable = Pathname.new(scorable_path_for(parsed_path))
+      return if scorable.exist? && scorable.mtime >= File.mtime(parsed_path)
+      `#{Porser.java_command} -Xms200m -Xmx200m -cp \"#{Porser.java_classpath}:#{@path}\" -Dparser.settingsDir=\"#{@path}\" -Dparser.settingsFile=\"#{settings_path.check!}\" portuguese.FakePos \"#{gold_path}\" \"#{parsed_path}\" \"#{scorable}\" 2> \"#{log_path_for(:score, what)}\"`
+    end
+    
+    # Scores the parser output made scorable against the gold trees, in
+    # which the sentences not parsed have the gold words.
+    def score!(what = :dev, parsed_path = parsed_path_for(what), score_path = score_path_for(what), gold_path = gold_path_for(what))
+      create_scorable_file(what, parsed_path, gold_path)
+      cmd = " ./vendor/scorer/evalb -p vendor/scorer/BIKEL.prm \"#{gold_path}\" \"#{scorable_path_for(parsed_path)}\" > \"#{score_path}\" 2>&1"
       `#{cmd}`
     end
     
+    # Returns the bracketing F-measure from the "All" section of an evalb
+    # report.
+    def fmeasure(score_text)
+      all       = score_text[/-- All --.*\z/m] || score_text
+      recall    = all[/Bracketing Recall\s*=\s*([\d.]+)/, 1].to_f
+      precision = all[/Bracketing Precision\s*=\s*([\d.]+)/, 1].to_f
+      recall + precision > 0 ? 2 * recall * precision / (recall + precision) : 0.0
+    end
+    
     def score_confusion!(what = :dev)
       File.open(gold_path_for(what), "r") do |gold_fp|
         File.open(parsed_path_for(what), "r") do |parsed_fp|
@@ -97,33 +431,40 @@ module Porser
       File.open(documentation_path_for(what), "w") { |fp| fp.write(template.result(binding)) } 
     end
     
-    def generate_corpus!
-      Dir["#{Porser.path.join('corpus', 'selection')}/corpus.*"].each do |path|
-        File.open(path, "r") do |infp|
-          File.open(@path.join(File.basename(path).gsub(/^corpus\.(.*?)\.txt$/, 'corpus.\1.parseable.txt')), "w") do |parseable_outfp|
-            File.open(@path.join(File.basename(path).gsub(/^corpus\.(.*?)\.txt$/, 'corpus.\1.gold.txt')), "w") do |gold_outfp|
+    # Filters every sentence of the selection into the gold and parseable
+    # files of the experiment, taking from the filter cache the output of
+    # the longest prefix of the filters already computed for the sentence.
+    # The selection is corpus/selection unless another directory of corpus
+    # files is given, such as the frozen slice of the regression suite.
+    def generate_corpus!(cache = FilterCache.new, selection = Porser.path.join('corpus', 'selection'))
+      Dir["#{selection}/corpus.*"].each do |path|
+        check_utf8!(path)
+        File.open(path, "r:UTF-8") do |infp|
+          File.open(@path.join(File.basename(path).gsub(/^corpus\.(.*?)\.txt$/, 'corpus.\1.parseable.txt')), "w:UTF-8") do |parseable_outfp|
+            File.open(@path.join(File.basename(path).gsub(/^corpus\.(.*?)\.txt$/, 'corpus.\1.gold.txt')), "w:UTF-8") do |gold_outfp|
               corpus = $1.to_sym
               
               while line = infp.gets
-                sentence = Corpus::Sentence(line)
-                
-                filters.each do |filter|
-                  method = filter.method(:run)
-                  
-                  if method.arity == 2
-                    sentence = method.call(sentence, corpus)
-                  else
-                    sentence = method.call(sentence)
-                  end
-                end
+                sentence = cache.run(filters, line, corpus).plain
                 
                 gold_outfp.write("#{sentence}\n")
-                parseable_outfp.write(sentence.to_s.gsub(/\([^\s]+|\)/, "").gsub(/^\s*(.*)\s*$/, "(\\1)\n").squeeze(" "))
+                parseable_outfp.write(sentence.gsub(/\([^\s]+|\)/, "").gsub(/^\s*(.*)\s*$/, "(\\1)\n").squeeze(" "))
               end
             end
           end
         end
       end
+      puts "Filter cache: #{cache.report}"
+    ensure
+      cache.close
+    end
+    
+    # Fails on a corpus file that is not valid UTF-8, such as one still in
+    # the ISO-8859-1 of the original Bosque treebank, naming the tool that
+    # transcodes it; the selection itself is never rewritten.
+    def check_utf8!(path)
+      text = File.open(path, "rb") { |fp| fp.read }.force_encoding("UTF-8")
+      raise "#{path} is not UTF-8; transcode it with portuguese.TextFiles -i <file> -o <UTF-8 file>" unless text.valid_encoding?
     end
     
     def head_find_rules
@@ -150,6 +491,10 @@ module Porser
       @path.join("corpus.#{what}.parseable.txt")
     end
     
+    def constrained_path_for(what)
+      @path.join("corpus.#{what}.constrained.txt")
+    end
+    
     def gold_path_for(what)
       @path.join("corpus.#{what}.gold.txt")
     end
@@ -163,7 +508,12 @@ module Porser
     end
     
     def scorable_file_for(what)
-      "#{parseable_path_for(what)}.scorable"
+      scorable_path_for(parsed_path_for(what))
+    end
+    
+    # The name ParseScheduler -gold gives the scorable copy of its output.
+    def scorable_path_for(parsed_path)
+      "#{parsed_path}.scorable"
     end
     
     def head_rules_path
@@ -174,6 +524,42 @@ module Porser
       @path.join("score.#{what}.txt")
     end
     
+    def anytime_curve_path_for(what)
+      @path.join("anytime.#{what}.csv")
+    end
+    
+    def tag_dictionary_report_path_for(what)
+      @path.join("tag_dictionary.#{what}.csv")
+    end
+    
+    def compaction_report_path_for(what)
+      @path.join("compaction.#{what}.csv")
+    end
+    
+    def constraint_report_path_for(what)
+      @path.join("constraints.#{what}.csv")
+    end
+    
+    def sampled_report_path_for(what)
+      @path.join("sampled.#{what}.csv")
+    end
+    
+    def startup_report_path_for(what)
+      @path.join("startup.#{what}.csv")
+    end
+    
+    def training_profile_path_for(what)
+      @path.join("profile.train.#{what}.jfr")
+    end
+    
+    def training_phases_path_for(what)
+      @path.join("phases.train.#{what}.txt")
+    end
+    
+    def compacted_objects_path_for(suffix)
+      @path.join("objects.#{suffix}.gz")
+    end
+    
     def pos_score_confusion_path_for(what)
       @path.join("score_confusion.#{what}.pos.csv")
     end
@@ -190,6 +576,14 @@ module Porser
       @path.join("observed.gz")
     end
     
+    def vocabulary_path
+      @path.join("vocabulary.bin")
+    end
+    
+    def tag_dictionary_path
+      @path.join("tags.dict")
+    end
+    
     def settings_path
       @path.join('settings.properties')
     end
@@ -0,0 +1,207 @@
+require 'digest/sha1'
+require 'fileutils'
+
+module Porser
+  # A persistent cache of the trees produced by chains of corpus filters, so
+  # that experiments sharing a prefix of their filters compute only the
+  # filters that follow it.
+  #
+  # A cached tree is keyed by the hash of the selection line it comes from and
+  # by the filter chain that produced it, each filter being identified by its
+  # name and its version, a hash of its source file, of the sources of the
+  # corpus model that reads the selection lines and writes the trees, and of the
+  # files the filter says it depends on (see FilterCache.version_of), so that
+  # editing any of them invalidates what the filter produced.  The trees of a
+  # chain are stored in a file of their own, one line per sentence holding the
+  # sentence key, the tree with its lemmas (see Corpus::Sentence#source_string),
+  # the tree as written to the gold file and a checksum of both; lines whose
+  # checksum does not match, such as the last line of an interrupted run, are
+  # ignored.  Trees that the sentence parser could not read back are not
+  # cached.  When the files add up to more than max_size bytes, the least
+  # recently used ones are removed.
+  class FilterCache
+    FormatVersion  = 1
+    DefaultMaxSize = 512 * 1024 * 1024
+
+    Entry = Struct.new(:source, :plain)
+
+    attr_reader :path, :max_size
+
+    def initialize(path = Porser.path.join('corpus', 'cache'), max_size = DefaultMaxSize)
+      @path     = Pathname.new(path.to_s)
+      @max_size = max_size
+      @stores   = {}
+      @files    = {}
+      @hits     = Hash.new { |h,k| h[k] = 0 }
+      @corrupt  = 0
+      FileUtils.mkdir_p(@path)
+    end
+
+    # Returns the Entry of a selection line filtered by a chain of filters,
+    # running only the filters after the longest prefix of the chain whose
+    # output is cached, and caching the output of each of those filters.
+    def run(filters, line, corpus)
+      return Entry.new(nil, Corpus::Sentence(line).to_s) if filters.empty?
+
+      key   = Digest::SHA1.hexdigest(line.chomp)
+      entry = nil
+      done  = filters.size
+
+      while done > 0 && !(entry = store(filters[0, done], corpus)[key])
+        done -= 1
+      end
+
+      @hits[done] += 1
+      return entry if done == filters.size
+
+      sentence = Corpus::Sentence(entry ? entry.source : line)
+
+      filters[done..-1].each_with_index do |filter, i|
+        method = filter.method(:run)
+
+        if method.arity == 2
+          sentence = method.call(sentence, corpus)
+        else
+          sentence = method.call(sentence)
+        end
+
+        entry = store!(filters[0, done + i + 1], corpus, key, sentence)
+      end
+
+      entry
+    end
+
+    # Writes out what was cached and removes the least recently used files
+    # while the cache is larger than max_size.
+    def close
+      @files.each_value { |fp| fp.close }
+      @files.clear
+      @stores.clear
+
+      files = Dir[@path.join("*.cache").to_s].sort_by { |f| File.mtime(f) }
+      total = files.inject(0) { |sum, f| sum + File.size(f) }
+
+      while total > @max_size && !files.empty?
+        file   = files.shift
+        total -= File.size(file)
+        File.delete(file)
+      end
+    end
+
+    # A line telling how many sentences came from how many cached filters.
+    def report
+      counts = @hits.keys.sort.reverse.map { |done| "#{@hits[done]} with #{done} cached filters" }
+      "#{counts.join(', ')}; #{@corrupt} corrupt cache lines ignored"
+    end
+
+    # The sources of the corpus model, relative to this file.
+    ModelSources = %w(sentence category part_of_speech sentence_parser sentence_tokenizer).map { |name| "corpus/#{name}.rb" }
+
+    # The version of a filter, a hash of the source file of its run method,
+    # of ModelSources, and of the files returned by its dependencies method,
+    # if it has one, such as the data files of an external tagger.
+    def self.version_of(filter)
+      @versions ||= {}
+      @versions[filter.class] ||= begin
+        paths   = [filter.method(:run).source_location.first]
+        paths  += filter.dependencies.map { |path| path.to_s } if filter.respond_to?(:dependencies)
+        digests = paths.map { |path| File.exist?(path) ? Digest::SHA1.file(path).hexdigest : "missing #{path}" }
+        Digest::SHA1.hexdigest(([model_version] + digests).join(" "))[0, 12]
+      end
+    end
+
+    def self.model_version
+      @model_version ||= Digest::SHA1.hexdigest(ModelSources.map { |source| File.read(File.join(File.dirname(__FILE__), source)) }.join)
+    end
+
+    def self.chain_description(filters, corpus)
+      description = filters.map { |filter| "#{filter.class.name.split('::').last.underscore}@#{version_of(filter)}" }.join("-")
+      # a filter that is given the corpus may filter each corpus differently
+      description << ":#{corpus}" if filters.any? { |filter| filter.method(:run).arity == 2 }
+      description
+    end
+
+  protected
+    def store(filters, corpus)
+      description = FilterCache.chain_description(filters, corpus)
+      @stores[description] ||= load(description)
+    end
+
+    def store_path_for(description)
+      @path.join("#{Digest::SHA1.hexdigest(description)}.cache")
+    end
+
+    def header_for(description)
+      "# porser filter cache #{FormatVersion} #{description}\n"
+    end
+
+    def checksum_for(entry)
+      Digest::SHA1.hexdigest("#{entry.source}\t#{entry.plain}")
+    end
+
+    def load(description)
+      entries = {}
+      path    = store_path_for(description)
+      return entries unless path.exist?
+
+      File.open(path, "r:UTF-8") do |fp|
+        if fp.gets == header_for(description)
+          while line = fp.gets
+            key, source, plain, checksum = line.chomp.split("\t")
+            entry = Entry.new(source, plain)
+
+            if checksum && checksum == checksum_for(entry)
+              entries[key] = entry
+            else
+              @corrupt += 1
+            end
+          end
+        else
+          entries = nil
+        end
+      end
+
+      if entries
+        FileUtils.touch(path)
+        entries
+      else
+        # a file of another format is started over
+        File.delete(path)
+        {}
+      end
+    end
+
+    def store!(filters, corpus, key, sentence)
+      description = FilterCache.chain_description(filters, corpus)
+      entries     = store(filters, corpus)
+      entry       = Entry.new(sentence.source_string, sentence.to_s)
+
+      if cacheable?(sentence) && !entries.has_key?(key)
+        entries[key] = entry
+        file_for(description).write("#{key}\t#{entry.source}\t#{entry.plain}\t#{checksum_for(entry)}\n")
+      end
+
+      entry
+    end
+
+    # Whether the sentence is read back as it is, which it is not if a
+    # filter wrote a word or a lemma the sentence parser cannot read.
+    def cacheable?(sentence)
+      sentence.each do |node, range|
+        if node.is_a?(Corpus::PartOfSpeech)
+          return false if "#{node.word}#{node.extra[:lema]}" =~ /[\s()-]/ || node.word.to_s.empty?
+        end
+      end
+      true
+    end
+
+    def file_for(description)
+      @files[description] ||= begin
+        path = store_path_for(description)
+        fp   = File.open(path, "a:UTF-8")
+        fp.write(header_for(description)) if File.size(path) == 0
+        fp
+      end
+    end
+  end
+end
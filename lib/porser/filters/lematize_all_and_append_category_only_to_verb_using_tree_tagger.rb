@@ -2,10 +2,13 @@ module Porser
   module Filters
     class LematizeAllAndAppendCategoryOnlyToVerbUsingTreeTagger
       def run(sentence)
-        path   = Porser.path.join('vendor', 'tree-tagger')
-        bin    = path.join('bin', 'tree-tagger')
-        args   = "-lemma #{path.join('lib', 'pt.par')}"
-        output = `echo "#{sentence.word_line_string.gsub('"', '\"')}" | iconv -f UTF8 -t ISO-8859-1 | #{bin} #{args} 2> /dev/null | iconv -f ISO-8859-1 -t UTF8`.split(/\n/)
+        args   = "-lemma #{parameter_path}"
+        # the Portuguese parameter file of TreeTagger is in ISO-8859-1
+        output = IO.popen("#{bin_path} #{args} 2> /dev/null", "r+:ISO-8859-1:UTF-8") do |tagger|
+          tagger.write(sentence.word_line_string.encode("ISO-8859-1", :undef => :replace) + "\n")
+          tagger.close_write
+          tagger.read
+        end.split(/\n/)
         
         index = 0
         sentence.each do |node, range|
@@ -23,6 +26,21 @@ module Porser
         
         sentence
       end
+      
+      # The files whose changes change the output of this filter, besides its
+      # source (see FilterCache.version_of).
+      def dependencies
+        [bin_path, parameter_path]
+      end
+      
+    protected
+      def bin_path
+        Porser.path.join('vendor', 'tree-tagger', 'bin', 'tree-tagger')
+      end
+      
+      def parameter_path
+        Porser.path.join('vendor', 'tree-tagger', 'lib', 'pt.par')
+      end
     end
   end
 end
\ No newline at end of file
@@ -0,0 +1,207 @@
+require 'digest/sha1'
+require 'fileutils'
+require 'yaml'
+
+module Porser
+  module Performance
+    # Runs the whole pipeline (corpus generation, training, parsing and
+    # scoring) on a frozen slice of corpus/selection with frozen settings,
+    # and compares the time, memory, garbage collection and accuracy of the
+    # run with a stored baseline, so that a change to the java extension can
+    # be checked for regressions on one machine before it is adopted.
+    #
+    # Everything lives under corpus/benchmark: the slice and the settings
+    # taken by freeze! (frozen/), the experiment rebuilt by every run
+    # (run-unchanged/, whose name tells Experiment to apply no filters), the
+    # baseline (baseline.yml) and the tolerances (tolerances.yml), which map
+    # each metric to the fraction by which it may get worse than the baseline
+    # before the run counts as a regression.  Parsing uses one thread, so
+    # that throughput does not depend on the load of the other cores.
+    class RegressionSuite
+      # Each metric, with whether higher values are better.
+      Metrics = [
+        ['generate_s',                false],
+        ['train_s',                   false],
+        ['parse_s',                   false],
+        ['score_s',                   false],
+        ['parse_sentences_per_s',     true],
+        ['train_peak_heap_bytes',     false],
+        ['train_peak_rss_kb',         false],
+        ['train_gc_ms',               false],
+        ['parse_peak_heap_bytes',     false],
+        ['parse_peak_rss_kb',         false],
+        ['parse_gc_ms',               false],
+        ['fmeasure',                  true]
+      ]
+
+      DefaultTolerances = {
+        'generate_s' => 0.15, 'train_s' => 0.15, 'parse_s' => 0.15, 'score_s' => 0.5,
+        'parse_sentences_per_s' => 0.15,
+        'train_peak_heap_bytes' => 0.1, 'train_peak_rss_kb' => 0.1, 'train_gc_ms' => 0.5,
+        'parse_peak_heap_bytes' => 0.1, 'parse_peak_rss_kb' => 0.1, 'parse_gc_ms' => 0.5,
+        'fmeasure' => 0.0
+      }
+
+      attr_reader :path
+
+      def initialize(path = Porser.path.join('corpus', 'benchmark'))
+        @path = Pathname.new(path.to_s)
+      end
+
+      # Takes the first sentences of the training and development files of
+      # corpus/selection and the sample settings as the frozen input of every
+      # later run, and writes the default tolerances.  A slice already frozen
+      # is never replaced, since a baseline is only comparable with the slice
+      # it was recorded on.
+      def freeze!(train_sentences = 800, dev_sentences = 100)
+        raise "#{frozen_path} already exists; remove it to freeze another slice" if frozen_path.exist?
+        FileUtils.mkdir_p(selection_path)
+        { 'train' => train_sentences, 'dev' => dev_sentences }.each do |what, count|
+          source = Porser.path.join('corpus', 'selection', "corpus.#{what}.txt").check!
+          File.open(selection_path.join("corpus.#{what}.txt"), "w") do |fp|
+            File.open(source, "r") { |infp| count.times { line = infp.gets or break; fp.write(line) } }
+          end
+        end
+        FileUtils.cp(Dir[Porser.path.join('samples', '*').to_s], frozen_path)
+        File.open(tolerances_path, "w") { |fp| fp.write(DefaultTolerances.to_yaml) } unless tolerances_path.exist?
+      end
+
+      # Runs the pipeline on the frozen slice from scratch and returns its
+      # metrics.
+      def run!(heap_size = 1000)
+        FileUtils.rm_rf(experiment.path)
+        FileUtils.mkdir_p(experiment.path)
+        FileUtils.cp(Dir[frozen_path.join('*').to_s].reject { |f| File.directory?(f) }, experiment.path)
+        metrics = {}
+
+        metrics['generate_s'] = timed { experiment.generate_corpus!(FilterCache.new, selection_path.check!) }
+        metrics['train_s']    = timed { experiment.train!(:train, heap_size) }
+        read_process_stats(metrics, 'train', experiment.log_path_for(:train, :train))
+
+        metrics['parse_s'] = timed { experiment.parse!(:dev, heap_size, { 'parser.scheduler.numThreads' => 1 }) }
+        read_process_stats(metrics, 'parse', experiment.log_path_for(:parse, :dev))
+        sentences = File.readlines(experiment.parseable_path_for(:dev)).size
+        metrics['parse_sentences_per_s'] = self.class.parse_rate(File.read(experiment.log_path_for(:parse, :dev)), sentences)
+
+        metrics['score_s']  = timed { experiment.score!(:dev) }
+        metrics['fmeasure'] = experiment.fmeasure(experiment.score_path_for(:dev).read)
+        metrics
+      end
+
+      # Writes the specified metrics as the baseline, with the slice they
+      # were measured on and the revision of the tree.
+      def record!(metrics)
+        baseline = {
+          'recorded_at' => Time.now.utc.strftime(TimeFormat),
+          'revision'    => `git -C "#{Porser.path}" rev-parse HEAD 2>/dev/null`.chomp,
+          'slice'       => slice_digest,
+          'metrics'     => metrics
+        }
+        File.open(baseline_path, "w") { |fp| fp.write(baseline.to_yaml) }
+      end
+
+      def baseline
+        YAML.load_file(baseline_path.check!)
+      end
+
+      def tolerances
+        tolerances_path.exist? ? DefaultTolerances.merge(YAML.load_file(tolerances_path)) : DefaultTolerances
+      end
+
+      # Raises unless the baseline was recorded on the current slice.
+      def check_slice!
+        raise "the baseline was recorded on another slice; record a new one" unless baseline['slice'] == slice_digest
+      end
+
+      # Returns the metrics of a run that are worse than those of the baseline
+      # by more than their tolerance, as lists of the metric, the baseline
+      # value, the value of the run and the relative change.  Metrics missing
+      # from either side, such as the resident set size where the system does
+      # not report it, are skipped.
+      def self.regressions(baseline, metrics, tolerances)
+        Metrics.map do |name, higher_is_better|
+          before, after = baseline[name], metrics[name]
+          next if before.nil? || after.nil? || before < 0 || after < 0
+          change = before == 0 ? (after == 0 ? 0.0 : 1.0) : (after - before).to_f / before
+          worse  = higher_is_better ? -change : change
+          [name, before, after, change] if worse > tolerances[name].to_f
+        end.compact
+      end
+
+      # The sentences parsed per second over the parsing itself, as timed by
+      # the "total elapsed time" that portuguese.ParseScheduler prints, which
+      # leaves out the start-up of the JVM and the loading of the model that
+      # parse_s includes.
+      def self.parse_rate(log_text, sentences)
+        elapsed = Experiment.seconds(log_text[/total elapsed time: ([\d:.]+)/, 1])
+        elapsed > 0 ? sentences / elapsed : 0.0
+      end
+
+      # A table of the baseline and run values of every metric.
+      def self.report(baseline, metrics, regressions)
+        failed = regressions.map { |name, *rest| name }
+        lines  = ["%-24s %16s %16s %9s" % ['metric', 'baseline', 'run', 'change']]
+        Metrics.each do |name, higher_is_better|
+          before, after = baseline[name], metrics[name]
+          change = before.nil? || after.nil? || before == 0 ? "" : "%+.1f%%" % (100.0 * (after - before) / before)
+          lines << "%-24s %16s %16s %9s%s" % [name, format_value(before), format_value(after), change, failed.include?(name) ? "  REGRESSION" : ""]
+        end
+        lines.join("\n")
+      end
+
+      def self.format_value(value)
+        value.is_a?(Float) ? "%.3f" % value : value.to_s
+      end
+
+      def experiment
+        @experiment ||= Experiment.new(@path.join('run-unchanged'))
+      end
+
+      def frozen_path
+        @path.join('frozen')
+      end
+
+      def selection_path
+        frozen_path.join('selection')
+      end
+
+      def baseline_path
+        @path.join('baseline.yml')
+      end
+
+      def tolerances_path
+        @path.join('tolerances.yml')
+      end
+
+      private
+
+      def timed
+        started = Time.now
+        yield
+        Time.now - started
+      end
+
+      # Reads the measures printed by portuguese.ProcessStats at the end of a
+      # java run.
+      def read_process_stats(metrics, stage, log)
+        text = File.read(log)
+        { 'peak_heap_bytes' => /process peak heap used: (-?\d+) bytes/,
+          'peak_rss_kb'     => /process peak resident set size: (-?\d+) kB/,
+          'gc_ms'           => /process garbage collections: \d+ \((\d+) ms\)/ }.each do |name, pattern|
+          value = text[pattern, 1]
+          metrics["#{stage}_#{name}"] = value && value.to_i
+        end
+      end
+
+      # The hash of the files of the frozen slice and settings.
+      def slice_digest
+        digest = Digest::SHA1.new
+        Dir[frozen_path.join('**', '*').to_s].sort.each do |file|
+          next if File.directory?(file)
+          digest << file.sub(frozen_path.to_s, '') << File.read(file)
+        end
+        digest.hexdigest
+      end
+    end
+  end
+end
@@ -0,0 +1,155 @@
+require 'fileutils'
+
+module Porser
+  module Performance
+    # Evaluates an experiment on a growing sample of a corpus, so that a
+    # sweep over filters and settings can drop a candidate as soon as it is
+    # clearly worse than the best one so far instead of parsing the whole
+    # corpus with it.
+    #
+    # The sentences are put in an order stratified by length (they are split
+    # into strata of similar lengths, shuffled within each stratum and taken
+    # from the strata in turn), so that every prefix of the order has about
+    # the mix of lengths of the whole corpus, and parsed in batches of that
+    # order.  Each batch is scored as soon as it is parsed, and the bracketing
+    # F-measure of the sentences parsed so far is given with a bootstrap
+    # confidence interval.  Parsing stops when the upper end of the interval
+    # is below the best F-measure; a candidate that is never stopped has the
+    # whole corpus parsed, and its parsed file and score are written where
+    # Experiment#parse! and Experiment#score! write them.  Those of a dropped
+    # candidate are removed, so that only survivors have full results.
+    class SampledEvaluation
+      DefaultOptions = {
+        :batch_size => 100,   # sentences parsed by each java run
+        :strata     => 5,     # groups of sentence lengths
+        :confidence => 0.95,
+        :rounds     => 1000,  # bootstrap resamples
+        :seed       => 1,
+        :heap_size  => 1000
+      }
+
+      Batch = Struct.new(:number, :sentences, :fmeasure, :low, :high)
+
+      # The per-sentence lines of an evalb report: id, length, status,
+      # recall, precision, matched, gold and test brackets.
+      SentencePattern = /^\s*\d+\s+\d+\s+(\d+)\s+[\d.]+\s+[\d.]+\s+(\d+)\s+(\d+)\s+(\d+)/
+
+      attr_reader :experiment, :what, :options, :batches
+
+      def initialize(experiment, what = :dev, options = {})
+        @experiment = experiment
+        @what       = what
+        @options    = DefaultOptions.merge(options)
+        @batches    = []
+        @survived   = nil
+      end
+
+      # Parses and scores batches while the candidate could still beat the
+      # best F-measure (nil when there is no best yet, in which case every
+      # batch is parsed), writing a CSV line per batch to the report.
+      # Returns whether the candidate survived.
+      def run!(best = nil)
+        FileUtils.rm_f([experiment.parsed_path_for(what), experiment.score_path_for(what)])
+        random   = Random.new(options[:seed])
+        input    = File.readlines(experiment.parseable_path_for(what).check!)
+        gold     = File.readlines(experiment.gold_path_for(what).check!)
+        raise "#{experiment.parseable_path_for(what)} and #{experiment.gold_path_for(what)} differ in length" unless input.size == gold.size
+        order    = self.class.stratified_order(input.map { |line| line.split.size }, options[:strata], random)
+        slices   = order.each_slice(options[:batch_size]).to_a
+        parsed   = Array.new(input.size)
+        counts   = []
+        @batches = []
+
+        File.open(experiment.sampled_report_path_for(what), "w") do |fp|
+          fp.write("batch,sentences,fmeasure,low,high,best\n")
+          slices.each_with_index do |indices, number|
+            File.open(batch_path(:input), "w") { |bfp| indices.each { |i| bfp.write(input[i]) } }
+            File.open(batch_path(:gold), "w") { |bfp| indices.each { |i| bfp.write(gold[i]) } }
+            experiment.parse!(what, options[:heap_size], {}, batch_path(:parsed), experiment.log_path_for("parse-sample-#{number + 1}", what), experiment.objects_path, batch_path(:input), batch_path(:gold))
+            experiment.score!(what, batch_path(:parsed), batch_path(:score), batch_path(:gold))
+
+            File.readlines(batch_path(:parsed)).each_with_index { |line, j| parsed[indices[j]] = line if j < indices.size }
+            counts.concat(self.class.sentence_counts(File.read(batch_path(:score))))
+            low, high = self.class.bootstrap_interval(counts, options[:confidence], options[:rounds], random)
+            batch = Batch.new(number + 1, counts.size, self.class.fmeasure(counts), low, high)
+            @batches << batch
+            fp.write("#{batch.number},#{batch.sentences},#{'%.2f' % batch.fmeasure},#{'%.2f' % low},#{'%.2f' % high},#{best && '%.2f' % best}\n")
+            fp.flush
+
+            return @survived = false if best && number + 1 < slices.size && high < best
+          end
+        end
+
+        raise "parsing of #{experiment.parseable_path_for(what)} lost sentences" if parsed.include?(nil)
+        File.open(experiment.parsed_path_for(what), "w") { |fp| parsed.each { |line| fp.write(line) } }
+        experiment.score!(what)
+        @survived = true
+      ensure
+        FileUtils.rm_f([:input, :gold, :parsed, :score].map { |kind| batch_path(kind) } + ["#{batch_path(:parsed)}.flags", experiment.scorable_path_for(batch_path(:parsed))])
+      end
+
+      # Whether the last run parsed the whole corpus.
+      def survived?
+        @survived == true
+      end
+
+      # The F-measure of the sentences parsed so far.
+      def fmeasure
+        @batches.empty? ? nil : @batches.last.fmeasure
+      end
+
+      def sentences
+        @batches.empty? ? 0 : @batches.last.sentences
+      end
+
+      # Returns the indices of sentences of the specified lengths in an
+      # order in which every prefix is stratified by length.
+      def self.stratified_order(lengths, strata, random)
+        sorted = (0...lengths.size).sort_by { |i| [lengths[i], i] }
+        strata = [[strata, 1].max, [sorted.size, 1].max].min
+        groups = (0...strata).map do |s|
+          sorted[(s * sorted.size / strata)...((s + 1) * sorted.size / strata)].shuffle(:random => random)
+        end
+        order = []
+        groups.map { |group| group.size }.max.to_i.times do |i|
+          groups.each { |group| order << group[i] if i < group.size }
+        end
+        order
+      end
+
+      # Returns the matched, gold and test bracket counts of each sentence of
+      # an evalb report that was scored, skipping those with errors.
+      def self.sentence_counts(score_text)
+        score_text.split("=== Summary ===").first.scan(SentencePattern).map do |status, matched, gold, test|
+          status.to_i == 0 ? [matched.to_i, gold.to_i, test.to_i] : nil
+        end.compact
+      end
+
+      # The bracketing F-measure of the specified sentence counts, as evalb
+      # computes it from the totals.
+      def self.fmeasure(counts)
+        matched, gold, test = 0, 0, 0
+        counts.each { |m, g, t| matched += m; gold += g; test += t }
+        gold + test > 0 ? 200.0 * matched / (gold + test) : 0.0
+      end
+
+      # Returns the low and high ends of the percentile bootstrap interval of
+      # the F-measure of the specified sentence counts.
+      def self.bootstrap_interval(counts, confidence, rounds, random)
+        return [0.0, 100.0] if counts.empty?
+        samples = (0...rounds).map do
+          fmeasure((0...counts.size).map { counts[random.rand(counts.size)] })
+        end.sort
+        low  = ((1 - confidence) / 2 * rounds).floor
+        high = ((1 + confidence) / 2 * rounds).ceil - 1
+        [samples[[low, 0].max], samples[[high, rounds - 1].min]]
+      end
+
+      private
+
+      def batch_path(kind)
+        "#{experiment.parseable_path_for(what)}.sample.#{kind}"
+      end
+    end
+  end
+end
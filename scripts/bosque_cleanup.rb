@@ -1,5 +1,8 @@
 #!/usr/bin/env ruby
 
+# The reference for portuguese.BosqueImporter (rake corpus:import), which
+# writes the same output in linear time.
+
 unless RUBY_VERSION =~ /^1.9/
   puts "Ruby >= 1.9 is required"
   exit
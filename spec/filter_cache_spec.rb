@@ -0,0 +1,99 @@
+require File.dirname(__FILE__) + "/spec_helper"
+require 'tmpdir'
+
+module FilterCacheSpec
+  class Counting
+    attr_reader :calls
+
+    def initialize
+      @calls = 0
+    end
+
+    def run(sentence)
+      @calls += 1
+      sentence
+    end
+  end
+
+  class First < Counting; end
+  class Second < Counting; end
+  class Third < Counting; end
+
+  class Dependent < Counting
+    class << self
+      attr_accessor :dependency
+    end
+
+    def dependencies
+      [self.class.dependency]
+    end
+  end
+
+  class OtherDependent < Dependent; end
+end
+
+describe FilterCache do
+  before :each do
+    @dir   = Dir.mktmpdir
+    @line  = "(S (FCL (NP (ART-o O) (N-gato gato)) (VP (V_FIN-dormir dorme)) (. .)))\n"
+    @plain = Corpus::Sentence(@line).to_s
+  end
+
+  after :each do
+    FileUtils.rm_rf(@dir)
+  end
+
+  def run_chain(filters)
+    cache = FilterCache.new(@dir)
+    entry = cache.run(filters, @line, :train)
+    cache.close
+    [entry, cache.report]
+  end
+
+  it "should run only the filters after the longest cached prefix of a chain" do
+    run_chain([FilterCacheSpec::First.new, FilterCacheSpec::Second.new])
+
+    first, third  = FilterCacheSpec::First.new, FilterCacheSpec::Third.new
+    entry, report = run_chain([first, third])
+    first.calls.should == 0
+    third.calls.should == 1
+    entry.plain.should == @plain
+    report.should == "1 with 1 cached filters; 0 corrupt cache lines ignored"
+  end
+
+  it "should run no filter for a chain that is cached whole" do
+    run_chain([FilterCacheSpec::First.new, FilterCacheSpec::Second.new])
+
+    first, second = FilterCacheSpec::First.new, FilterCacheSpec::Second.new
+    entry, report = run_chain([first, second])
+    (first.calls + second.calls).should == 0
+    entry.plain.should == @plain
+    report.should == "1 with 2 cached filters; 0 corrupt cache lines ignored"
+  end
+
+  it "should ignore a cached tree whose checksum does not match" do
+    run_chain([FilterCacheSpec::First.new])
+
+    path  = Dir[File.join(@dir, "*.cache")].first
+    lines = File.readlines(path)
+    lines[1] = lines[1].gsub("gato", "rato")
+    File.open(path, "w") { |fp| fp.write(lines.join) }
+
+    first         = FilterCacheSpec::First.new
+    entry, report = run_chain([first])
+    first.calls.should == 1
+    entry.plain.should == @plain
+    report.should == "1 with 0 cached filters; 1 corrupt cache lines ignored"
+  end
+
+  it "should change the version of a filter when a file it depends on changes" do
+    dependency = File.join(@dir, "parameters")
+    FilterCacheSpec::Dependent.dependency      = dependency
+    FilterCacheSpec::OtherDependent.dependency = dependency
+
+    File.open(dependency, "w") { |fp| fp.write("before") }
+    before = FilterCache.version_of(FilterCacheSpec::Dependent.new)
+    File.open(dependency, "w") { |fp| fp.write("after") }
+    FilterCache.version_of(FilterCacheSpec::OtherDependent.new).should_not == before
+  end
+end
@@ -0,0 +1,34 @@
+require File.dirname(__FILE__) + "/../spec_helper"
+
+describe Performance::RegressionSuite do
+  before :each do
+    @tolerances = Performance::RegressionSuite::DefaultTolerances
+    @baseline   = { 'train_s' => 100.0, 'parse_sentences_per_s' => 2.0, 'parse_peak_rss_kb' => 1000, 'fmeasure' => 80.0 }
+  end
+
+  it "should find no regressions within the tolerances" do
+    run = { 'train_s' => 110.0, 'parse_sentences_per_s' => 1.8, 'parse_peak_rss_kb' => 1050, 'fmeasure' => 80.0 }
+    Performance::RegressionSuite.regressions(@baseline, run, @tolerances).should == []
+  end
+
+  it "should find metrics that got worse past their tolerances" do
+    run = { 'train_s' => 120.0, 'parse_sentences_per_s' => 1.5, 'parse_peak_rss_kb' => 1000, 'fmeasure' => 79.9 }
+    Performance::RegressionSuite.regressions(@baseline, run, @tolerances).map { |name, *rest| name }.should == ['train_s', 'parse_sentences_per_s', 'fmeasure']
+  end
+
+  it "should not count improvements as regressions" do
+    run = { 'train_s' => 50.0, 'parse_sentences_per_s' => 4.0, 'parse_peak_rss_kb' => 500, 'fmeasure' => 85.0 }
+    Performance::RegressionSuite.regressions(@baseline, run, @tolerances).should == []
+  end
+
+  it "should skip metrics that are missing or not reported" do
+    run = { 'train_s' => 100.0, 'parse_peak_rss_kb' => -1 }
+    Performance::RegressionSuite.regressions(@baseline, run, @tolerances).should == []
+  end
+
+  it "should rate parsing by the parse time the scheduler reports" do
+    log = "Finished loading derived counts in 00:12.000.\n\ntotal chart items: 223663\ntotal elapsed time: 01:02.500\n"
+    Performance::RegressionSuite.parse_rate(log, 125).should == 2.0
+    Performance::RegressionSuite.parse_rate("no parse\n", 125).should == 0.0
+  end
+end
@@ -0,0 +1,44 @@
+require File.dirname(__FILE__) + "/../spec_helper"
+
+describe Performance::SampledEvaluation do
+  before :each do
+    @score = <<-EOS
+  Sent.                        Matched  Bracket   Cross        Correct Tag
+ ID  Len.  Stat. Recal  Prec.  Bracket gold test Bracket Words  Tags Accracy
+============================================================================
+   1    3    0  100.00 100.00     2      2    2      0      3     3   100.00
+   2   28    0   80.00  76.19    16     20   21      4     25    25   100.00
+   3   12    1    0.00   0.00     0      0    0      0      0     0     0.00
+============================================================================
+                 81.82  78.26     18     22   23      4     28    28   100.00
+=== Summary ===
+
+-- All --
+Number of sentence        =      3
+    EOS
+  end
+
+  it "should read the bracket counts of the scored sentences of an evalb report" do
+    Performance::SampledEvaluation.sentence_counts(@score).should == [[2, 2, 2], [16, 20, 21]]
+  end
+
+  it "should compute the F-measure from the bracket totals" do
+    ("%.2f" % Performance::SampledEvaluation.fmeasure([[2, 2, 2], [16, 20, 21]])).should == "80.00"
+    Performance::SampledEvaluation.fmeasure([]).should == 0.0
+  end
+
+  it "should order every sentence once, taking the length strata in turn" do
+    lengths = [1, 50, 2, 40, 3, 30]
+    order   = Performance::SampledEvaluation.stratified_order(lengths, 3, Random.new(1))
+    order.sort.should == (0...lengths.size).to_a
+    order.first(3).map { |i| lengths[i] <= 2 ? :short : (lengths[i] <= 30 ? :medium : :long) }.should == [:short, :medium, :long]
+  end
+
+  it "should give an interval around the F-measure that narrows with more sentences" do
+    counts = [[8, 10, 10], [5, 10, 10], [10, 10, 10], [6, 10, 10]]
+    low, high = Performance::SampledEvaluation.bootstrap_interval(counts, 0.95, 500, Random.new(1))
+    (low <= 72.5 && 72.5 <= high).should == true
+    more_low, more_high = Performance::SampledEvaluation.bootstrap_interval(counts * 25, 0.95, 500, Random.new(1))
+    (more_high - more_low < high - low).should == true
+  end
+end